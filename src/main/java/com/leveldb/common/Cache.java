@@ -1,11 +1,11 @@
 package com.leveldb.common;
 
-import com.leveldb.util.LRUCache;
+import com.leveldb.util.ShardedLRUCache;
 
 public abstract class Cache {
 
 	// Opaque handle to an entry stored in the cache.
-	public abstract class Handle {
+	public static abstract class Handle {
 		
 	}
 
@@ -29,6 +29,10 @@ public abstract class Cache {
 	public abstract Handle Lookup(Slice key);
 
 	// Release a mapping returned by a previous Lookup().
+	// NOTE: the LRU caches here do not pin entries (their values, blocks,
+	// are garbage collected and outlive eviction for as long as they are
+	// used, and the block deleter frees nothing): an entry is deleted when
+	// it is replaced, erased or evicted, and Release() does nothing.
 	// REQUIRES: handle must not have been released yet.
 	// REQUIRES: handle must have been returned by a method on *this.
 	public abstract void Release(Handle handle);
@@ -50,12 +54,10 @@ public abstract class Cache {
 	// its cache keys.
 	public abstract/* uint64_t */long NewId();
 
-	public abstract void LRU_Remove(Handle e);
+	// Return an estimate of the combined charges of all elements stored in
+	// the cache.
+	public abstract long TotalCharge();
 
-	public abstract void LRU_Append(Handle e);
-
-	public abstract void Unref(Handle e);
-	
 	// wlu: 2012-6-2, destroy those left
 	public abstract void Destroy();
 
@@ -64,8 +66,10 @@ public abstract class Cache {
 
 	Rep rep_;
 
-	// No copying allowed
+	// Create a new cache with a fixed size capacity. This implementation
+	// of Cache uses a least-recently-used eviction policy, sharded by key
+	// hash.
 	public static Cache NewLRUCache(int capacity) {
-		return new LRUCache(capacity);
+		return new ShardedLRUCache(capacity);
 	}
 }
@@ -33,6 +33,12 @@ public abstract class Env {
 	// The returned file will only be accessed by one thread at a time.
 	public abstract _SequentialFile NewSequentialFile(String fname); // wlu
 
+	// Like NewSequentialFile(), for a file read from start to end: the file
+	// may read ahead up to "readahead" bytes at a time.
+	public _SequentialFile NewSequentialFile(String fname, int readahead) {
+		return NewSequentialFile(fname);
+	}
+
 	// Create a brand new random access read-only file with the
 	// specified name. On success, stores a pointer to the new file in
 	// *result and returns OK. On failure stores NULL in *result and
@@ -42,6 +48,15 @@ public abstract class Env {
 	// The returned file may be concurrently accessed by multiple threads.
 	public abstract _RandomAccessFile NewRandomAccessFile(String fname);
 
+	// Like NewRandomAccessFile(), but the file may be memory mapped as long
+	// as the bytes mapped by the process stay within "mmap_limit". Falls
+	// back to a plain random access file otherwise; environments without
+	// mmap support just return NewRandomAccessFile(fname).
+	public _RandomAccessFile NewMmapRandomAccessFile(String fname,
+			long mmap_limit) {
+		return NewRandomAccessFile(fname);
+	}
+
 	// Create an object that writes to a new file with the specified
 	// name. Deletes any existing file with the same name and creates a
 	// new file. On success, stores a pointer to the new file in
@@ -51,6 +66,19 @@ public abstract class Env {
 	// The returned file will only be accessed by one thread at a time.
 	public abstract _WritableFile NewWritableFile(String fname);
 
+	// Like NewWritableFile(), but reuses the file "old_fname" for it: the
+	// old file is renamed to "fname" and written over from the start, its
+	// space kept instead of freed and allocated again. Stale data past what
+	// is written stays in the file. By default the renamed file is simply
+	// truncated. Returns null if the file can not be reused.
+	public _WritableFile ReuseWritableFile(String fname, String old_fname) {
+		Status s = RenameFile(old_fname, fname);
+		if (!s.ok()) {
+			return null;
+		}
+		return NewWritableFile(fname);
+	}
+
 	// Returns true iff the named file exists.
 	public abstract boolean FileExists(String fname);
 
@@ -105,6 +133,22 @@ public abstract class Env {
 	// void (*function)(void* arg),
 	// void* arg) ;
 	public abstract void Schedule(Function fun);
+
+	// Priority of a background job: each priority has its own pool of
+	// threads, so high-priority jobs (memtable flushes) never queue behind
+	// low-priority ones (compactions).
+	public enum Priority {
+		kLow, kHigh
+	}
+
+	// As Schedule(fun), in the pool for "pri". The default ignores "pri".
+	public void Schedule(Function fun, Priority pri) {
+		Schedule(fun);
+	}
+
+	// Make the pool for "pri" have at least "num" threads.
+	public void IncBackgroundThreadsIfNeeded(int num, Priority pri) {
+	}
 	
 	public void EndSchedule(){};
 
@@ -180,14 +224,15 @@ public abstract class Env {
 		_SequentialFile file = env.NewSequentialFile(fname);
 
 		int kBufferSize = 8192;
+		Slice fragment = new Slice();
 		while (true) {
-			Slice fragment = new Slice();
+			fragment.clear();
 			file.Read(kBufferSize, fragment);
-
-			data.append(fragment.data());
 			if (fragment.empty()) {
 				break;
 			}
+			data.append(fragment.array(), fragment.getOffset(), fragment
+					.size());
 		}
 		
 		file.Close();
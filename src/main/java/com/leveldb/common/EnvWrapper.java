@@ -23,14 +23,26 @@ public class EnvWrapper extends Env {
 		return target_.NewSequentialFile(f);
 	}
 
+	public _SequentialFile NewSequentialFile(String f, int r) {
+		return target_.NewSequentialFile(f, r);
+	}
+
 	public _RandomAccessFile NewRandomAccessFile(String f) {
 		return target_.NewRandomAccessFile(f);
 	}
 
+	public _RandomAccessFile NewMmapRandomAccessFile(String f, long l) {
+		return target_.NewMmapRandomAccessFile(f, l);
+	}
+
 	public _WritableFile NewWritableFile(String f) {
 		return target_.NewWritableFile(f);
 	}
 
+	public _WritableFile ReuseWritableFile(String f, String old_f) {
+		return target_.ReuseWritableFile(f, old_f);
+	}
+
 	public boolean FileExists(String f) {
 		return target_.FileExists(f);
 	}
@@ -71,6 +83,14 @@ public class EnvWrapper extends Env {
 		target_.Schedule(fun);
 	}
 
+	public void Schedule(Function fun, Priority pri) {
+		target_.Schedule(fun, pri);
+	}
+
+	public void IncBackgroundThreadsIfNeeded(int num, Priority pri) {
+		target_.IncBackgroundThreadsIfNeeded(num, pri);
+	}
+
 	public void StartThread(Function fun) {
 		target_.StartThread(fun);
 	}
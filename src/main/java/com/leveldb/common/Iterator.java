@@ -109,6 +109,18 @@ public abstract class Iterator {
 		;
 	}
 
+	// Run the registered cleanups, as deleting the iterator does in the C++
+	// code; iterators that own others close those too. The iterator must
+	// not be used afterwards, closing it again does nothing.
+	public void Close() {
+		for (Cleanup c = cleanup_; c != null; c = c.next) {
+			if (c.function != null) {
+				c.function.exec(c.arg1, c.arg2);
+			}
+		}
+		cleanup_ = new Cleanup();
+	}
+
 	class Cleanup {
 		Function function;
 		Object arg1;
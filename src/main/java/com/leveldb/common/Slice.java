@@ -64,6 +64,13 @@ public class Slice implements Comparable<Slice> {
 		// }
 	}
 
+	// The referenced bytes without a copy: array()[getOffset(),
+	// getOffset() + size()). Other slices may share the array, so callers
+	// must not modify it.
+	public byte[] array() {
+		return data_;
+	}
+
 	public int size() {
 		return size_;
 	}
@@ -88,12 +95,7 @@ public class Slice implements Comparable<Slice> {
 	// Polished 12-5-4, by wlu
 	public void remove_prefix(int n) {
 		assert (n <= size());
-		// System.arraycopy(data_, n, data_, 0, size_ - n);
-		// if too many thrush here, remove them
-		if (offset_ + n >= 65535) {
-			System.arraycopy(data_, offset_, data_, 0, size_);
-			offset_ = 0;
-		}
+		// just move the offset: data_ may be shared with other slices
 		offset_ += n;
 		size_ -= n;
 	}
@@ -109,13 +111,14 @@ public class Slice implements Comparable<Slice> {
 	// > 0 iff "*this" > "b"
 	@Override
 	public int compareTo(Slice b) {
-		return util.compareTo(data(), b.data());
+		return util.compareTo(data_, offset_, size_, b.data_, b.offset_,
+				b.size_);
 	}
 
 	// Return true iff "x" is a prefix of "*this"
 	public boolean starts_with(Slice x) {
-		return ((size_ >= x.size_) && util.compareTo(data_, offset_, x.size(),
-				x.data(), 0, x.size()) == 0);
+		return ((size_ >= x.size_) && util.compareTo(data_, offset_, x.size_,
+				x.data_, x.offset_, x.size_) == 0);
 	}
 
 	public static boolean equal2(Slice x, Slice y) {
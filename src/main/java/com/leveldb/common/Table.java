@@ -1,10 +1,14 @@
 package com.leveldb.common;
 
+import java.util.List;
+
+import com.leveldb.common.comparator.BytewiseComparatorImpl;
 import com.leveldb.common.file._RandomAccessFile;
 import com.leveldb.common.options.Options;
 import com.leveldb.common.options.ReadOptions;
 import com.leveldb.common.table.Block;
 import com.leveldb.common.table.BlockHandle;
+import com.leveldb.common.table.FilterBlockReader;
 import com.leveldb.common.table.Footer;
 import com.leveldb.common.table.TwoLevelIterator;
 import com.leveldb.util.util;
@@ -40,75 +44,19 @@ public class Table {
 		public Iterator exec(Object arg, ReadOptions options, Slice index_value) {
 			Table table = (Table) (arg);
 			Cache block_cache = table.rep_.options.block_cache;
-			Block block = new Block(null, 0, false); // is to be reassigned or
-														// value be set
-			Cache.Handle cache_handle = null;
-
-			BlockHandle handle = new BlockHandle();
-			// Slice input = index_value;
-			ByteCollection input = new ByteCollection(index_value.data(), 0);
-			int s = handle.DecodeFrom(input); // set handle's offset and size
-			// We intentionally allow extra stuff in index_value so that we
-			// can add more features in the future.
-
-			if (s != 0) {
-				boolean may_cache;
-				// with cache
-				if (block_cache != null) {
-					// create a key by cache_id|offset, corresponding value is a
-					// Block
-					byte cache_key_buffer[] = new byte[16];
-					util.putLong(cache_key_buffer, 0, table.rep_.cache_id);
-					util.putLong(cache_key_buffer, 8, handle.offset());
-					// !!! key in the cache is {table's cache_id, block's
-					// offset}
-					Slice key = new Slice(cache_key_buffer);
-					// look up the key in the cache
-					cache_handle = block_cache.Lookup(key);
-					// in the cache, just return
-					if (cache_handle != null) {
-						block = (Block) (block_cache.Value(cache_handle));
-					}
-					// not in the cache, read the block and insert to the cache
-					else {
-						try {
-							// !!! read (set) the block from the file according
-							// to the #handle#,
-							// which is a BlockHandle {offset, size}.
-							may_cache = Block.ReadBlock(table.rep_.file,
-									options, handle, block);
-							if (may_cache && options.fill_cache) {
-								cache_handle = block_cache.Insert(key, block,
-										block.size(), null); // DeleteCachedBlock
-							}
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-
-					}
-				}
-				// without cache
-				else {
-					try {
-						may_cache = Block.ReadBlock(table.rep_.file, options,
-								handle, block);
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
-				}
-			}
+			Cache.Handle cache_handle[] = new Cache.Handle[1];
+			Block block = table.ReadDataBlock(options, index_value,
+					cache_handle);
 
 			Iterator iter;
 			if (block != null) {
 				// !!! return a iterator of Block
 				iter = block.NewIterator(table.rep_.options.comparator);
-				if (cache_handle == null) {
-					iter.RegisterCleanup(null, block, null); // no need
-				}
-				// release the handle from the cache
-				else {
+				// an uncached block needs no cleanup; release the handle
+				// from the cache otherwise
+				if (cache_handle[0] != null) {
 					iter.RegisterCleanup(new ReleaseBlockFunction(),
-							block_cache, cache_handle);
+							block_cache, cache_handle[0]);
 				}
 			} else {
 				iter = Iterator.NewErrorIterator(Status.IOError(new Slice(
@@ -118,6 +66,16 @@ public class Table {
 		}
 	}
 
+	// deleter of blocks in the block cache: nothing to free but the
+	// reference the cache drops
+	static class DeleteCachedBlock implements Function {
+		@Override
+		public void exec(Object... args) {
+		}
+	}
+
+	static final Function delete_cached_block_ = new DeleteCachedBlock();
+
 	// information package for the table
 	public static class Rep {
 		Options options;
@@ -128,6 +86,8 @@ public class Table {
 		BlockHandle metaindex_handle; // Handle to metaindex_block: saved from
 										// footer
 		Block index_block;
+		FilterBlockReader filter; // null if no filter policy or no filter
+									// block in this table
 	}
 
 	/**
@@ -185,7 +145,9 @@ public class Table {
 			rep.index_block = index_block;
 			rep.cache_id = (options.block_cache != null ? options.block_cache
 					.NewId() : 0);
+			rep.filter = null;
 			table = new Table(rep);
+			table.ReadMeta(footer);
 		} else {
 			if (index_block != null)
 				index_block = null;
@@ -193,6 +155,244 @@ public class Table {
 		return table;
 	}
 
+	/**
+	 * Look up the filter block named after options.filter_policy in the
+	 * metaindex block. Any error here only disables the filter, since the
+	 * table is still readable without it.
+	 */
+	void ReadMeta(Footer footer) {
+		if (rep_.options.filter_policy == null) {
+			return; // Do not need any metadata
+		}
+
+		ReadOptions opt = new ReadOptions();
+		opt.verify_checksums = rep_.options.paranoid_checks;
+		Block meta = new Block(null, 0, false);
+		try {
+			Block.ReadBlock(rep_.file, opt, footer.metaindex_handle(), meta);
+		} catch (Exception e) {
+			// Do not propagate errors since meta info is not needed for
+			// operation
+			e.printStackTrace();
+			return;
+		}
+
+		Iterator iter = meta.NewIterator(BytewiseComparatorImpl.getInstance());
+		Slice key = new Slice("filter." + rep_.options.filter_policy.Name());
+		iter.Seek(key);
+		if (iter.Valid() && Slice.equal2(iter.key(), key)) {
+			ReadFilter(iter.value());
+		}
+	}
+
+	void ReadFilter(Slice filter_handle_value) {
+		// We might want to unify with ReadBlock() if we start
+		// requiring checksum verification in Table.Open.
+		BlockHandle filter_handle = new BlockHandle();
+		if (filter_handle.DecodeFrom(new ByteCollection(filter_handle_value
+				.data(), 0)) == 0) {
+			return;
+		}
+
+		ReadOptions opt = new ReadOptions();
+		opt.verify_checksums = rep_.options.paranoid_checks;
+		try {
+			Slice block = Block.ReadBlockContents(rep_.file, opt,
+					filter_handle);
+			rep_.filter = new FilterBlockReader(rep_.options.filter_policy,
+					block);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Consult the filter block (if any) for the data block that "key" would
+	 * live in. Returns false only if "key" is definitely not in this table, in
+	 * which case no data block needs to be read.
+	 */
+	public boolean KeyMayMatch(Slice key) {
+		FilterBlockReader filter = rep_.filter;
+		if (filter == null) {
+			return true;
+		}
+		Iterator iiter = rep_.index_block.NewIterator(rep_.options.comparator);
+		iiter.Seek(key);
+		if (!iiter.Valid()) {
+			// key is past the last key in the file
+			return !iiter.status().ok();
+		}
+		BlockHandle handle = new BlockHandle();
+		if (handle.DecodeFrom(new ByteCollection(iiter.value().data(), 0)) == 0) {
+			return true;
+		}
+		return filter.KeyMayMatch(handle.offset(), key);
+	}
+
+	/**
+	 * Read the data block referred by "index_value" (an encoded BlockHandle
+	 * {offset, size}), going through the block cache when there is one. If
+	 * the block comes from (or is put into) the cache, its handle is returned
+	 * in cache_handle[0] and the caller should release it when done with the
+	 * block.
+	 */
+	Block ReadDataBlock(ReadOptions options, Slice index_value,
+			Cache.Handle[] cache_handle) {
+		Cache block_cache = rep_.options.block_cache;
+		Block block = new Block(null, 0, false); // is to be reassigned or
+													// value be set
+		cache_handle[0] = null;
+
+		BlockHandle handle = new BlockHandle();
+		ByteCollection input = new ByteCollection(index_value.data(), 0);
+		int s = handle.DecodeFrom(input); // set handle's offset and size
+		// We intentionally allow extra stuff in index_value so that we
+		// can add more features in the future.
+
+		if (s != 0) {
+			boolean may_cache;
+			// with cache
+			if (block_cache != null) {
+				// create a key by cache_id|offset, corresponding value is a
+				// Block
+				byte cache_key_buffer[] = new byte[16];
+				util.putLong(cache_key_buffer, 0, rep_.cache_id);
+				util.putLong(cache_key_buffer, 8, handle.offset());
+				// !!! key in the cache is {table's cache_id, block's
+				// offset}
+				Slice key = new Slice(cache_key_buffer);
+				// look up the key in the cache
+				cache_handle[0] = block_cache.Lookup(key);
+				// in the cache, just return
+				if (cache_handle[0] != null) {
+					block = (Block) (block_cache.Value(cache_handle[0]));
+				}
+				// not in the cache, read the block and insert to the cache
+				else {
+					try {
+						// !!! read (set) the block from the file according
+						// to the #handle#, which is a BlockHandle {offset,
+						// size}.
+						may_cache = Block.ReadBlock(rep_.file, options,
+								handle, block);
+						if (may_cache && options.fill_cache) {
+							cache_handle[0] = block_cache.Insert(key, block,
+									block.size(), delete_cached_block_);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+
+				}
+			}
+			// without cache
+			else {
+				try {
+					may_cache = Block.ReadBlock(rep_.file, options, handle,
+							block);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * Point lookup of internal key "k": seek the index block, read the one
+	 * data block that may hold "k" and call saver.exec(arg, key, value) with
+	 * the first entry at or after "k" in that block, if any. Nothing is called
+	 * when the filter rules out "k" or "k" is past the last key in the table.
+	 * 
+	 * This is what Get() should use instead of building a two-level iterator
+	 * for every file it probes.
+	 */
+	public Status InternalGet(ReadOptions options, Slice k, Object arg,
+			Function saver) {
+		return InternalGet(options, k, arg, saver, null);
+	}
+
+	/**
+	 * What a batch of point lookups in this table keeps between lookups: the
+	 * index iterator and the data block read last. Sorted keys mostly land in
+	 * the block of the key before them, which is then searched again instead
+	 * of being looked up in the block cache (or read) once more.
+	 */
+	public static class GetContext {
+		final Table table;
+		Iterator index_iter;
+		long block_offset = -1;
+		Block block;
+
+		public GetContext(Table t) {
+			table = t;
+		}
+
+		public Table table() {
+			return table;
+		}
+	}
+
+	/**
+	 * InternalGet() as one of a batch: "ctx" (of this table) carries the
+	 * index iterator and the last data block over to the next lookup.
+	 */
+	public Status InternalGet(ReadOptions options, Slice k, Object arg,
+			Function saver, GetContext ctx) {
+		assert (ctx == null || ctx.table == this);
+		Status s = Status.OK();
+		Iterator iiter;
+		if (ctx == null) {
+			iiter = rep_.index_block.NewIterator(rep_.options.comparator);
+		} else {
+			if (ctx.index_iter == null) {
+				ctx.index_iter = rep_.index_block
+						.NewIterator(rep_.options.comparator);
+			}
+			iiter = ctx.index_iter;
+		}
+		iiter.Seek(k);
+		if (iiter.Valid()) {
+			Slice handle_value = iiter.value();
+			FilterBlockReader filter = rep_.filter;
+			BlockHandle handle = new BlockHandle();
+			boolean decoded = (filter != null || ctx != null)
+					&& handle.DecodeFrom(new ByteCollection(handle_value
+							.data(), 0)) != 0;
+			if (filter != null && decoded
+					&& !filter.KeyMayMatch(handle.offset(), k)) {
+				// Not found
+			} else {
+				Block block;
+				if (ctx != null && decoded
+						&& ctx.block_offset == handle.offset()) {
+					block = ctx.block;
+				} else {
+					Cache.Handle cache_handle[] = new Cache.Handle[1];
+					block = ReadDataBlock(options, handle_value, cache_handle);
+					if (ctx != null && decoded) {
+						ctx.block_offset = handle.offset();
+						ctx.block = block;
+					}
+				}
+				Iterator block_iter = block
+						.NewIterator(rep_.options.comparator);
+				block_iter.Seek(k);
+				if (block_iter.Valid()) {
+					saver.exec(arg, block_iter.key(), block_iter.value());
+				}
+				s = block_iter.status();
+				// The cached block is left to the cache: LRUCache.Lookup()
+				// takes no reference, as a block is garbage collected and
+				// stays readable here even if it is evicted meanwhile.
+			}
+		}
+		if (s.ok()) {
+			s = iiter.status();
+		}
+		return s;
+	}
+
 	/**
 	 * Returns a new iterator over the table contents. The result of
 	 * NewIterator() is initially invalid (caller must call one of the Seek
@@ -242,6 +442,20 @@ public class Table {
 		return result;
 	}
 
+	/**
+	 * Appends the keys of the index block to keys, one per data block and in
+	 * order: each is >= the keys in its block and < the keys of the next. A
+	 * cheap sample of the key distribution of the table.
+	 */
+	public void IndexKeys(List<Slice> keys) {
+		Iterator index_iter = rep_.index_block
+				.NewIterator(rep_.options.comparator);
+		for (index_iter.SeekToFirst(); index_iter.Valid(); index_iter.Next()) {
+			// the iterator reuses its key
+			keys.add(new Slice(index_iter.key().data()));
+		}
+	}
+
 	private Rep rep_;
 
 	public Table(Rep rep) {
@@ -94,8 +94,12 @@ public class WriteBatch {
 			switch (tag) {
 			case ValueType.kTypeValue:
 				try {
-					key = coding.GetLengthPrefixedSlice(rep_);
-					value = coding.GetLengthPrefixedSlice(rep_);
+					key = NextSlice();
+					value = NextSlice();
+					if (key == null || value == null) {
+						return Status.Corruption(new Slice(
+								"bad WriteBatch Put"), null);
+					}
 					handler.Put(key, value);
 				} catch (Exception e) {
 					e.printStackTrace();
@@ -105,8 +109,11 @@ public class WriteBatch {
 				break;
 			case ValueType.kTypeDeletion:
 				try {
-					key = coding.GetLengthPrefixedSlice(rep_);
-
+					key = NextSlice();
+					if (key == null) {
+						return Status.Corruption(new Slice(
+								"bad WriteBatch Delete"), null);
+					}
 					handler.Delete(key);
 				} catch (Exception e) {
 					e.printStackTrace();
@@ -127,6 +134,19 @@ public class WriteBatch {
 		}
 	}
 
+	// The varstring at rep_.curr_pos, which it skips. The result refers to
+	// rep_.bytes: the handler copies what it keeps. null if the varstring
+	// runs past the end of rep_.
+	private Slice NextSlice() {
+		int len = coding.GetVarint32(rep_);
+		if (!rep_.OK() || len < 0 || rep_.curr_pos + len > rep_.bytes.length) {
+			return null;
+		}
+		Slice result = new Slice(rep_.bytes, rep_.curr_pos, len);
+		rep_.curr_pos += len;
+		return result;
+	}
+
 	// private String rep_; // See comment in write_batch.cc for the format of
 	// rep_
 
@@ -138,14 +158,25 @@ public class WriteBatch {
 
 		SequenceNumber sequence_;
 		MemTable mem_;
+		boolean concurrently_; // other batches go into mem_ meanwhile
 
 		void Put(Slice key, Slice value) {
-			mem_.Add(sequence_, ValueType.kTypeValue, key, value);
+			if (concurrently_) {
+				mem_.AddConcurrently(sequence_, ValueType.kTypeValue, key,
+						value);
+			} else {
+				mem_.Add(sequence_, ValueType.kTypeValue, key, value);
+			}
 			sequence_.value++;
 		}
 
 		void Delete(Slice key) {
-			mem_.Add(sequence_, ValueType.kTypeDeletion, key, new Slice());
+			if (concurrently_) {
+				mem_.AddConcurrently(sequence_, ValueType.kTypeDeletion, key,
+						new Slice());
+			} else {
+				mem_.Add(sequence_, ValueType.kTypeDeletion, key, new Slice());
+			}
 			sequence_.value++;
 		}
 
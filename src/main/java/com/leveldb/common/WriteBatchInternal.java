@@ -53,9 +53,17 @@ public class WriteBatchInternal {
 	}
 
 	public static Status InsertInto(WriteBatch b, MemTable memtable) {
+		return InsertInto(b, memtable, false);
+	}
+
+	// "concurrently": other batches may be inserted into memtable at the
+	// same time, all of them this way
+	public static Status InsertInto(WriteBatch b, MemTable memtable,
+			boolean concurrently) {
 		MemTableInserter inserter = b.inserter;
 		inserter.sequence_ = WriteBatchInternal.Sequence(b);
 		inserter.mem_ = memtable;
+		inserter.concurrently_ = concurrently;
 		return b.Iterate(inserter);
 	}
 
@@ -29,8 +29,10 @@ public class InternalKeyComparator extends Comparator {
 		int r = user_comparator_.Compare(InternalKey.ExtractUserKey(akey),
 				InternalKey.ExtractUserKey(bkey));
 		if (r == 0) {
-			long anum = util.toLong(InternalKey.ExtractNum(akey).data());
-			long bnum = util.toLong(InternalKey.ExtractNum(bkey).data());
+			long anum = util.toLong(akey.array(), akey.getOffset()
+					+ akey.size() - 8);
+			long bnum = util.toLong(bkey.array(), bkey.getOffset()
+					+ bkey.size() - 8);
 			if (anum > bnum) {
 				r = -1;
 			} else if (anum < bnum) {
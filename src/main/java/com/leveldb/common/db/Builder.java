@@ -60,6 +60,7 @@ public class Builder {
 				Iterator it = table_cache.NewIterator(new ReadOptions(),
 						meta.getNumber(), meta.getFile_size(), null);
 				s = it.status();
+				it.Close();
 				it = null;
 			}
 		}
@@ -135,6 +135,19 @@ public class Compaction {
 		}
 	}
 
+	// A copy for one subcompaction of this compaction: it shares the inputs,
+	// the grandparents and the edit, and keeps its own ShouldStopBefore() and
+	// IsBaseLevelForKey() positions as it scans its part of the key range.
+	Compaction Subcompaction() {
+		Compaction c = new Compaction(level_);
+		c.max_output_file_size_ = max_output_file_size_;
+		c.input_version_ = input_version_;
+		c.edit_ = edit_;
+		c.inputs_ = inputs_;
+		c.grandparents_ = grandparents_;
+		return c;
+	}
+
 	private long MaxFileSizeForLevel(int level) {
 		// We could vary per level to reduce number of files?
 		return Version.kTargetFileSize;
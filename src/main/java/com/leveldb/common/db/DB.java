@@ -12,7 +12,6 @@ import com.leveldb.common.WriteBatch;
 import com.leveldb.common.file.FileType;
 import com.leveldb.common.file._WritableFile;
 import com.leveldb.common.file.filename;
-import com.leveldb.common.log.Writer;
 import com.leveldb.common.options.Options;
 import com.leveldb.common.options.ReadOptions;
 import com.leveldb.common.options.WriteOptions;
@@ -62,6 +61,21 @@ public abstract class DB {
 	// May return some other Status on an error.
 	public abstract Slice Get(ReadOptions options, Slice key, Status s);
 
+	// Get() for every key of "keys", from one snapshot of the database: the
+	// value of keys.get(i) is at index i of the result, or null if there is
+	// no entry for it. If "statuses" is non-null, the status of each lookup
+	// is appended to it, in the order of "keys".
+	//
+	// Cheaper than a Get() per key: the DB is locked once for the whole
+	// batch, and keys that share a table file or a data block look it up
+	// only once.
+	public abstract List<Slice> MultiGet(ReadOptions options, List<Slice> keys,
+			List<Status> statuses);
+
+	public List<Slice> MultiGet(ReadOptions options, List<Slice> keys) {
+		return MultiGet(options, keys, null);
+	}
+
 	// Return a heap-allocated iterator over the contents of the database.
 	// The result of NewIterator() is initially invalid (caller must
 	// call one of the Seek methods on the iterator before using it).
@@ -129,7 +143,7 @@ public abstract class DB {
 				edit.SetLogNumber(new_log_number);
 				impl.logfile_ = lfile;
 				impl.logfile_number_ = new_log_number;
-				impl.log_ = new Writer(lfile);
+				impl.log_ = impl.NewLogWriter(lfile, new_log_number);
 				s = impl.versions_.LogAndApply(edit, impl.mutex_);
 			}
 			if (s.ok()) {
@@ -163,7 +177,7 @@ public abstract class DB {
 				edit.SetLogNumber(new_log_number);
 				impl.logfile_ = lfile;
 				impl.logfile_number_ = new_log_number;
-				impl.log_ = new Writer(lfile);
+				impl.log_ = impl.NewLogWriter(lfile, new_log_number);
 				s = impl.versions_.LogAndApply(edit, impl.mutex_);
 			}
 			if (s.ok()) {
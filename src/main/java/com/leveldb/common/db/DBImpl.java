@@ -1,6 +1,7 @@
 package com.leveldb.common.db;
 
 import java.nio.channels.FileLock;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -8,7 +9,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -24,6 +32,7 @@ import com.leveldb.common.Iterator;
 import com.leveldb.common.Logger;
 import com.leveldb.common.Slice;
 import com.leveldb.common.Status;
+import com.leveldb.common.Table;
 import com.leveldb.common.WriteBatch;
 import com.leveldb.common.WriteBatchInternal;
 import com.leveldb.common.config;
@@ -34,6 +43,7 @@ import com.leveldb.common.file._WritableFile;
 import com.leveldb.common.file.filename;
 //import com.leveldb.common.log.Writer;
 import com.leveldb.common.log.Reader;
+import com.leveldb.common.log.logformat;
 import com.leveldb.common.options.Options;
 import com.leveldb.common.options.ReadOptions;
 import com.leveldb.common.options.WriteOptions;
@@ -94,6 +104,9 @@ public class DBImpl extends DB {
 		boolean sync;
 		boolean done;
 		Condition cv;
+		// set by the group leader when this writer is to insert its own
+		// batch, with allow_concurrent_memtable_write
+		WriteGroup insert_group;
 
 		Writer(ReentrantLock mu) {
 			cv = mu.newCondition();
@@ -126,19 +139,29 @@ public class DBImpl extends DB {
 
 	long logfile_number_;
 
+	// Logs this process wrote in the recyclable format, and those of them
+	// that are obsolete and kept to be written over by a new log, oldest
+	// first. Both guarded by mutex_.
+	Set<Long> recyclable_logs_ = new HashSet<Long>();
+	ArrayDeque<Long> log_recycle_files_ = new ArrayDeque<Long>();
+
 	SnapshotList snapshots_ = new SnapshotList();
 
 	// Set of table files to protect from deletion because they are
 	// part of ongoing compactions.
 	Set<Long> pending_outputs_ = new HashSet<Long>();
 
-	// Has a background compaction been scheduled or is running?
-	boolean bg_compaction_scheduled_;
+	// Number of background compactions scheduled or running
+	int bg_compaction_scheduled_;
+
+	// Has a background memtable flush been scheduled or is running?
+	boolean bg_flush_scheduled_;
 
 	// Information for a manual compaction
 	class ManualCompaction {
 		int level;
 		boolean done;
+		boolean in_progress; // a background thread is compacting it
 		InternalKey begin; // NULL means beginning of key range
 		InternalKey end; // NULL means end of key range
 		InternalKey tmp_storage; // Used to keep track of compaction progress
@@ -150,6 +173,29 @@ public class DBImpl extends DB {
 	Queue<Writer> writers_ = new LinkedList<Writer>();
 	WriteBatch tmp_batch_;
 
+	// A group of writes that is in the log and on its way into the
+	// memtable, with enable_pipelined_write or
+	// allow_concurrent_memtable_write
+	static class WriteGroup {
+		Writer leader;
+		List<Writer> writers = new ArrayList<Writer>();
+		WriteBatch updates;
+		MemTable mem;
+		long first_sequence;
+		long last_sequence;
+		Status status;
+		int pending; // writers still inserting their batches
+	}
+
+	// Logged groups, in log order, waiting for or inserting into the
+	// memtable. Only the head inserts; it publishes its last sequence and
+	// signals the next one when done.
+	Queue<WriteGroup> memtable_groups_ = new LinkedList<WriteGroup>();
+	// Last sequence handed to a group in memtable_groups_
+	long last_allocated_sequence_;
+	// Signalled when memtable_groups_ becomes empty
+	Condition memtable_groups_cv_;
+
 	public final ReentrantLock mutex_ = new ReentrantLock();
 
 	AtomicBoolean shutting_down_ = new AtomicBoolean(false);
@@ -197,9 +243,24 @@ public class DBImpl extends DB {
 		Options result = new Options();
 		result.Options_(src);
 		result.comparator = icmp;
+		result.filter_policy = (src.filter_policy != null) ? new InternalFilterPolicy(
+				src.filter_policy) : null;
 		ClipToRange(result.max_open_files, 20, 50000);
 		ClipToRange(result.write_buffer_size, 64 << 10, 1 << 30);
 		ClipToRange(result.block_size, 1 << 10, 4 << 20);
+		result.max_background_compactions = ClipToRange(
+				result.max_background_compactions, 1, config.kNumLevels / 2);
+		result.max_subcompactions = ClipToRange(result.max_subcompactions, 1,
+				64);
+		result.compression_threads = ClipToRange(result.compression_threads,
+				1, 64);
+		result.recovery_threads = ClipToRange(result.recovery_threads, 1, 64);
+		result.log_readahead_size = ClipToRange(result.log_readahead_size,
+				logformat.kBlockSize, 64 << 20);
+		result.recycle_log_file_num = ClipToRange(result.recycle_log_file_num,
+				0, 64);
+		result.max_manifest_file_size = ClipToRange(
+				result.max_manifest_file_size, 1 << 10, 1 << 30);
 		if (result.info_log == null) {
 			// Open a log file in the same directory as the db
 			src.env.CreateDir(dbname); // In case it does not exist
@@ -228,13 +289,15 @@ public class DBImpl extends DB {
 		db_lock_ = null;
 		// shutting_down_ = null;
 		bg_cv_ = mutex_.newCondition();
+		memtable_groups_cv_ = mutex_.newCondition();
 		mem_ = new MemTable(internal_comparator_);
 		imm_ = null;
 		logfile_ = null;
 		logfile_number_ = 0;
 		log_ = null;
 		tmp_batch_ = new WriteBatch();
-		bg_compaction_scheduled_ = false;
+		bg_compaction_scheduled_ = 0;
+		bg_flush_scheduled_ = false;
 		manual_compaction_ = null;
 		mem_.Ref();
 		has_imm_.Release_Store(null);
@@ -244,6 +307,10 @@ public class DBImpl extends DB {
 		int table_cache_size = options.max_open_files - 10;
 		table_cache_ = new TableCache(dbname_, options_, table_cache_size);
 
+		env_.IncBackgroundThreadsIfNeeded(options_.max_background_compactions,
+				Env.Priority.kLow);
+		env_.IncBackgroundThreadsIfNeeded(1, Env.Priority.kHigh);
+
 		versions_ = new VersionSet(dbname_, options_, table_cache_,
 				internal_comparator_);
 
@@ -266,6 +333,9 @@ public class DBImpl extends DB {
 
 	@Override
 	public Status Write(WriteOptions options, WriteBatch my_batch) {
+		if (options_.enable_pipelined_write && my_batch != null) {
+			return PipelinedWrite(options, my_batch);
+		}
 		Status status = Status.OK();
 		Writer w = new Writer(mutex_);
 		w.batch = my_batch;
@@ -276,22 +346,36 @@ public class DBImpl extends DB {
 		mutex_.lock();
 		try {
 			writers_.add(w);
-			while (!w.done && w != writers_.peek()) {
-				w.cv.awaitUninterruptibly(); // wait here
-			}
+			AwaitTurn(w);
 			if (w.done) {
 				return w.status;
 			}
 
 			// May temporarily unlock and wait.
 			status = MakeRoomForWrite(my_batch == null);
-			SequenceNumber last_sequence = versions_.LastSequence();
-			Writer last_writer = w;
+			// a copy: readers hold on to the published one
+			SequenceNumber last_sequence = new SequenceNumber(versions_
+					.LastSequence().value);
+			Writer last_writer[] = { w };
 			if (status.ok() && my_batch != null) { // NULL batch is for
 													// compactions
-				WriteBatch updates = BuildBatchGroup(last_writer);
+				WriteBatch updates = BuildBatchGroup(last_writer, tmp_batch_);
 				WriteBatchInternal
 						.SetSequence(updates, last_sequence.value + 1);
+				WriteGroup group = null;
+				if (options_.allow_concurrent_memtable_write
+						&& updates != my_batch) {
+					// the writers insert their own batches once it is logged
+					group = new WriteGroup();
+					group.leader = w;
+					group.mem = mem_;
+					group.first_sequence = last_sequence.value + 1;
+					for (Writer x : writers_) {
+						group.writers.add(x);
+						if (x == last_writer[0])
+							break;
+					}
+				}
 				last_sequence.value += WriteBatchInternal.Count(updates);
 
 				// Add to log and apply to memtable. We can release the lock
@@ -306,11 +390,15 @@ public class DBImpl extends DB {
 					if (status.ok() && options.sync) {
 						status = logfile_.Sync();
 					}
-					if (status.ok()) {
+					if (status.ok() && group == null) {
 						status = WriteBatchInternal.InsertInto(updates, mem_);
 					}
 					mutex_.lock();
 				}
+				if (status.ok() && group != null) {
+					group.status = status;
+					status = InsertGroupConcurrently(group);
+				}
 				if (updates == tmp_batch_)
 					tmp_batch_.Clear();
 
@@ -325,7 +413,7 @@ public class DBImpl extends DB {
 					ready.done = true;
 					ready.cv.signal(); // just signal not signalAll ... why?
 				}
-				if (ready == last_writer)
+				if (ready == last_writer[0])
 					break;
 			}
 
@@ -341,6 +429,168 @@ public class DBImpl extends DB {
 
 	}
 
+	// Write() with enable_pipelined_write. The leader of a group logs it
+	// like Write() does, then leaves the writer queue to the next group and
+	// waits for its turn in memtable_groups_: groups are inserted into the
+	// memtable, and their sequences published, in the order they were
+	// logged, but the log write of one group overlaps the memtable insert
+	// of the one before.
+	private Status PipelinedWrite(WriteOptions options, WriteBatch my_batch) {
+		Writer w = new Writer(mutex_);
+		w.batch = my_batch;
+		w.sync = options.sync;
+		w.done = false;
+
+		mutex_.lock();
+		try {
+			writers_.add(w);
+			AwaitTurn(w);
+			if (w.done) {
+				return w.status;
+			}
+
+			// May temporarily unlock and wait.
+			Status status = MakeRoomForWrite(false);
+			if (!status.ok()) {
+				writers_.poll();
+				if (!writers_.isEmpty()) {
+					writers_.peek().cv.signal();
+				}
+				return status;
+			}
+
+			// Log stage
+			WriteGroup group = new WriteGroup();
+			group.leader = w;
+			group.mem = mem_;
+			Writer last_writer[] = { w };
+			// groups of their own: tmp_batch_ may still be in the memtable
+			// stage
+			group.updates = BuildBatchGroup(last_writer, new WriteBatch());
+			long last_sequence = memtable_groups_.isEmpty() ? versions_
+					.LastSequence().value : last_allocated_sequence_;
+			WriteBatchInternal.SetSequence(group.updates, last_sequence + 1);
+			group.first_sequence = last_sequence + 1;
+			last_sequence += WriteBatchInternal.Count(group.updates);
+			group.last_sequence = last_sequence;
+			last_allocated_sequence_ = last_sequence;
+			{
+				mutex_.unlock();
+				status = log_.AddRecord(WriteBatchInternal
+						.Contents(group.updates));
+				if (status.ok() && options.sync) {
+					status = logfile_.Sync();
+				}
+				mutex_.lock();
+			}
+			group.status = status;
+
+			// Hand the log to the next group
+			while (true) {
+				Writer ready = writers_.poll();
+				group.writers.add(ready);
+				if (ready == last_writer[0])
+					break;
+			}
+			memtable_groups_.add(group);
+			if (!writers_.isEmpty()) {
+				writers_.peek().cv.signal();
+			}
+
+			// Memtable stage
+			while (memtable_groups_.peek() != group) {
+				w.cv.awaitUninterruptibly();
+			}
+			if (status.ok()) {
+				if (options_.allow_concurrent_memtable_write
+						&& group.updates != my_batch) {
+					status = InsertGroupConcurrently(group);
+				} else {
+					mutex_.unlock();
+					status = WriteBatchInternal.InsertInto(group.updates,
+							group.mem);
+					mutex_.lock();
+				}
+			}
+			versions_.SetLastSequence(new SequenceNumber(group.last_sequence));
+			memtable_groups_.poll();
+
+			for (Writer ready : group.writers) {
+				if (ready != w) {
+					ready.status = status;
+					ready.done = true;
+					ready.cv.signal();
+				}
+			}
+			if (!memtable_groups_.isEmpty()) {
+				memtable_groups_.peek().leader.cv.signal();
+			} else {
+				memtable_groups_cv_.signalAll();
+			}
+			return status;
+		} finally {
+			mutex_.unlock();
+		}
+	}
+
+	// Wait until "w" is done or at the front of the writer queue. Meanwhile,
+	// insert the batch of "w" when the leader of its group asks for it.
+	// REQUIRES: mutex_ is held
+	private void AwaitTurn(Writer w) {
+		while (!w.done && w != writers_.peek()) {
+			WriteGroup group = w.insert_group;
+			if (group != null) {
+				w.insert_group = null;
+				mutex_.unlock();
+				Status s = WriteBatchInternal.InsertInto(w.batch, group.mem,
+						true);
+				mutex_.lock();
+				if (!s.ok() && group.status.ok()) {
+					group.status = s;
+				}
+				if (--group.pending == 0) {
+					group.leader.cv.signal();
+				}
+			} else {
+				w.cv.awaitUninterruptibly(); // wait here
+			}
+		}
+	}
+
+	// The memtable insert of a logged group, with
+	// allow_concurrent_memtable_write: each writer inserts its own batch, at
+	// the sequence it has in the group, and the leader waits for them after
+	// inserting its own. Returns the status of the group.
+	// REQUIRES: mutex_ is held, by group.leader
+	private Status InsertGroupConcurrently(WriteGroup group) {
+		long sequence = group.first_sequence;
+		group.pending = 0;
+		for (Writer x : group.writers) {
+			if (x.batch == null) {
+				continue;
+			}
+			WriteBatchInternal.SetSequence(x.batch, sequence);
+			sequence += WriteBatchInternal.Count(x.batch);
+			if (x != group.leader) {
+				x.insert_group = group;
+				group.pending++;
+				x.cv.signal();
+			}
+		}
+
+		mutex_.unlock();
+		Status s = WriteBatchInternal.InsertInto(group.leader.batch,
+				group.mem, true);
+		mutex_.lock();
+		if (!s.ok() && group.status.ok()) {
+			group.status = s;
+		}
+		while (group.pending > 0) {
+			group.leader.cv.awaitUninterruptibly();
+		}
+		return group.status;
+	}
+
 	// REQUIRES: mutex_ is held
 	// REQUIRES: this thread is currently at the front of the writer queue
 	private Status MakeRoomForWrite(boolean force) {
@@ -378,14 +628,19 @@ public class DBImpl extends DB {
 				// There are too many level-0 files.
 				LOG.info("There are too many level-0 files. waiting...\n");
 				bg_cv_.awaitUninterruptibly();
+			} else if (!memtable_groups_.isEmpty()) {
+				// Logged groups are still going into mem_, which can not be
+				// handed over to compaction before they are in.
+				memtable_groups_cv_.awaitUninterruptibly();
 			} else {
 				// Attempt to switch to a new memtable and trigger compaction of
 				// old
 				assert (versions_.PrevLogNumber() == 0);
 				long new_log_number = versions_.NewFileNumber();
-				_WritableFile lfile = env_.NewWritableFile(filename
-						.LogFileName(dbname_, new_log_number));
-				if (!s.ok()) {
+				_WritableFile lfile = NewLogFile(new_log_number);
+				if (lfile == null) {
+					s = Status.IOError(new Slice(filename.LogFileName(dbname_,
+							new_log_number)), null);
 					break;
 				}
 
@@ -393,7 +648,7 @@ public class DBImpl extends DB {
 				logfile_.Close();
 				logfile_ = lfile;
 				logfile_number_ = new_log_number;
-				log_ = new com.leveldb.common.log.Writer(lfile);
+				log_ = NewLogWriter(lfile, new_log_number);
 				imm_ = mem_;
 				has_imm_.Release_Store(imm_);
 				mem_ = new MemTable(internal_comparator_);
@@ -408,7 +663,9 @@ public class DBImpl extends DB {
 
 	// REQUIRES: Writer list must be non-empty
 	// REQUIRES: First writer must have a non-NULL batch
-	private WriteBatch BuildBatchGroup(Writer last_writer) {
+	// Sets last_writer[0] to the last writer in the group; "scratch" (empty)
+	// holds the group if it is more than the first batch.
+	private WriteBatch BuildBatchGroup(Writer last_writer[], WriteBatch scratch) {
 		assert (!writers_.isEmpty());
 		Writer first = writers_.peek();
 		WriteBatch result = first.batch;
@@ -424,7 +681,7 @@ public class DBImpl extends DB {
 			max_size = size + (128 << 10);
 		}
 
-		last_writer = first;
+		last_writer[0] = first;
 		java.util.Iterator<Writer> iter = writers_.iterator();// begin();
 		iter.next();
 		// ++iter; // Advance past "first"
@@ -447,13 +704,13 @@ public class DBImpl extends DB {
 				if (result == first.batch) {
 					// Switch to temporary batch instead of disturbing caller's
 					// batch
-					result = tmp_batch_;
+					result = scratch;
 					assert (WriteBatchInternal.Count(result) == 0);
 					WriteBatchInternal.Append(result, first.batch);
 				}
 				WriteBatchInternal.Append(result, w.batch);
 			}
-			last_writer = w;
+			last_writer[0] = w;
 		}
 		return result;
 	}
@@ -521,6 +778,118 @@ public class DBImpl extends DB {
 
 	}
 
+	@Override
+	public List<Slice> MultiGet(ReadOptions options, List<Slice> keys,
+			List<Status> statuses) {
+		final int n = keys.size();
+		mutex_.lock();
+		SequenceNumber snapshot;
+		if (options.snapshot != null) {
+			snapshot = ((SnapshotImpl) (options.snapshot)).number_;
+		} else {
+			snapshot = versions_.LastSequence();
+		}
+
+		MemTable mem = mem_;
+		MemTable imm = imm_;
+		Version current = versions_.current();
+		mem.Ref();
+		if (imm != null) {
+			imm.Ref();
+		}
+		current.Ref();
+		mutex_.unlock();
+
+		// Visit the keys in user key order, so that neighbours in a table
+		// file are looked up one after the other
+		final List<Slice> user_keys = keys;
+		final Comparator ucmp = user_comparator();
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return ucmp.Compare(user_keys.get(a), user_keys.get(b));
+			}
+		});
+
+		Slice[] values = new Slice[n];
+		Status[] status = new Status[n];
+
+		// First look in the memtable, then in the immutable memtable (if
+		// any); what is in neither goes to the current version
+		LookupKey[] pending = new LookupKey[n];
+		int[] pending_index = new int[n];
+		int num_pending = 0;
+		for (int j = 0; j < n; j++) {
+			int i = order[j];
+			LookupKey lkey = new LookupKey(keys.get(i), snapshot);
+			Slice value = new Slice();
+			Status s = new Status();
+			if (mem.Get(lkey, value, s) != null
+					|| (s.ok() && imm != null && imm.Get(lkey, value, s) != null)) {
+				values[i] = value;
+				status[i] = s;
+			} else if (!s.ok()) {
+				// deleted
+				status[i] = s;
+			} else {
+				pending[num_pending] = lkey;
+				pending_index[num_pending] = i;
+				num_pending++;
+			}
+		}
+
+		Version.GetStats stats[] = new Version.GetStats[num_pending];
+		if (num_pending > 0) {
+			LookupKey[] lkeys = new LookupKey[num_pending];
+			System.arraycopy(pending, 0, lkeys, 0, num_pending);
+			byte[][] found = new byte[num_pending][];
+			Status[] found_status = new Status[num_pending];
+			for (int p = 0; p < num_pending; p++) {
+				stats[p] = new Version.GetStats();
+			}
+			current.MultiGet(options, lkeys, found, stats, found_status);
+			for (int p = 0; p < num_pending; p++) {
+				int i = pending_index[p];
+				if (found[p] != null) {
+					values[i] = new Slice(found[p]);
+				}
+				status[i] = found_status[p];
+			}
+		}
+
+		mutex_.lock();
+		boolean need_compaction = false;
+		for (int p = 0; p < num_pending; p++) {
+			if (current.UpdateStats(stats[p])) {
+				need_compaction = true;
+			}
+		}
+		if (need_compaction) {
+			MaybeScheduleCompaction();
+		}
+		mem.Unref();
+		if (imm != null)
+			imm.Unref();
+		current.Unref();
+		mutex_.unlock();
+
+		List<Slice> result = new ArrayList<Slice>(n);
+		for (int i = 0; i < n; i++) {
+			result.add(values[i]);
+			if (statuses != null) {
+				if (values[i] == null && status[i].ok()) {
+					status[i] = Status.NotFound(new Slice(), null);
+				}
+				statuses.add(status[i]);
+			}
+		}
+		return result;
+	}
+
 	Comparator user_comparator() {
 		return internal_comparator_.user_comparator();
 	}
@@ -556,7 +925,7 @@ public class DBImpl extends DB {
 		// Wait for background work to finish
 		mutex_.lock();
 		// shutting_down_.Release_Store(this); // Any non-NULL value is ok
-		while (bg_compaction_scheduled_) {
+		while (bg_compaction_scheduled_ > 0 || bg_flush_scheduled_) {
 			try {
 				bg_cv_.await();
 			} catch (InterruptedException e) {
@@ -639,6 +1008,7 @@ public class DBImpl extends DB {
 			Iterator iter = table_cache_.NewIterator(new ReadOptions(),
 					output_number, current_bytes, null);
 			s = iter.status();
+			iter.Close();
 			iter = null;
 			// wlu, 2012-7-10, bugFix: s !=null
 			if (s != null && s.ok()) {
@@ -703,7 +1073,6 @@ public class DBImpl extends DB {
 	 */
 	Status DoCompactionWork(CompactionState compact) {
 		long start_micros = env_.NowMicros();
-		long imm_micros = 0; // Micros spent doing imm_ compactions
 
 		LOG.info("Compacting " + compact.compaction.num_input_files(0) + "@"
 				+ compact.compaction.level() + " + "
@@ -722,28 +1091,67 @@ public class DBImpl extends DB {
 		// Release mutex while we're actually doing the compaction work
 		mutex_.unlock();
 
+		// Level-0 compactions may be split by key range, see
+		// SubcompactionBoundaries()
+		List<Slice> boundaries = SubcompactionBoundaries(compact.compaction);
+		Status status;
+		if (boundaries.isEmpty()) {
+			status = DoCompactionWork(compact, null, null);
+		} else {
+			status = RunSubcompactions(compact, boundaries);
+		}
+
+		CompactionStats stats = new CompactionStats();
+		stats.micros = env_.NowMicros() - start_micros;
+		for (int which = 0; which < 2; which++) {
+			for (int i = 0; i < compact.compaction.num_input_files(which); i++) {
+				stats.bytes_read += compact.compaction.input(which, i).file_size;
+			}
+		}
+		for (int i = 0; i < compact.outputs.size(); i++) {
+			stats.bytes_written += compact.outputs.get(i).file_size;
+		}
+
+		mutex_.lock();
+		stats_[compact.compaction.level() + 1].Add(stats);
+
+		if (status.ok()) {
+			status = InstallCompactionResults(compact);
+		}
+		VersionSet.LevelSummaryStorage tmp = new VersionSet.LevelSummaryStorage();
+		LOG.info("compacted to: " + versions_.LevelSummary(tmp));
+		return status;
+	}
+
+	/**
+	 * Compact the entries of compact.compaction with user keys in [begin,
+	 * end) into new outputs of compact, null meaning no bound.
+	 * 
+	 * REQUIRES: mutex_ is not held
+	 */
+	Status DoCompactionWork(CompactionState compact, Slice begin, Slice end) {
 		Iterator input = versions_.MakeInputIterator(compact.compaction);
-		input.SeekToFirst();
+		if (begin == null) {
+			input.SeekToFirst();
+		} else {
+			input.Seek(new InternalKey(begin, SequenceNumber.MaxSequenceNumber,
+					ValueType.ValueTypeForSeek).Encode());
+		}
 		Status status = Status.OK();
 		ParsedInternalKey ikey;
 		String current_user_key = "";
 		boolean has_current_user_key = false;
 		long last_sequence_for_key = SequenceNumber.kMaxSequenceNumber;
 		for (; input.Valid() && !shutting_down_.get();) {
-			// Prioritize immutable compaction work
-			if (has_imm_.NoBarrier_Load() != null) {
-				long imm_start = env_.NowMicros();
-				mutex_.lock();
-				if (imm_ != null) {
-					CompactMemTable();
-					bg_cv_.signalAll(); // Wakeup MakeRoomForWrite() if
-										// necessary
-				}
-				mutex_.unlock();
-				imm_micros += (env_.NowMicros() - imm_start);
-			}
-
+			// The immutable memtable is written out meanwhile by the
+			// high-priority flush thread, see BackgroundFlushCall()
 			Slice key = input.key();
+			if (end != null
+					&& key.size() >= 8
+					&& user_comparator().Compare(
+							InternalKey.ExtractUserKey(key), end) >= 0) {
+				break;
+			}
 			if (compact.compaction.ShouldStopBefore(key)
 					&& compact.builder != null) {
 				status = FinishCompactionOutputFile(compact, input);
@@ -839,38 +1247,138 @@ public class DBImpl extends DB {
 		if (status.ok()) {
 			status = input.status();
 		}
+		// releases the input tables
+		input.Close();
 		input = null;
+		return status;
+	}
 
-		CompactionStats stats = new CompactionStats();
-		stats.micros = env_.NowMicros() - start_micros - imm_micros;
+
+	/**
+	 * User keys that split the key range of c into up to
+	 * options_.max_subcompactions parts of about as many data blocks each,
+	 * taking the index keys of the input tables as the sample. Empty if c is
+	 * not to be split: only compactions out of level-0 are, as writes wait
+	 * for those, and only if each part gets kMinSubcompactionBlocks.
+	 * 
+	 * REQUIRES: mutex_ is not held
+	 */
+	List<Slice> SubcompactionBoundaries(Compaction c) {
+		List<Slice> boundaries = new ArrayList<Slice>();
+		int n = options_.max_subcompactions;
+		if (n <= 1 || c.level() != 0) {
+			return boundaries;
+		}
+
+		List<Slice> keys = new ArrayList<Slice>();
 		for (int which = 0; which < 2; which++) {
-			for (int i = 0; i < compact.compaction.num_input_files(which); i++) {
-				stats.bytes_read += compact.compaction.input(which, i).file_size;
+			for (int i = 0; i < c.num_input_files(which); i++) {
+				FileMetaData f = c.input(which, i);
+				TableCache.TableAndFile t = table_cache_.GetTable(f
+						.getNumber(), f.getFile_size(), which == 0);
+				if (t != null) {
+					t.table().IndexKeys(keys);
+					table_cache_.Release(t);
+				}
 			}
 		}
-		for (int i = 0; i < compact.outputs.size(); i++) {
-			stats.bytes_written += compact.outputs.get(i).file_size;
+		List<Slice> user_keys = new ArrayList<Slice>(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			if (keys.get(i).size() >= 8) {
+				user_keys.add(InternalKey.ExtractUserKey(keys.get(i)));
+			}
+		}
+		final Comparator ucmp = user_comparator();
+		Collections.sort(user_keys, new java.util.Comparator<Slice>() {
+			public int compare(Slice a, Slice b) {
+				return ucmp.Compare(a, b);
+			}
+		});
+
+		n = Math.min(n, user_keys.size() / kMinSubcompactionBlocks);
+		for (int i = 1; i < n; i++) {
+			Slice b = user_keys.get(i * user_keys.size() / n);
+			if (boundaries.isEmpty()
+					|| ucmp.Compare(boundaries.get(boundaries.size() - 1), b) < 0) {
+				boundaries.add(b);
+			}
 		}
+		return boundaries;
+	}
 
-		mutex_.lock();
-		stats_[compact.compaction.level() + 1].Add(stats);
+	// Smallest number of data blocks of input for a subcompaction
+	static final int kMinSubcompactionBlocks = 8;
 
-		if (status.ok()) {
-			status = InstallCompactionResults(compact);
+	/**
+	 * DoCompactionWork() on each of the ranges between boundaries, at the
+	 * same time: the first in this thread, each other one in a thread of its
+	 * own. The outputs of all of them, in key order, are moved to compact to
+	 * be installed together.
+	 * 
+	 * REQUIRES: mutex_ is not held
+	 */
+	Status RunSubcompactions(CompactionState compact,
+			final List<Slice> boundaries) {
+		final int n = boundaries.size() + 1;
+		final CompactionState subs[] = new CompactionState[n];
+		final Status results[] = new Status[n];
+		for (int i = 0; i < n; i++) {
+			subs[i] = new CompactionState(compact.compaction.Subcompaction());
+			subs[i].smallest_snapshot = compact.smallest_snapshot;
+		}
+
+		final CountDownLatch done = new CountDownLatch(n - 1);
+		for (int i = 1; i < n; i++) {
+			final int sub = i;
+			env_.StartThread(new Function() {
+				@Override
+				public void exec(Object... args) {
+					try {
+						results[sub] = DoCompactionWork(subs[sub], boundaries
+								.get(sub - 1), sub + 1 < n ? boundaries
+								.get(sub) : null);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		results[0] = DoCompactionWork(subs[0], null, boundaries.get(0));
+		AwaitUninterruptibly(done);
+
+		Status status = Status.OK();
+		for (int i = 0; i < n; i++) {
+			if (status.ok()) {
+				status = (results[i] != null) ? results[i] : Status.IOError(
+						new Slice("subcompaction failed"), null);
+			}
+			compact.outputs.addAll(subs[i].outputs);
+			compact.total_bytes += subs[i].total_bytes;
+			subs[i].outputs.clear();
+			// drops an output file left open by an error
+			CleanupCompaction(subs[i]);
 		}
-		VersionSet.LevelSummaryStorage tmp = new VersionSet.LevelSummaryStorage();
-		LOG.info("compacted to: " + versions_.LevelSummary(tmp));
 		return status;
 	}
 
+	// For recovery: no other thread deletes files before edit is applied
+	private Status WriteLevel0Table(MemTable mem, VersionEdit edit, Version base) {
+		FileMetaData meta = new FileMetaData();
+		Status s = WriteLevel0Table(mem, edit, base, meta);
+		pending_outputs_.remove(meta.getNumber());
+		return s;
+	}
+
 	/**
 	 * write memtable data to leve0 or higher; call: Builder.BuildTable; add a
-	 * CompactStatus to the selected level
+	 * CompactStatus to the selected level. The number of the new table, in
+	 * meta, stays in pending_outputs_ for the caller to remove once edit is
+	 * applied: compactions in other threads delete obsolete files meanwhile.
 	 */
-	private Status WriteLevel0Table(MemTable mem, VersionEdit edit, Version base) {
+	private Status WriteLevel0Table(MemTable mem, VersionEdit edit,
+			Version base, FileMetaData meta) {
 		assert (mutex_.isHeldByCurrentThread());// AssertHeld();
 		long start_micros = env_.NowMicros();
-		FileMetaData meta = new FileMetaData();
 		meta.setNumber(versions_.NewFileNumber());
 		pending_outputs_.add(meta.getNumber());
 		Iterator iter = mem.NewIterator();
@@ -888,7 +1396,6 @@ public class DBImpl extends DB {
 		LOG.info("Level-0 table #" + meta.number + ": " + meta.file_size
 				+ " bytes " + s.toString());
 		iter = null;
-		pending_outputs_.remove(meta.getNumber());
 
 		// Note that if file_size is zero, the file has been deleted and
 		// should not be added to the manifest.
@@ -900,6 +1407,11 @@ public class DBImpl extends DB {
 				level = base.PickLevelForMemTableOutput(min_user_key,
 						max_user_key);
 			}
+			// A compaction running into that level may write a file over
+			// the key range of this one: stay above it
+			while (level > 0 && versions_.IsCompacting(level)) {
+				level--;
+			}
 			edit.AddFile(level, meta.getNumber(), meta.getFile_size(),
 					meta.getSmallest(), meta.getLargest());
 		}
@@ -919,7 +1431,8 @@ public class DBImpl extends DB {
 		VersionEdit edit = new VersionEdit();
 		Version base = versions_.current();
 		base.Ref();
-		Status s = WriteLevel0Table(imm_, edit, base);
+		FileMetaData meta = new FileMetaData();
+		Status s = WriteLevel0Table(imm_, edit, base, meta);
 		base.Unref();
 
 		if (s.ok() && shutting_down_.get()) {
@@ -933,6 +1446,7 @@ public class DBImpl extends DB {
 			edit.SetLogNumber(logfile_number_); // Earlier logs no longer needed
 			s = versions_.LogAndApply(edit, mutex_); // TODO
 		}
+		pending_outputs_.remove(meta.getNumber());
 
 		if (s.ok()) {
 			// Commit to the new state
@@ -965,15 +1479,17 @@ public class DBImpl extends DB {
 			return;
 		}
 
-		if (imm_ != null) {
-			CompactMemTable();
-			return;
-		}
-
 		Compaction c;
 		boolean is_manual = (manual_compaction_ != null);
 		InternalKey manual_end = null;
 		if (is_manual) {
+			if (manual_compaction_.in_progress
+					|| !versions_.CanCompact(manual_compaction_.level)) {
+				// Another thread has it, or it waits for the compactions of
+				// its levels to finish
+				return;
+			}
+			manual_compaction_.in_progress = true;
 			// return sth to be compacted @ level
 			c = versions_.CompactRange(manual_compaction_.level,
 					manual_compaction_.begin, manual_compaction_.end);
@@ -994,6 +1510,10 @@ public class DBImpl extends DB {
 							.DebugString()) + "\n");
 		} else {
 			c = versions_.PickCompaction();
+			if (c != null) {
+				// Other levels may need a compaction too: run it meanwhile
+				MaybeScheduleCompaction();
+			}
 		}
 
 		Status status = Status.OK();
@@ -1018,6 +1538,9 @@ public class DBImpl extends DB {
 			c.ReleaseInputs();
 			DeleteObsoleteFiles();
 		}
+		if (c != null) {
+			versions_.ReleaseCompaction(c);
+		}
 		// delete c;
 
 		if (status.ok()) {
@@ -1043,6 +1566,7 @@ public class DBImpl extends DB {
 				m.tmp_storage = manual_end;
 				m.begin = m.tmp_storage;
 			}
+			m.in_progress = false;
 			manual_compaction_ = null;
 		}
 	}
@@ -1518,6 +2042,14 @@ public class DBImpl extends DB {
 				case FileType.kLogFile:
 					keep = ((number >= versions_.LogNumber()) || (number == versions_
 							.PrevLogNumber()));
+					if (!keep && log_recycle_files_.contains(number)) {
+						keep = true; // waiting to be recycled
+					} else if (!keep && recyclable_logs_.remove(number)
+							&& log_recycle_files_.size() < options_.recycle_log_file_num) {
+						LOG.info("Keeping log #" + number + " for recycling");
+						log_recycle_files_.add(number);
+						keep = true;
+					}
 					break;
 				case FileType.kDescriptorFile:
 					// Keep my manifest file, and any newer incarnations'
@@ -1555,6 +2087,35 @@ public class DBImpl extends DB {
 		}
 	}
 
+	/*
+	 * A file for the new log of given number: an obsolete log kept for
+	 * recycling is written over if there is one, otherwise a new file is
+	 * created. Returns null if neither works. REQUIRES: mutex_ held
+	 */
+	_WritableFile NewLogFile(long number) {
+		String fname = filename.LogFileName(dbname_, number);
+		Long old = log_recycle_files_.poll();
+		if (old != null) {
+			LOG.info("Recycling log #" + old + " as #" + number);
+			_WritableFile file = env_.ReuseWritableFile(fname, filename
+					.LogFileName(dbname_, old));
+			if (file != null) {
+				return file;
+			}
+		}
+		return env_.NewWritableFile(fname);
+	}
+
+	// The writer of the new log of given number in "file". REQUIRES: mutex_
+	// held
+	com.leveldb.common.log.Writer NewLogWriter(_WritableFile file, long number) {
+		boolean recycle = options_.recycle_log_file_num > 0;
+		if (recycle) {
+			recyclable_logs_.add(number);
+		}
+		return new com.leveldb.common.log.Writer(file, number, recycle);
+	}
+
 	private Status RecoverLogFile(long log_number, VersionEdit edit,
 			SequenceNumber max_sequence) {
 		class LogReporter extends Reader.Reporter {
@@ -1591,7 +2152,8 @@ public class DBImpl extends DB {
 
 		// Open the log file
 		String fname = filename.LogFileName(dbname_, log_number);
-		_SequentialFile file = env_.NewSequentialFile(fname);
+		_SequentialFile file = env_.NewSequentialFile(fname,
+				options_.log_readahead_size);
 		Status status = new Status();
 		// MaybeIgnoreError(status);
 		// return status;
@@ -1606,9 +2168,16 @@ public class DBImpl extends DB {
 		// paranoid_checks==false so that corruptions cause entire commits
 		// to be skipped instead of propagating bad information (like overly
 		// large sequence numbers).
-		Reader reader = new Reader(file, reporter, true/* checksum */, 0/* initial_offset */);
+		Reader reader = new Reader(file, reporter, true/* checksum */,
+				0/* initial_offset */, log_number);
 		LOG.info("Recovering log #" + log_number);
 
+		if (options_.recovery_threads > 1) {
+			status = ReplayLogParallel(reader, reporter, edit, max_sequence);
+			file.Close();
+			return status;
+		}
+
 		// Read all the records and add to a memtable
 		byte[] scratch = new byte[0];
 		Slice record = new Slice();
@@ -1662,34 +2231,305 @@ public class DBImpl extends DB {
 		return status;
 	}
 
+	// A memtable of parallel log replay, filled from a run of log records
+	// that follows the run of the memtable before it
+	static class ReplaySegment {
+		final MemTable mem; // null after the last one
+		// estimate of the memory usage of mem once its records are in
+		long usage = 0;
+		// records handed to the inserters and not inserted yet, plus one
+		// until the reader starts the next memtable
+		final AtomicInteger unfinished = new AtomicInteger(1);
+		final CountDownLatch done = new CountDownLatch(1);
+
+		ReplaySegment(MemTable mem) {
+			this.mem = mem;
+		}
+
+		void Finished() {
+			if (unfinished.decrementAndGet() == 0) {
+				done.countDown();
+			}
+		}
+	}
+
+	// A log record on its way into a memtable; a null batch tells an
+	// inserter to stop
+	static class ReplayRecord {
+		final WriteBatch batch;
+		final ReplaySegment segment;
+
+		ReplayRecord(WriteBatch batch, ReplaySegment segment) {
+			this.batch = batch;
+			this.segment = segment;
+		}
+	}
+
+	// Records read ahead of the inserters in parallel replay
+	static final int kReplayQueueSize = 1024;
+
+	/**
+	 * Replay a log with options_.recovery_threads inserters: a reader thread
+	 * reads and checks the records and hands them out, the inserters add
+	 * them to the memtable at the same time, and this thread writes each
+	 * full memtable to level-0 while the ones after it fill. A memtable
+	 * holds a run of consecutive records, as in serial replay, so a newer
+	 * level-0 file never holds older entries of a key.
+	 */
+	private Status ReplayLogParallel(final Reader reader,
+			final Reader.Reporter reporter, VersionEdit edit,
+			SequenceNumber max_sequence) {
+		assert (mutex_.isHeldByCurrentThread());
+		final int inserters = options_.recovery_threads;
+		final BlockingQueue<ReplayRecord> records = new ArrayBlockingQueue<ReplayRecord>(
+				kReplayQueueSize);
+		final BlockingQueue<ReplaySegment> segments = new LinkedBlockingQueue<ReplaySegment>();
+		// memtables being filled or written, at most two
+		final Semaphore memtables = new Semaphore(2);
+		// the first error of an inserter or of a level-0 table
+		final AtomicReference<Status> error = new AtomicReference<Status>();
+		final long max_seq[] = { max_sequence.value };
+		final CountDownLatch stopped = new CountDownLatch(inserters + 1);
+
+		env_.StartThread(new Function() {
+			@Override
+			public void exec(Object... args) {
+				ReplaySegment segment = null;
+				try {
+					byte[] scratch = new byte[0];
+					Slice record = new Slice();
+					while (error.get() == null
+							&& reader.ReadRecord(record, scratch)) {
+						if (record.size() < 12) {
+							reporter.Corruption(record.size(), Status
+									.Corruption(new Slice(
+											"log record too small"),
+											new Slice()));
+							continue;
+						}
+						WriteBatch batch = new WriteBatch();
+						WriteBatchInternal.SetContents(batch, record);
+						long last_seq = WriteBatchInternal.Sequence(batch).value
+								+ WriteBatchInternal.Count(batch) - 1;
+						if (last_seq > max_seq[0]) {
+							max_seq[0] = last_seq;
+						}
+
+						// the memtable lags behind the records handed out: judge
+						// how full it is by them, so that it ends where
+						// serial replay would have ended it
+						if (segment != null
+								&& segment.usage > options_.write_buffer_size) {
+							segment.Finished();
+							segment = null;
+						}
+						if (segment == null) {
+							memtables.acquireUninterruptibly();
+							MemTable mem = new MemTable(internal_comparator_);
+							mem.Ref();
+							segment = new ReplaySegment(mem);
+							segments.add(segment);
+						}
+						segment.usage += record.size() - WriteBatch.kHeader
+								+ WriteBatchInternal.Count(batch)
+								* MemTable.kNodeOverhead;
+						segment.unfinished.incrementAndGet();
+						PutUninterruptibly(records, new ReplayRecord(batch,
+								segment));
+					}
+				} catch (RuntimeException e) {
+					error.compareAndSet(null, Status.IOError(new Slice(
+							"log replay failed: " + e), null));
+				} finally {
+					if (segment != null) {
+						segment.Finished();
+					}
+					segments.add(new ReplaySegment(null));
+					for (int i = 0; i < inserters; i++) {
+						PutUninterruptibly(records, new ReplayRecord(null,
+								null));
+					}
+					stopped.countDown();
+				}
+			}
+		});
+
+		for (int i = 0; i < inserters; i++) {
+			env_.StartThread(new Function() {
+				@Override
+				public void exec(Object... args) {
+					try {
+						while (true) {
+							ReplayRecord r = TakeUninterruptibly(records);
+							if (r.batch == null) {
+								break;
+							}
+							try {
+								if (error.get() == null) {
+									Status s = WriteBatchInternal.InsertInto(
+											r.batch, r.segment.mem, true);
+									MaybeIgnoreError(s);
+									if (!s.ok()) {
+										error.compareAndSet(null, s);
+									}
+								}
+							} catch (RuntimeException e) {
+								error.compareAndSet(null, Status.IOError(
+										new Slice("log replay failed: " + e),
+										null));
+							} finally {
+								r.segment.Finished();
+							}
+						}
+					} finally {
+						stopped.countDown();
+					}
+				}
+			});
+		}
+
+		Status status = Status.OK();
+		while (true) {
+			ReplaySegment segment = TakeUninterruptibly(segments);
+			if (segment.mem == null) {
+				break;
+			}
+			AwaitUninterruptibly(segment.done);
+			if (status.ok() && error.get() == null) {
+				status = WriteLevel0Table(segment.mem, edit, null);
+				if (!status.ok()) {
+					// Reflect errors immediately so that conditions like
+					// full file-systems cause the DB::Open() to fail.
+					error.compareAndSet(null, status);
+				}
+			}
+			segment.mem.Unref();
+			memtables.release();
+		}
+		AwaitUninterruptibly(stopped);
+
+		if (status.ok() && error.get() != null) {
+			status = error.get();
+		}
+		max_sequence.value = max_seq[0];
+		return status;
+	}
+
+	static void AwaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static <T> T TakeUninterruptibly(BlockingQueue<T> queue) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return queue.take();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	static <T> void PutUninterruptibly(BlockingQueue<T> queue, T x) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(x);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Schedule the background work there is: a flush of imm_ in the
+	 * high-priority pool, and one more compaction in the low-priority pool
+	 * if one can start next to the running ones. A compaction that has
+	 * picked its levels calls this again, so that compactions of other
+	 * levels start one after the other, up to
+	 * options_.max_background_compactions.
+	 */
 	public void MaybeScheduleCompaction() {
 		assert (mutex_.isHeldByCurrentThread());
-		if (bg_compaction_scheduled_) {
-			// Already scheduled
-			LOG.info("Already scheduled");
-		} else if (shutting_down_.get()) {
+		if (shutting_down_.get()) {
 			// DB is being deleted; no more background compactions
 			LOG.info("DB is being deleted");
-		} else if (imm_ == null && manual_compaction_ == null
-				&& !versions_.NeedsCompaction()) {
+			return;
+		}
+
+		if (imm_ != null && !bg_flush_scheduled_) {
+			bg_flush_scheduled_ = true;
+			LOG.info("Schedule new background flush");
+			env_.Schedule(new BGFlushWork(), Env.Priority.kHigh);
+		}
+
+		if (bg_compaction_scheduled_ >= options_.max_background_compactions) {
+			// Already scheduled
+			LOG.info("Already scheduled");
+		} else if (!HasCompactionWork()) {
 			// No work to be done
 			LOG.info("No work to be done");
 		} else {
-			bg_compaction_scheduled_ = true;
+			bg_compaction_scheduled_++;
 			// env_.Schedule(&DBImpl::BGWork, this);
 			LOG.info("Schedule new background thread");
-			env_.Schedule(new BGWork());
+			env_.Schedule(new BGWork(), Env.Priority.kLow);
 		}
 	}
 
+	// Whether BackgroundCompaction() would find a compaction to run now
+	private boolean HasCompactionWork() {
+		ManualCompaction m = manual_compaction_;
+		if (m != null) {
+			// automatic compactions wait for the manual one
+			return !m.in_progress && versions_.CanCompact(m.level);
+		}
+		return versions_.NeedsCompaction();
+	}
+
+	void BackgroundFlushCall() {
+		mutex_.lock();
+		assert (bg_flush_scheduled_);
+		if (!shutting_down_.get() && imm_ != null) {
+			CompactMemTable();
+		}
+		bg_flush_scheduled_ = false;
+
+		// The new level-0 file may call for a compaction
+		MaybeScheduleCompaction();
+		bg_cv_.signalAll(); // Wakeup MakeRoomForWrite() if necessary
+		mutex_.unlock();
+	}
+
 	void BackgroundCall() {
 		mutex_.lock();
 		// try {
-		assert (bg_compaction_scheduled_);
+		assert (bg_compaction_scheduled_ > 0);
 		if (!shutting_down_.get()) {
 			BackgroundCompaction();
 		}
-		bg_compaction_scheduled_ = false;
+		bg_compaction_scheduled_--;
 
 		// Previous compaction may have produced too many files in a level,
 		// so reschedule another compaction if needed.
@@ -1708,4 +2548,11 @@ public class DBImpl extends DB {
 
 	}
 
+	class BGFlushWork implements Function {
+		@Override
+		public void exec(Object... args) {
+			BackgroundFlushCall();
+		}
+	}
+
 }
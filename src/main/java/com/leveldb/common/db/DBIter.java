@@ -54,6 +54,12 @@ class DBIter extends Iterator {
 		return valid_;
 	}
 
+	public void Close() {
+		iter_.Close();
+		valid_ = false;
+		super.Close();
+	}
+
 	public Slice key() {
 		assert (valid_);
 		return (direction_ == Direction.kForward) ? InternalKey
@@ -0,0 +1,40 @@
+package com.leveldb.common.db;
+
+import com.leveldb.common.FilterPolicy;
+import com.leveldb.common.Slice;
+
+/**
+ * Filter policy wrapper that converts from internal keys to user keys, so that
+ * tables built by the DB (which hold internal keys) filter on the user part
+ * only.
+ *
+ * @author wlu
+ *
+ */
+public class InternalFilterPolicy extends FilterPolicy {
+	private final FilterPolicy user_policy_;
+
+	public InternalFilterPolicy(FilterPolicy p) {
+		user_policy_ = p;
+	}
+
+	@Override
+	public String Name() {
+		return user_policy_.Name();
+	}
+
+	@Override
+	public byte[] CreateFilter(Slice[] keys, int n) {
+		// strip the {sequence, type} trailer from each key
+		Slice[] mkey = new Slice[n];
+		for (int i = 0; i < n; i++) {
+			mkey[i] = InternalKey.ExtractUserKey(keys[i]);
+		}
+		return user_policy_.CreateFilter(mkey, n);
+	}
+
+	@Override
+	public boolean KeyMayMatch(Slice key, Slice f) {
+		return user_policy_.KeyMayMatch(InternalKey.ExtractUserKey(key), f);
+	}
+}
@@ -66,15 +66,16 @@ public class InternalKey {
 		return new Slice(rep_);
 	}
 
-	// get first bytes excpt the last 8 bytes
+	// get first bytes excpt the last 8 bytes; refers to internal_key
 	public static Slice ExtractUserKey(Slice internal_key) {
-		return new Slice(
-				util.head(internal_key.data(), internal_key.size() - 8));
+		return new Slice(internal_key.array(), internal_key.getOffset(),
+				internal_key.size() - 8);
 	}
 
-	// get the last 8 bytes
+	// get the last 8 bytes; refers to internal_key
 	public static Slice ExtractNum(Slice internal_key) {
-		return new Slice(util.end(internal_key.data(), 8));
+		return new Slice(internal_key.array(), internal_key.getOffset()
+				+ internal_key.size() - 8, 8);
 	}
 
 	public Slice user_key() {
@@ -10,6 +10,7 @@ import com.leveldb.common.PairComparable;
 //import com.leveldb.common.Table;
 import com.leveldb.common.comparator.InternalKeyComparator;
 import com.leveldb.common.db.MemTable.KeyComparator;
+import com.leveldb.util.Arena;
 import com.leveldb.util.SequenceNumber;
 import com.leveldb.util.ValueType;
 import com.leveldb.util.coding;
@@ -67,19 +68,19 @@ class MemTableIterator extends com.leveldb.common.Iterator {
 
 	}
 
-	private ByteCollection l4key_value = null;
-
+	// both refer to the entry in the arena, which never changes
 	@Override
 	public Slice key() {
-		l4key_value = new ByteCollection(iter_.key().data(), 0);
-		return coding.GetLengthPrefixedSlice(l4key_value);// get
-															// user-key|[sequencenumber
-															// <<8 | type]
+		Slice entry = iter_.key();
+		// user-key|[sequencenumber <<8 | type]
+		return coding.GetLengthPrefixedSlice(entry.array(), entry.getOffset());
 	}
 
 	@Override
 	public Slice value() {
-		return coding.GetLengthPrefixedSlice(l4key_value);
+		Slice key = key();
+		return coding.GetLengthPrefixedSlice(key.array(), key.getOffset()
+				+ key.size());
 	}
 
 	@Override
@@ -121,8 +122,9 @@ public class MemTable {
 
 		@Override
 		public int compare(Slice k, Slice k2) {
-			Slice as = coding.GetLengthPrefixedSlice(k.data());
-			Slice bs = coding.GetLengthPrefixedSlice(k2.data());
+			Slice as = coding.GetLengthPrefixedSlice(k.array(), k.getOffset());
+			Slice bs = coding.GetLengthPrefixedSlice(k2.array(),
+					k2.getOffset());
 			return comparator.Compare(as, bs);
 		}
 	}
@@ -155,7 +157,7 @@ public class MemTable {
 	// REQUIRES: external synchronization to prevent simultaneous
 	// operations on the same MemTable.
 	public long ApproximateMemoryUsage() {
-		return approximateMemoryUsage.get();
+		return arena_.MemoryUsage() + entries_.get() * kNodeOverhead;
 	}
 
 	// Return an iterator that yields the contents of the memtable.
@@ -173,6 +175,17 @@ public class MemTable {
 	// Typically value will be empty if type==kTypeDeletion.
 	public void Add(SequenceNumber seq, int /* ValueType */type, Slice key,
 			Slice value) {
+		Add(seq, type, key, value, false);
+	}
+
+	// Add() for writers that run at the same time, all through this method.
+	public void AddConcurrently(SequenceNumber seq, int /* ValueType */type,
+			Slice key, Slice value) {
+		Add(seq, type, key, value, true);
+	}
+
+	private void Add(SequenceNumber seq, int /* ValueType */type, Slice key,
+			Slice value, boolean concurrently) {
 		// Format of an entry is concatenation of:
 		// key_size : varint32 of internal_key.size()
 		// key bytes : char[internal_key.size()]
@@ -183,16 +196,32 @@ public class MemTable {
 		int internal_key_size = key_size + 8;
 		int encoded_len = coding.VarintLength(internal_key_size)
 				+ internal_key_size + coding.VarintLength(val_size) + val_size;
-		byte[] buf = new byte[0];
-		// char* buf = arena_.Allocate(encoded_len);
-		buf = util.addN(coding.EncodeVarint32(internal_key_size), key.data(),
-				util.toBytes((long) (seq.value << 8) | type),
-				coding.EncodeVarint32(val_size), value.data());
-		// assert((p + val_size) - buf == encoded_len);
-		assert (buf.length == encoded_len);
-		table_.Insert(new Slice(buf));
-		// update the size of memtable
-		approximateMemoryUsage.addAndGet(buf.length);
+		long addr;
+		byte[] buf;
+		if (concurrently) {
+			synchronized (arena_) {
+				addr = arena_.Allocate(encoded_len);
+				buf = arena_.Slab(addr);
+			}
+		} else {
+			addr = arena_.Allocate(encoded_len);
+			buf = arena_.Slab(addr);
+		}
+		int start = Arena.Offset(addr);
+		int p = coding.EncodeVarint32(buf, start, internal_key_size);
+		System.arraycopy(key.array(), key.getOffset(), buf, p, key_size);
+		p += key_size;
+		p = util.putLong(buf, p, (long) (seq.value << 8) | type);
+		p = coding.EncodeVarint32(buf, p, val_size);
+		System.arraycopy(value.array(), value.getOffset(), buf, p, val_size);
+		assert ((p + val_size) - start == encoded_len);
+		// the node refers to the entry where it lies in the arena
+		if (concurrently) {
+			table_.InsertConcurrently(new Slice(buf, start, encoded_len));
+		} else {
+			table_.Insert(new Slice(buf, start, encoded_len));
+		}
+		entries_.incrementAndGet();
 	}
 
 	// If memtable contains a value for key, store it in *value and return true.
@@ -216,7 +245,8 @@ public class MemTable {
 			// sequence number since the Seek() call above should have skipped
 			// all entries with overly large sequence numbers.
 			Slice entry = iter.key();
-			ByteCollection entry_ = new ByteCollection(entry.data(), 0);
+			ByteCollection entry_ = new ByteCollection(entry.array(),
+					entry.getOffset());
 			int key_length = coding.GetVarint32(entry_); // get the key length
 			if (comparator_.comparator.user_comparator().Compare(
 					new Slice(entry_.bytes, entry_.curr_pos, key_length - 8),
@@ -228,14 +258,18 @@ public class MemTable {
 				switch ((int) (tag & 0xff)) {
 				case ValueType.kTypeValue: {
 					entry_.curr_pos += 8;
-					Slice v = coding.GetLengthPrefixedSlice(entry_);
-					getValue = new Slice(v.data()); // deep copy
+					// a copy: the entry stays in the arena
+					getValue = coding.GetLengthPrefixedSlice(entry_);
 					// wlu, 2012-7-7
-					value.setData_(getValue.data());
+					value.setData_(getValue.array());
 					return getValue;
 				}
 				case ValueType.kTypeDeletion:
-					// has been deleted
+					// has been deleted; tell it apart from a key the memtable
+					// does not have, when the caller asks
+					if (s != null) {
+						s.Status_(Status.NotFound(new Slice(), null));
+					}
 					return null;
 				}
 			}
@@ -247,9 +281,13 @@ public class MemTable {
 
 	KeyComparator comparator_;
 	int refs_;
-	// Arena arena_;
+	// Encoded entries live in the arena; what stays on the heap per entry is
+	// its skiplist node, the node's links and the Slice naming the entry,
+	// about kNodeOverhead bytes together.
+	static final int kNodeOverhead = 96;
+	private final Arena arena_ = new Arena();
+	private final AtomicLong entries_ = new AtomicLong(0);
 	private final SkipList<Slice, KeyComparator> table_;
-	private final AtomicLong approximateMemoryUsage = new AtomicLong(0);
 
 	// No copying allowed
 }
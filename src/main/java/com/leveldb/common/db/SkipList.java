@@ -1,73 +1,77 @@
 package com.leveldb.common.db;
 
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Random;
-import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import com.leveldb.common.AtomicPointer;
 import com.leveldb.common.PairComparable;
 import com.leveldb.common.comparator.InternalKeyComparator;
 
 class Node<Key> {
-	@SuppressWarnings("unchecked")
-	Node(Key k, int iMaxHeight) {
+	Node(Key k, int height) {
 		key = k;
-		next_ = new AtomicPointer[iMaxHeight];
-		for (int i = 0; i < iMaxHeight; i++) {
-			next_[i] = new AtomicPointer<Node<Key>>(null);
-		}
+		next_ = new AtomicReferenceArray<Node<Key>>(height);
 	}
 
-	Key key;
+	// Immutable once the node is published, readers never see it change
+	final Key key;
 
 	// Accessors/mutators for links. Wrapped in methods so we can
 	// add the appropriate barriers as necessary.
 	Node<Key> Next(int n) {
 		assert (n >= 0);
-		// Use an 'acquire load' so that we observe a fully initialized
-		// version of the returned Node.
-		return next_[n].Acquire_Load();
+		// Use an 'acquire load' (volatile read) so that we observe a fully
+		// initialized version of the returned Node.
+		return next_.get(n);
 	}
 
 	void SetNext(int n, Node<Key> x) {
 		assert (n >= 0);
-		// Use a 'release store' so that anybody who reads through this
-		// pointer observes a fully initialized version of the inserted
-		// node.
-		next_[n].Release_Store(x);
+		// Use a 'release store' (volatile write) so that anybody who reads
+		// through this pointer observes a fully initialized version of the
+		// inserted node.
+		next_.set(n, x);
 	}
 
 	// No-barrier variants that can be safely used in a few locations.
+	// AtomicReferenceArray has no plain load, get() is as cheap as it gets.
 	Node<Key> NoBarrier_Next(int n) {
 		assert (n >= 0);
-		return next_[n].NoBarrier_Load();
+		return next_.get(n);
 	}
 
 	void NoBarrier_SetNext(int n, Node<Key> x) {
 		assert (n >= 0);
-		next_[n].NoBarrier_Store(x);
+		next_.lazySet(n, x);
+	}
+
+	// Link x at level n if the link is still "expected"
+	boolean CasNext(int n, Node<Key> expected, Node<Key> x) {
+		assert (n >= 0);
+		return next_.compareAndSet(n, expected, x);
+	}
+
+	int Height() {
+		return next_.length();
 	}
 
 	public String toString() {
-		String s = "[" + key.toString() + "]";
-		int idx = 0;
-		for (AtomicPointer<Node<Key>> n : next_) {
-			if (n.Acquire_Load() != null) {
-				s += (idx + ": " + n.Acquire_Load().toString());
+		String s = "[" + key + "]";
+		for (int i = 0; i < next_.length(); i++) {
+			Node<Key> n = next_.get(i);
+			if (n != null) {
+				s += (i + ": [" + n.key + "]");
 			}
-			idx += 1;
 		}
 		return s;
 	}
 
 	// Array of length equal to the node height. next_[0] is lowest level
 	// link.
-	AtomicPointer<Node<Key>> next_[];
+	private final AtomicReferenceArray<Node<Key>> next_;
 
 }
 
@@ -147,24 +151,55 @@ class SkipListIterator<Key, Comparator extends PairComparable<Key>> {
 	// Intentionally copyable
 }
 
+/**
+ * Thread safety
+ * -------------
+ * 
+ * Writes require external synchronization, most likely a mutex, unless
+ * all of them go through InsertConcurrently(). Reads require a guarantee
+ * that the SkipList will not be destroyed while the read is in progress.
+ * Apart from that, reads progress without any internal locking or
+ * synchronization.
+ * 
+ * Invariants:
+ * 
+ * (1) Allocated nodes are never deleted until the SkipList is destroyed.
+ * 
+ * (2) The contents of a Node except for the next/prev pointers are immutable
+ * after the Node has been linked into the SkipList. Only Insert() modifies
+ * the list, and it is careful to initialize a node and use release-stores to
+ * publish the nodes in one or more lists.
+ */
 public class SkipList<Key, Comparator extends PairComparable<Key>> {
 
 	// parameters
-	private final int kMaxHeight = 12;
+	static final int kMaxHeight = 12;
 
 	// Immutable after construction
 	// Arena* const arena_; // Arena used for allocations of nodes
 
-	Node<Key> head_;
+	final Node<Key> head_;
 
 	// Modified only by Insert(). Read racily by readers, but stale
 	// values are ok.
-	AtomicPointer<Integer> max_height_; // Height of the entire list
+	private volatile int max_height_; // Height of the entire list
 
-	Comparator compare_;
+	// InsertConcurrently() raises max_height_ by compare-and-set
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<SkipList> max_height_updater_ = AtomicIntegerFieldUpdater
+			.newUpdater(SkipList.class, "max_height_");
 
-	private int GetMaxHeight() {
-		return (max_height_.NoBarrier_Load());
+	// Node heights for InsertConcurrently(), one generator per thread
+	private static final ThreadLocal<Random> concurrent_rnd_ = new ThreadLocal<Random>() {
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	final Comparator compare_;
+
+	int GetMaxHeight() {
+		return max_height_;
 	}
 
 	public Node<Key> FindLast() {
@@ -185,18 +220,16 @@ public class SkipList<Key, Comparator extends PairComparable<Key>> {
 		}
 	}
 
-	// Read/written only by Insert().
-	Random rnd_;
+	// Read/written only by Insert(): the seed of the same minimal
+	// generator as leveldb's util/random.h, which only the writer touches
+	private int rnd_seed_;
 
 	/* construction */
 	public SkipList(Comparator icomparator) {
 		compare_ = icomparator;
-		head_ = new Node<Key>(null /* any key will do */, kMaxHeight); // TODO
-																		// need
-		// more
-		// consideration
-		max_height_ = new AtomicPointer<Integer>(1);
-		rnd_ = new Random();
+		head_ = new Node<Key>(null /* any key will do */, kMaxHeight);
+		max_height_ = 1;
+		rnd_seed_ = 0xdeadbeef & 0x7fffffff;
 		for (int i = 0; i < kMaxHeight; i++) {
 			head_.SetNext(i, null);
 		}
@@ -222,18 +255,21 @@ public class SkipList<Key, Comparator extends PairComparable<Key>> {
 		}
 	}
 
-	/* Insert a key into the list */
+	/*
+	 * Insert a key into the list.
+	 * 
+	 * REQUIRES: nothing that compares equal to key is currently in the list.
+	 * REQUIRES: external synchronization of writers; readers need none.
+	 */
+	@SuppressWarnings("unchecked")
 	public void Insert(Key key) {
-		List<Node<Key>> prev = new ArrayList<Node<Key>>(kMaxHeight);
-		for (int i = 0; i < kMaxHeight; i++) {
-			prev.add(new Node<Key>(null, kMaxHeight));
-		}
+		Node<Key> prev[] = (Node<Key>[]) new Node<?>[kMaxHeight];
 		Node<Key> x = FindGreaterOrEqual(key, prev);
 		assert (x == null || compare_.compare(key, x.key) != 0);
 		int height = RandomHeight();
 		if (height > GetMaxHeight()) {
 			for (int i = GetMaxHeight(); i < height; i++) {
-				prev.set(i, head_);
+				prev[i] = head_;
 			}
 			// It is ok to mutate max_height_ without any synchronization
 			// with concurrent readers. A concurrent reader that observes
@@ -242,19 +278,82 @@ public class SkipList<Key, Comparator extends PairComparable<Key>> {
 			// the loop below. In the former case the reader will
 			// immediately drop to the next level since NULL sorts after all
 			// keys. In the latter case the reader will use the new node.
-			max_height_.NoBarrier_Store(height);
+			max_height_ = height;
 		}
 
 		x = new Node<Key>(key, height);
 		for (int i = 0; i < height; i++) {
 			// NoBarrier_SetNext() suffices since we will add a barrier when
 			// we publish a pointer to "x" in prev[i].
-			x.NoBarrier_SetNext(i, prev.get(i).NoBarrier_Next(i));
-			prev.get(i).SetNext(i, x);
+			x.NoBarrier_SetNext(i, prev[i].NoBarrier_Next(i));
+			prev[i].SetNext(i, x);
 		}
 
 	}
 
+	/*
+	 * Insert() for writers that run at the same time: each level is linked
+	 * with a compare-and-set from the bottom up, and a writer that loses the
+	 * race for a link searches that level again from its predecessor.
+	 * 
+	 * REQUIRES: nothing that compares equal to key is in the list, or is
+	 * being inserted.
+	 * REQUIRES: Insert() is not running at the same time.
+	 */
+	@SuppressWarnings("unchecked")
+	public void InsertConcurrently(Key key) {
+		int height = RandomHeight(concurrent_rnd_.get());
+		int max_height = GetMaxHeight();
+		while (height > max_height) {
+			if (max_height_updater_.compareAndSet(this, max_height, height)) {
+				// Readers may see the new height before the new links, as
+				// in Insert()
+				max_height = height;
+				break;
+			}
+			max_height = GetMaxHeight();
+		}
+
+		Node<Key> prev[] = (Node<Key>[]) new Node<?>[kMaxHeight];
+		Node<Key> next[] = (Node<Key>[]) new Node<?>[kMaxHeight];
+		Node<Key> x = head_;
+		for (int level = max_height - 1; level >= 0; level--) {
+			FindSpliceForLevel(key, x, level, prev, next);
+			x = prev[level];
+		}
+
+		x = new Node<Key>(key, height);
+		for (int i = 0; i < height; i++) {
+			while (true) {
+				// the compare-and-set below publishes this link
+				x.NoBarrier_SetNext(i, next[i]);
+				if (prev[i].CasNext(i, next[i], x)) {
+					break;
+				}
+				// Another node went in between; prev[i] still sorts before
+				// key, so start over from there
+				FindSpliceForLevel(key, prev[i], i, prev, next);
+			}
+		}
+	}
+
+	// Set prev[level] and next[level] to the nodes key goes between at
+	// "level", searching from "before", which sorts before key.
+	private void FindSpliceForLevel(Key key, Node<Key> before, int level,
+			Node<Key> prev[], Node<Key> next[]) {
+		Node<Key> x = before;
+		while (true) {
+			Node<Key> n = x.Next(level);
+			if (KeyIsAfterNode(key, n)) {
+				x = n;
+			} else {
+				prev[level] = x;
+				next[level] = n;
+				return;
+			}
+		}
+	}
+
 	// whether key is contained in the list
 	public boolean Contains(Key key) {
 		Node<Key> x = FindGreaterOrEqual(key, null);
@@ -270,8 +369,7 @@ public class SkipList<Key, Comparator extends PairComparable<Key>> {
 		// increase length by i with probability (0.25)^(i-1) * (0.75)
 		int kBranching = 4;
 		int height = 1;
-		while (height < kMaxHeight
-				&& ((Math.abs(rnd_.nextInt()) % kBranching) == 0)) {
+		while (height < kMaxHeight && ((NextRandom() % kBranching) == 0)) {
 			height++;
 		}
 		assert (height > 0);
@@ -279,11 +377,39 @@ public class SkipList<Key, Comparator extends PairComparable<Key>> {
 		return height;
 	}
 
-	// find and return the node whose key is >= input key;
-	// set prev[0] to be the node right before the returned one (
-	// to be as the node's previous). it is interesting to find the
-	// return statement is ...
-	public Node<Key> FindGreaterOrEqual(Key key, List<Node<Key>> prev) {
+	// RandomHeight() from the generator of the calling thread
+	private static int RandomHeight(Random rnd) {
+		int kBranching = 4;
+		int height = 1;
+		while (height < kMaxHeight && rnd.nextInt(kBranching) == 0) {
+			height++;
+		}
+		return height;
+	}
+
+	// seed_ = (seed_ * A) % M, where M = 2^31-1 and A = 16807
+	private int NextRandom() {
+		final long M = 2147483647L; // 2^31-1
+		final long A = 16807; // bits 14, 8, 7, 5, 2, 1, 0
+		long product = rnd_seed_ * A;
+		// Compute (product % M) using the fact that ((x << 31) % M) == x.
+		long seed = (product >>> 31) + (product & M);
+		// The first reduction may overflow by 1 bit, so we may need to
+		// repeat. mod == M is not possible; using > allows the faster
+		// sign-bit-based test.
+		if (seed > M) {
+			seed -= M;
+		}
+		rnd_seed_ = (int) seed;
+		return rnd_seed_;
+	}
+
+	// Return the earliest node that comes at or after key. Return null if
+	// there is no such node.
+	//
+	// If prev is non-null, fills prev[level] with pointer to previous node
+	// at "level" for every level in [0..max_height_-1].
+	public Node<Key> FindGreaterOrEqual(Key key, Node<Key> prev[]) {
 		Node<Key> x = head_;
 		int level = GetMaxHeight() - 1;
 		while (true) {
@@ -292,9 +418,9 @@ public class SkipList<Key, Comparator extends PairComparable<Key>> {
 				// Keep searching in this list
 				x = next;
 			} else {
+				if (prev != null)
+					prev[level] = x;
 				if (level == 0) {
-					if (prev != null)
-						prev.set(level, x);
 					return next;
 				} else {
 					// Switch to next list
@@ -1,78 +1,132 @@
 package com.leveldb.common.db;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.leveldb.common.Cache;
 import com.leveldb.common.Env;
 import com.leveldb.common.Function;
 import com.leveldb.common.Iterator;
 import com.leveldb.common.Slice;
+import com.leveldb.common.Status;
 import com.leveldb.common.Table;
 import com.leveldb.common.file._RandomAccessFile;
 import com.leveldb.common.file.filename;
 import com.leveldb.common.options.Options;
 import com.leveldb.common.options.ReadOptions;
-import com.leveldb.util.util;
 
 /**
  * 2012-4-9
- * 
+ *
+ * Open tables by file number. Hits take no lock: the tables are kept in a
+ * ConcurrentHashMap, whose segments shard it. The first thread to miss on a
+ * file opens it, others missing on the same file wait for that open instead
+ * of doing their own. Tables looked up as level-0 files are pinned, all
+ * others are evicted in CLOCK order once there are more than "entries".
+ * Each lookup holds a reference to the entry until it is done with the
+ * table, and an evicted table's file is closed once the last is released.
+ *
  * @author wlu
- * 
+ *
  */
 public class TableCache {
 
 	Log LOG = LogFactory.getLog(TableCache.class);
-	// file & table
-	class TableAndFile {
+
+	// file & table, or a table still being opened. GetTable() hands it out
+	// referenced, to be given back with Release().
+	public static class TableAndFile {
+		final long file_number;
 		_RandomAccessFile file;
 		Table table;
-	}
+		// set once the open finished, whether or not it succeeded
+		volatile boolean done = false;
+		// looked up since the clock hand last passed it
+		volatile boolean referenced = true;
+		// a level-0 table, kept until Evict()
+		volatile boolean pinned = false;
+		// one held by the cache while the entry is in tables_, one by each
+		// user of the table; the file is closed when the last goes
+		final AtomicInteger refs = new AtomicInteger(1);
 
-	// delete both the table and file
-	class DeleteTableAndFile implements Function {
-		TableAndFile tandf;
+		TableAndFile(long number) {
+			file_number = number;
+		}
 
-		public DeleteTableAndFile(TableAndFile taf) {
-			tandf = taf;
+		public Table table() {
+			return table;
 		}
 
-		@Override
-		public void exec(Object... args) {
-			LOG.info("File closed in Cache delete Function: " + tandf.file.FileName() );
-			tandf.file.Close();
-			tandf.file = null;
-			tandf.table = null;
+		// take a reference, unless the last one is already gone
+		boolean Ref() {
+			while (true) {
+				int r = refs.get();
+				if (r == 0) {
+					return false;
+				}
+				if (refs.compareAndSet(r, r + 1)) {
+					return true;
+				}
+			}
 		}
-	}
 
-	// release handle in the cache
-	class UnrefEntryCacheAndHandle implements Function {
-		Cache c;
-		Cache.Handle h;
+		// wait for the open, return whether it succeeded
+		boolean Await() {
+			if (!done) {
+				synchronized (this) {
+					while (!done) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return false;
+						}
+					}
+				}
+			}
+			return table != null;
+		}
 
-		public UnrefEntryCacheAndHandle(Cache ic, Cache.Handle ih) {
-			c = ic;
-			h = ih;
+		synchronized void Finish(_RandomAccessFile f, Table t) {
+			file = f;
+			table = t;
+			done = true;
+			notifyAll();
 		}
+	}
 
+	// releases the table of an iterator: (cache, entry)
+	static class ReleaseTable implements Function {
 		@Override
 		public void exec(Object... args) {
-			c.Release(h);
+			((TableCache) args[0]).Release((TableAndFile) args[1]);
 		}
-
 	}
 
+	static final Function release_table_ = new ReleaseTable();
+
 	TableCache(String dbname, Options options, int entries) {
 		env_ = options.env;
 		dbname_ = dbname;
 		options_ = options;
-		cache_ = Cache.NewLRUCache(entries);
+		capacity_ = entries;
+		tables_ = new ConcurrentHashMap<Long, TableAndFile>(
+				Math.max(16, entries), 0.75f, 16);
+		clock_ = new ConcurrentLinkedQueue<TableAndFile>();
+		size_ = new AtomicInteger(0);
 	}
-	
-	public void Destroy(){
-		cache_.Destroy();
+
+	public void Destroy() {
+		for (TableAndFile tf : tables_.values()) {
+			if (tables_.remove(tf.file_number, tf)) {
+				Release(tf);
+			}
+		}
+		clock_.clear();
+		size_.set(0);
 	}
 
 	/*
@@ -81,68 +135,216 @@ public class TableCache {
 	 * also sets "tableptr" to point to the Table object underlying the
 	 * returned iterator, or NULL if no Table object underlies the returned
 	 * iterator. The returned "tableptr" object is owned by the cache and
-	 * should not be deleted, and is valid for as long as the returned iterator
-	 * is live.
-	 * 
-	 * inner Cache
-	 * Key: filenumber
-	 * Value: file & table 
-	 * 
+	 * should not be deleted, and is valid until the returned iterator is
+	 * closed, which releases the table.
+	 *
 	 * @return iterator over the table
 	 */
 	public Iterator NewIterator(ReadOptions options, long file_number,
 			long file_size, Table[] tableptr) {
+		return NewIterator(options, file_number, file_size, tableptr, false);
+	}
+
+	// As above, pinning the table if "pin" (a level-0 file)
+	public Iterator NewIterator(ReadOptions options, long file_number,
+			long file_size, Table[] tableptr, boolean pin) {
 		if (tableptr != null) {
 			tableptr[0] = null;
 		}
 
-		byte[] buf = util.toBytes(file_number);
-		Slice key = new Slice(buf);
-		Cache.Handle handle = cache_.Lookup(key);
-		if (handle == null) {
-			String fname = filename.TableFileName(dbname_, file_number);
-			_RandomAccessFile file = null;
-			Table table = null;
-			file = env_.NewRandomAccessFile(fname);
+		TableAndFile tf = FindTable(file_number, file_size, pin);
+		if (tf == null) {
+			return Iterator.NewErrorIterator(null);
+		}
+
+		Iterator result = tf.table.NewIterator(options);
+		result.RegisterCleanup(release_table_, this, tf);
+		if (tableptr != null) {
+			tableptr[0] = tf.table;
+		}
+
+		return result;
+	}
+
+	/*
+	 * If a seek to internal key "k" in specified file finds an entry, call
+	 * saver.exec(arg, found_key, found_value). Unlike NewIterator(), no
+	 * iterator is built over the table.
+	 */
+	public Status Get(ReadOptions options, long file_number, long file_size,
+			Slice k, Object arg, Function saver) {
+		return Get(options, file_number, file_size, k, arg, saver, false);
+	}
+
+	// As above, pinning the table if "pin" (a level-0 file)
+	public Status Get(ReadOptions options, long file_number, long file_size,
+			Slice k, Object arg, Function saver, boolean pin) {
+		TableAndFile tf = FindTable(file_number, file_size, pin);
+		if (tf == null) {
+			return Status.IOError(new Slice("cannot open table file "
+					+ filename.TableFileName(dbname_, file_number)), null);
+		}
+		try {
+			return tf.table.InternalGet(options, k, arg, saver);
+		} finally {
+			Release(tf);
+		}
+	}
+
+	/*
+	 * The entry of the table of given file number, opened if it is not in the
+	 * cache yet, or null if it can not be opened. For callers that probe one
+	 * table many times, like MultiGet(), and look it up only once. The table
+	 * stays open until the entry is given back with Release().
+	 */
+	public TableAndFile GetTable(long file_number, long file_size) {
+		return GetTable(file_number, file_size, false);
+	}
+
+	// As above, pinning the table if "pin" (a level-0 file)
+	public TableAndFile GetTable(long file_number, long file_size, boolean pin) {
+		return FindTable(file_number, file_size, pin);
+	}
+
+	// Give back an entry from GetTable()
+	public void Release(TableAndFile tf) {
+		if (tf.refs.decrementAndGet() == 0) {
+			Close(tf);
+		}
+	}
 
-			table = Table.Open(options_, file, file_size);
+	/*
+	 * Look up (or open and insert) the table of given file number, return its
+	 * entry referenced, or null if it can not be opened. "pin" says whether
+	 * the table is a level-0 file now; a file moved down a level is unpinned
+	 * on its next lookup.
+	 */
+	TableAndFile FindTable(long file_number, long file_size, boolean pin) {
+		Long key = file_number;
+		while (true) {
+			TableAndFile tf = tables_.get(key);
+			if (tf == null) {
+				TableAndFile fresh = new TableAndFile(file_number);
+				tf = tables_.putIfAbsent(key, fresh);
+				if (tf == null) {
+					// the opener's reference, taken before the sweep below
+					// may evict the entry
+					tf = fresh;
+					tf.refs.incrementAndGet();
+					if (!Open(tf, file_size)) {
+						return null;
+					}
+					clock_.add(tf);
+					if (size_.incrementAndGet() > capacity_) {
+						EvictSome();
+					}
+					tf.pinned = pin;
+					return tf;
+				}
+			}
+			if (!tf.Await()) {
+				return null;
+			}
+			if (!tf.Ref()) {
+				// evicted and closed since the lookup: open it again
+				continue;
+			}
+			tf.referenced = true;
+			if (tf.pinned != pin) {
+				tf.pinned = pin;
+			}
+			return tf;
+		}
+	}
 
+	// open the table of tf, return whether it succeeded
+	private boolean Open(TableAndFile tf, long file_size) {
+		String fname = filename.TableFileName(dbname_, tf.file_number);
+		_RandomAccessFile file = null;
+		Table table = null;
+		try {
+			if (options_.allow_mmap_reads) {
+				file = env_.NewMmapRandomAccessFile(fname,
+						options_.max_mmap_bytes);
+			} else {
+				file = env_.NewRandomAccessFile(fname);
+			}
+			if (file != null) {
+				table = Table.Open(options_, file, file_size);
+				if (table == null) {
+					file.Close();
+					file = null;
+				}
+			}
+		} finally {
 			if (table == null) {
-				file.Close();
-				file = null;
 				// We do not cache error results so that if the error is
-				// transient,
-				// or somebody repairs the file, we recover automatically.
-				return Iterator.NewErrorIterator(null);
+				// transient, or somebody repairs the file, we recover
+				// automatically.
+				tables_.remove(tf.file_number, tf);
 			}
-
-			TableAndFile tf = new TableAndFile();
-			tf.file = file;
-			tf.table = table;
-			Function DeleteEntry = new DeleteTableAndFile(tf);
-			handle = cache_.Insert(key, tf, 1, DeleteEntry);
+			// wake up the waiters even if the open threw
+			tf.Finish(file, table);
 		}
+		return table != null;
+	}
 
-		Table table = ((TableAndFile) (cache_.Value(handle))).table;
-		Iterator result = table.NewIterator(options);
-
-		Function UnrefEntry = new UnrefEntryCacheAndHandle(cache_, handle);
-		result.RegisterCleanup(UnrefEntry, cache_, handle);
-		if (tableptr != null) {
-			tableptr[0] = table;
+	// Sweep the clock until the cache is back within capacity. Entries
+	// referenced since the last sweep get a second chance, pinned ones are
+	// passed over; gives up after two rounds if everything is pinned. The
+	// file of an evicted table stays open while the table is in use.
+	private void EvictSome() {
+		synchronized (clock_) {
+			int budget = 2 * size_.get();
+			while (size_.get() > capacity_ && budget-- > 0) {
+				TableAndFile tf = clock_.poll();
+				if (tf == null) {
+					break;
+				}
+				if (tables_.get(tf.file_number) != tf) {
+					// already closed by Evict()
+					size_.decrementAndGet();
+				} else if (tf.pinned || tf.referenced) {
+					tf.referenced = false;
+					clock_.add(tf);
+				} else if (tables_.remove(tf.file_number, tf)) {
+					size_.decrementAndGet();
+					Release(tf);
+				}
+			}
 		}
+	}
 
-		return result;
+	private void Close(TableAndFile tf) {
+		if (tf.Await()) {
+			LOG.info("File closed in TableCache: " + tf.file.FileName());
+			tf.file.Close();
+		}
 	}
 
-	// Evict any entry for the specified file number
+	// Evict any entry for the specified file number, pinned or not; its file
+	// is closed once no one uses the table
 	void Evict(long file_number) {
-		byte[] buf = util.toBytes(file_number);
-		cache_.Erase(new Slice(buf));
+		TableAndFile tf = tables_.remove(file_number);
+		if (tf != null) {
+			// its clock slot is dropped by the next sweep
+			Release(tf);
+		}
+	}
+
+	// Number of open tables, for tests
+	int Size() {
+		return tables_.size();
 	}
 
 	Env env_;
 	String dbname_;
 	Options options_;
-	Cache cache_;
+	private final int capacity_;
+	// file number -> table
+	private final ConcurrentHashMap<Long, TableAndFile> tables_;
+	// eviction order of the open tables
+	private final ConcurrentLinkedQueue<TableAndFile> clock_;
+	// entries in clock_
+	private final AtomicInteger size_;
 }
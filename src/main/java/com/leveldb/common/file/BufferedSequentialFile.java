@@ -0,0 +1,130 @@
+package com.leveldb.common.file;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.leveldb.common.Slice;
+import com.leveldb.common.Status;
+
+/**
+ * sequential file reading ahead in large pieces, for log and manifest
+ * replay: each read from the file fills the whole buffer (or reaches the end
+ * of file), so that a 32KB log block costs a system call only once every
+ * "readahead" bytes. Read() returns a slice of the buffer itself, valid until
+ * the next Read().
+ * 
+ * The buffer is a heap one: slices refer to arrays, which a direct buffer
+ * would have to be copied out to.
+ */
+public class BufferedSequentialFile extends _SequentialFile {
+
+	public static final int kDefaultReadahead = 1 << 20;
+
+	private String filename_;
+	private FileInputStream in_;
+	private FileChannel channel_;
+	// data read from the file and not returned yet lies in
+	// buf_.array()[buf_.position(), buf_.limit() - 1]
+	private ByteBuffer buf_;
+	private boolean eof_ = false;
+
+	public BufferedSequentialFile(String iFileName) {
+		this(iFileName, kDefaultReadahead);
+	}
+
+	public BufferedSequentialFile(String iFileName, int iReadahead) {
+		filename_ = iFileName;
+		try {
+			in_ = new FileInputStream(filename_);
+			channel_ = in_.getChannel();
+			// no need for more buffer than there is file
+			long size = channel_.size();
+			iReadahead = (int) Math.max(1, Math.min(iReadahead, size + 1));
+		} catch (IOException e) {
+			e.printStackTrace();
+			iReadahead = 1;
+		}
+		buf_ = ByteBuffer.allocate(iReadahead);
+		buf_.flip(); // empty
+	}
+
+	@Override
+	public byte[] Read(int n, Slice result) {
+		if (channel_ == null) {
+			return null;
+		}
+		if (buf_.remaining() < n && !eof_) {
+			if (n > buf_.capacity()) {
+				// larger than the buffer: make room for it once
+				ByteBuffer larger = ByteBuffer.allocate(n);
+				larger.put(buf_);
+				larger.flip();
+				buf_ = larger;
+			}
+			if (!Fill()) {
+				return null;
+			}
+		}
+		int size = Math.min(n, buf_.remaining());
+		byte[] data = buf_.array();
+		result.setData_(data, buf_.position(), size);
+		buf_.position(buf_.position() + size);
+		return data;
+	}
+
+	// move what is left to the front of the buffer and read until it is
+	// full or the file ends; false on an error
+	private boolean Fill() {
+		buf_.compact();
+		try {
+			while (buf_.hasRemaining()) {
+				if (channel_.read(buf_) < 0) {
+					eof_ = true;
+					break;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			buf_.flip();
+			return false;
+		}
+		buf_.flip();
+		return true;
+	}
+
+	@Override
+	public Status Skip(long n) {
+		if (n <= buf_.remaining()) {
+			buf_.position(buf_.position() + (int) n);
+			return Status.OK();
+		}
+		n -= buf_.remaining();
+		buf_.position(buf_.limit());
+		if (channel_ == null || eof_) {
+			return Status.OK();
+		}
+		try {
+			long pos = Math.min(channel_.position() + n, channel_.size());
+			channel_.position(pos);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return Status.IOError(new Slice(filename_), new Slice(e
+					.toString()));
+		}
+		return Status.OK();
+	}
+
+	public void Close() {
+		if (in_ == null) {
+			return;
+		}
+		try {
+			in_.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -2,58 +2,60 @@ package com.leveldb.common.file;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 
 import com.leveldb.common.Slice;
 
 /**
- * a mmf, read all data to buffer
+ * random access file reading with positional reads (pread) on the file
+ * channel: there is no shared file pointer, so many threads can read the same
+ * file (e.g. a table in the table cache) at once
  * 
  * @author Administrator
  * 
  */
 public class DefaultRandomAccessFile extends _RandomAccessFile {
 	private String fileName;
-	MappedByteBuffer raf;
 	RandomAccessFile raf1;
+	FileChannel channel;
 
-	@SuppressWarnings("unused")
 	public DefaultRandomAccessFile(String iFileName) throws IOException {
 		fileName = iFileName;
 		raf1 = new RandomAccessFile(fileName, "rw");
-//		if (fileName.contains(".sst")) {
-//			System.out.println("Random Access Open: " + fileName);
-//		}
-//		FileChannel fc = raf1.getChannel();
-//		long len = raf1.length();
-//		raf = fc.map(MapMode.READ_WRITE, 0, len);
+		channel = raf1.getChannel();
 	}
 
 	@Override
 	public byte[] Read(long offset, int n, Slice result) {
 		byte br[] = new byte[n];
-		// raf.get(br, (int)offset, n);
+		ByteBuffer bb = ByteBuffer.wrap(br);
+		int total = 0;
 		try {
-			raf1.seek(offset);
-			raf1.read(br);
+			// FileChannel.read(dst, position) does not touch the channel's
+			// position, and may return less than asked: loop until "n"
+			// bytes are read or the end of file is reached
+			while (bb.hasRemaining()) {
+				int r = channel.read(bb, offset + total);
+				if (r < 0) {
+					break;
+				}
+				total += r;
+			}
 		} catch (IOException e) {
-			e = new IOException(e.toString() + "\n When seek @ offset: " + offset);
+			e = new IOException(e.toString() + "\n When read @ offset: "
+					+ offset);
 			e.printStackTrace();
 		}
-		result.setData_(br);
+		// result only covers the bytes actually read
+		result.setData_(br, 0, total);
 		return br;
 	}
 
 	@Override
 	public void Close() {
 		try {
-			
 			raf1.close();
-//			if (fileName.contains("05.sst")) {
-//				System.out.println("Random Access Close: " + fileName);
-//			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
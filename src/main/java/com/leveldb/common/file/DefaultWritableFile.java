@@ -1,148 +1,180 @@
 package com.leveldb.common.file;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.leveldb.common.Slice;
 import com.leveldb.common.Status;
 
+/**
+ * writable file that gathers appends in a buffer: small appends (e.g. the
+ * header and the payload of a log record) cost no system call until Flush(),
+ * and Sync() forces what was written down to the disk
+ * 
+ * @author wlu
+ * 
+ */
 public class DefaultWritableFile extends _WritableFile {
 
-	private FileChannel fileChannel;
-	private final AtomicBoolean closed = new AtomicBoolean();
+	public static final int kDefaultBufferSize = 64 << 10;
 
 	private String filename_;
-	private int page_size_;
-	private int map_size_; // How much extra memory to map at a time
-
-	private int file_offset_; // Offset of base_ in file
-	private int block_offset;
+	private final AtomicBoolean closed = new AtomicBoolean();
 
 	RandomAccessFile raf1;
-	//private FileChannel fc;
-	//private MappedByteBuffer raf;
+	private FileChannel fileChannel;
+	private ByteBuffer buf_; // appended data not yet written to the file
 
-	private int Roundup(int x, int y) {
-		return ((x + y - 1) / y) * y;
+	public DefaultWritableFile(String iFileName) {
+		this(iFileName, kDefaultBufferSize);
 	}
 
-	public DefaultWritableFile(String iFileName, int iPageSize, int iMapSize) {
+	public DefaultWritableFile(String iFileName, int iBufferSize) {
+		this(iFileName, iBufferSize, true);
+	}
+
+	// If not "truncate", an existing file is written over from its start,
+	// and keeps whatever lies past the end of what is written.
+	public DefaultWritableFile(String iFileName, int iBufferSize,
+			boolean truncate) {
 		filename_ = iFileName;
-		page_size_ = iPageSize;
-		map_size_ = Roundup(iMapSize, page_size_);
-		file_offset_ = 0;
-		block_offset = map_size_;
+		buf_ = ByteBuffer.allocate(iBufferSize);
 
 		try {
-			if(filename_.contains("05.sst")){
-				@SuppressWarnings("unused")
-				int d = 0;
-			}
 			raf1 = new RandomAccessFile(filename_, "rw");
-			
-//			System.err.println("Opened " + filename_);
-			//fc = raf1.getChannel();
-			//raf = fc.map(MapMode.READ_WRITE, 0, map_size_);
-
+			if (truncate) {
+				// a new writable file replaces any existing one
+				raf1.setLength(0);
+			}
+			fileChannel = raf1.getChannel();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
 	}
 
-	private int expand(int ms) {
-		if (ms < 1 << 20) {
-			return ms * 2;
-		}
-		return ms;
-	}
-
 	@Override
 	public Status Append(Slice data) {
-		byte src[] = data.data();
+		byte src[] = data.array();
+		int offset = data.getOffset();
 		int size = data.size();
 
-		int R = size;
-		int src_offset = 0;
+		// Fit as much as possible into buffer.
+		int copy = Math.min(size, buf_.remaining());
+		buf_.put(src, offset, copy);
+		if (copy == size) {
+			return Status.OK();
+		}
 
-		try {
-//			while (R > 0) {
-//				if (R > map_size_) {
-//					raf.put(src, src_offset, map_size_);
-//					R -= map_size_;
-//					src_offset += map_size_;
-//					file_offset_ += map_size_;
-//					map_size_ = expand(map_size_);
-//					raf = fc.map(MapMode.READ_WRITE, file_offset_, map_size_);
-//				} else {
-//					raf.put(src, src_offset, R);
-//					//raf.compact();
-//					file_offset_ += R; // like size
-//					block_offset = R; // just R
-//					R = 0;
-//				}
-//			}
-			
-			raf1.write(src);
+		// Can't fit in buffer, so need to do at least one write.
+		Status s = FlushBuffered();
+		if (!s.ok()) {
+			return s;
+		}
+
+		// Small writes go to buffer, large writes are written directly.
+		if (size - copy < buf_.capacity()) {
+			buf_.put(src, offset + copy, size - copy);
+			return Status.OK();
+		}
+		return WriteRaw(ByteBuffer.wrap(src, offset + copy, size - copy));
+	}
+
+	// Pieces that fit in the buffer are copied there as usual; otherwise
+	// the buffered data and all the pieces go out in one gathering write,
+	// and the pieces are not copied.
+	@Override
+	public Status Append(Slice data[], int n) {
+		long size = 0;
+		for (int i = 0; i < n; i++) {
+			size += data[i].size();
+		}
+		if (size <= buf_.remaining()) {
+			return super.Append(data, n);
+		}
 
+		ByteBuffer srcs[] = new ByteBuffer[n + 1];
+		buf_.flip();
+		srcs[0] = buf_;
+		for (int i = 0; i < n; i++) {
+			srcs[i + 1] = ByteBuffer.wrap(data[i].array(), data[i]
+					.getOffset(), data[i].size());
+		}
+		size += buf_.remaining();
+		try {
+			while (size > 0) {
+				size -= fileChannel.write(srcs);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
-			return Status.IOError(new Slice(e.getMessage()), null);
+			return Status.IOError(new Slice(filename_), new Slice(e
+					.toString()));
+		} finally {
+			buf_.clear();
 		}
+		return Status.OK();
+	}
+
+	private Status FlushBuffered() {
+		buf_.flip();
+		Status s = WriteRaw(buf_);
+		buf_.clear();
+		return s;
+	}
 
+	private Status WriteRaw(ByteBuffer src) {
+		try {
+			while (src.hasRemaining()) {
+				fileChannel.write(src);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return Status.IOError(new Slice(filename_), new Slice(e
+					.toString()));
+		}
 		return Status.OK();
 	}
 
 	@Override
 	public Status Close() {
+		if (!closed.compareAndSet(false, true)) {
+			return Status.OK();
+		}
+		Status s = FlushBuffered();
 		try {
 			raf1.close();
-//			System.err.println("Closed " + filename_);
 		} catch (IOException e) {
 			e.printStackTrace();
-			return Status.IOError(new Slice(e.toString()), null);
+			if (s.ok()) {
+				s = Status.IOError(new Slice(e.toString()), null);
+			}
 		}
-		return Status.OK();
+		return s;
 	}
 
 	@Override
 	public Status Flush() {
-		return Status.OK();
+		return FlushBuffered();
 	}
 
 	@Override
 	public Status Sync() {
-		//raf.force();
-		return Status.OK();
-	}
-	
-	public static void main(String args[]) throws IOException{
-		DefaultWritableFile dwf= new DefaultWritableFile("C://wf", 1024, 2000);
-		byte[] ba = new byte[1024*2 + 30];
-		for(int i = 0; i < ba.length; i++){
-			ba[i] = 0x48;
+		Status s = FlushBuffered();
+		if (s.ok()) {
+			try {
+				// like fdatasync: the data and the file length, not the
+				// modification time
+				fileChannel.force(false);
+			} catch (IOException e) {
+				e.printStackTrace();
+				s = Status.IOError(new Slice(filename_), new Slice(e
+						.toString()));
+			}
 		}
-		                     
-		Slice ts = new Slice(ba);
-		dwf.Append(ts);
-		dwf.Sync();
-		dwf.Close();
-		
-		dwf= new DefaultWritableFile("C://wf", 1024, 2000);
-		dwf.Append(ts);
-		dwf.Sync();
-		dwf.Close();
-		
-		DefaultRandomAccessFile drf = new DefaultRandomAccessFile("C://wf");
-		Slice rs = new Slice();
-		byte[] ra = drf.Read(0, ba.length, rs);
-		System.out.print(ra.length);
+		return s;
 	}
 
 }
@@ -0,0 +1,155 @@
+package com.leveldb.common.file;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.leveldb.common.Slice;
+
+/**
+ * random access file over a read-only memory mapping of the whole file:
+ * ReadMapped() hands out views of the mapping itself, and Read() copies out
+ * of it, with no system call and no shared file position
+ * 
+ * The bytes mapped by all such files in the process are limited, see
+ * Acquire(). A mapping cannot be unmapped while blocks still point into it,
+ * so it lives on after Close() until its buffer (and every view of it) is
+ * garbage collected, and only then are its bytes given back to the limit.
+ * 
+ * @author wlu
+ * 
+ */
+public class MmapRandomAccessFile extends _RandomAccessFile {
+	private String fileName;
+	private MappedByteBuffer mmapped_region_;
+	private long length_;
+
+	// total bytes of the mappings that are still alive, and of reservations
+	private static final AtomicLong mapped_bytes_ = new AtomicLong(0);
+
+	// enqueued once a mapping's buffer is unreachable, i.e. it is unmapped
+	private static class Mapping extends PhantomReference<MappedByteBuffer> {
+		final long length;
+
+		Mapping(MappedByteBuffer region, long length) {
+			super(region, unmapped_);
+			this.length = length;
+		}
+	}
+
+	private static final ReferenceQueue<MappedByteBuffer> unmapped_ =
+			new ReferenceQueue<MappedByteBuffer>();
+	// the Mappings not yet enqueued, which must be kept reachable
+	private static final Set<Mapping> mappings_ = Collections
+			.synchronizedSet(new HashSet<Mapping>());
+
+	// give back the bytes of the mappings that are gone
+	private static void ReleaseUnmapped() {
+		Reference<? extends MappedByteBuffer> r;
+		while ((r = unmapped_.poll()) != null) {
+			mappings_.remove(r);
+			Release(((Mapping) r).length);
+		}
+	}
+
+	/**
+	 * Reserve "n" bytes of mapping if that keeps the total mapped bytes
+	 * within "limit". A successful reservation is held by the mapping of
+	 * the file created with it until that mapping is gone, or is given back
+	 * by Release() if the file could not be created.
+	 */
+	public static boolean Acquire(long n, long limit) {
+		ReleaseUnmapped();
+		while (true) {
+			long cur = mapped_bytes_.get();
+			if (cur + n > limit) {
+				return false;
+			}
+			if (mapped_bytes_.compareAndSet(cur, cur + n)) {
+				return true;
+			}
+		}
+	}
+
+	public static void Release(long n) {
+		mapped_bytes_.addAndGet(-n);
+	}
+
+	public static long MappedBytes() {
+		ReleaseUnmapped();
+		return mapped_bytes_.get();
+	}
+
+	/**
+	 * Map "length" bytes of the file, which must have been reserved by
+	 * Acquire(length, ...)
+	 */
+	public MmapRandomAccessFile(String iFileName, long length)
+			throws IOException {
+		fileName = iFileName;
+		length_ = length;
+		RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			mmapped_region_ = fc.map(MapMode.READ_ONLY, 0, length);
+			mappings_.add(new Mapping(mmapped_region_, length));
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	@Override
+	public byte[] Read(long offset, int n, Slice result) {
+		if (offset > length_) {
+			offset = length_;
+		}
+		if (offset + n > length_) {
+			n = (int) (length_ - offset);
+		}
+		byte br[] = new byte[n];
+		// a duplicate has its own position, so concurrent reads do not race
+		ByteBuffer region = mmapped_region_.duplicate();
+		region.position((int) offset);
+		region.get(br, 0, n);
+		result.setData_(br, 0, n);
+		return br;
+	}
+
+	@Override
+	public ByteBuffer ReadMapped(long offset, int n) {
+		if (offset > length_) {
+			offset = length_;
+		}
+		if (offset + n > length_) {
+			n = (int) (length_ - offset);
+		}
+		// a view of its own: position and limit are not shared
+		ByteBuffer region = mmapped_region_.duplicate();
+		region.position((int) offset);
+		region.limit((int) offset + n);
+		return region.slice();
+	}
+
+	// the mapping itself goes once the blocks read from it are gone
+	@Override
+	public void Close() {
+		mmapped_region_ = null;
+	}
+
+	@Override
+	public String FileName() {
+		return fileName;
+	}
+
+}
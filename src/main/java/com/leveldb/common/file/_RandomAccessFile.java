@@ -1,5 +1,7 @@
 package com.leveldb.common.file;
 
+import java.nio.ByteBuffer;
+
 import com.leveldb.common.Slice;
 import com.leveldb.common.Status;
 
@@ -14,6 +16,20 @@ public abstract class _RandomAccessFile {
 	 * Safe for concurrent use by multiple threads.
 	 */
 	public abstract byte[] Read(long offset, int n, Slice result);
+
+	/**
+	 * Return a read-only view of up to "n" bytes of the file starting at
+	 * "offset" (fewer at the end of the file) that points into memory the
+	 * file already holds, e.g. a memory mapping, so nothing is copied. The
+	 * view stays valid for as long as it is referenced, even after Close().
+	 * Returns null if the file has no such memory, in which case callers
+	 * use Read().
+	 * 
+	 * Safe for concurrent use by multiple threads.
+	 */
+	public ByteBuffer ReadMapped(long offset, int n) {
+		return null;
+	}
 	
 	public abstract void Close();
 	
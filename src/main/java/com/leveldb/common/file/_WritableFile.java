@@ -7,6 +7,19 @@ public abstract class _WritableFile {
 
 	public abstract Status Append(Slice data);
 
+	// Append data[0, n-1] in order. A file that can gathers them into one
+	// write instead of copying them; the caller may reuse them once this
+	// returns.
+	public Status Append(Slice data[], int n) {
+		for (int i = 0; i < n; i++) {
+			Status s = Append(data[i]);
+			if (!s.ok()) {
+				return s;
+			}
+		}
+		return Status.OK();
+	}
+
 	public abstract Status Close();
 
 	public abstract Status Flush();
@@ -32,6 +32,14 @@ public class Reader {
 	// position >= initial_offset within the file.
 	public Reader(_SequentialFile file, Reporter reporter, boolean checksum,
 			long initial_offset) {
+		this(file, reporter, checksum, initial_offset, 0);
+	}
+
+	// As above, for the log of number "log_number": a recyclable record of
+	// another log number is left from the log the file was recycled from,
+	// and ends this one.
+	public Reader(_SequentialFile file, Reporter reporter, boolean checksum,
+			long initial_offset, long log_number) {
 		file_ = file;
 		reporter_ = reporter;
 		checksum_ = checksum;
@@ -41,6 +49,8 @@ public class Reader {
 		last_record_offset_ = 0;
 		end_of_buffer_offset_ = 0;
 		initial_offset_ = initial_offset;
+		log_number_ = (int) log_number;
+		recycled_ = false;
 	}
 
 	// ~Reader();
@@ -73,6 +83,11 @@ public class Reader {
 			long physical_record_offset = end_of_buffer_offset_
 					- buffer_.size();
 			int record_type = ReadPhysicalRecord(fragment);
+			if (record_type >= RecordType.kRecyclableFullType
+					&& record_type <= RecordType.kRecyclableLastType) {
+				record_type -= RecordType.kRecyclableFullType
+						- RecordType.kFullType;
+			}
 			switch (record_type) {
 			// full fragment
 			case RecordType.kFullType:
@@ -190,6 +205,12 @@ public class Reader {
 	// Offset at which to start looking for the first record to return
 	long initial_offset_;
 
+	// the log number recyclable records must carry (its low 32 bits)
+	int log_number_;
+	// whether a recyclable record was read: a bad record after it is taken
+	// for the end of the log, the rest of the file is an older log's
+	boolean recycled_;
+
 	// Extend record types with the following special values
 	static final int kEof = logformat.kMaxRecordType + 1,
 	// Returned whenever we find an invalid physical record.
@@ -276,7 +297,20 @@ public class Reader {
 			int b = (int) (header[5]) & 0xff;
 			int type = header[6];
 			int length = a | (b << 8);
-			if (logformat.kHeaderSize + length > buffer_.size()) {
+			int header_size = logformat.kHeaderSize;
+			if (type >= RecordType.kRecyclableFullType
+					&& type <= RecordType.kRecyclableLastType) {
+				header_size = logformat.kRecyclableHeaderSize;
+				if (header_size > buffer_.size()
+						|| util.toInt(header, logformat.kHeaderSize) != log_number_) {
+					// left from the log this file was before
+					return OldRecord();
+				}
+			}
+			if (header_size + length > buffer_.size()) {
+				if (recycled_) {
+					return OldRecord();
+				}
 				int drop_size = buffer_.size();
 				buffer_.clear();
 				ReportCorruption(drop_size, "bad record length");
@@ -294,8 +328,11 @@ public class Reader {
 			// Check crc
 			if (checksum_) {
 				int expected_crc = crc32java.Unmask(util.toInt(header));
-				int actual_crc = crc.Value(header, 6, 1 + length);
+				int actual_crc = crc.Value(header, 6, header_size - 6 + length);
 				if (actual_crc != expected_crc) {
+					if (recycled_) {
+						return OldRecord();
+					}
 					// Drop the rest of the buffer since "length" itself may
 					// have
 					// been corrupted and if we trust it, we could find some
@@ -308,21 +345,31 @@ public class Reader {
 				}
 			}
 
-			buffer_.remove_prefix(logformat.kHeaderSize + length);
+			buffer_.remove_prefix(header_size + length);
+			if (header_size != logformat.kHeaderSize) {
+				recycled_ = true;
+			}
 
 			// Skip physical record that started before initial_offset_
-			if (end_of_buffer_offset_ - buffer_.size() - logformat.kHeaderSize
-					- length < initial_offset_) {
+			if (end_of_buffer_offset_ - buffer_.size() - header_size - length < initial_offset_) {
 				result.clear();
 				return kBadRecord;
 			}
 
-			result.setData_(header, logformat.kHeaderSize, length);
+			result.setData_(header, header_size, length);
 			return type;
 		}
 
 	}
 
+	// The rest of the file is left from an older log: drop it silently and
+	// report the end of this one
+	int OldRecord() {
+		buffer_.clear();
+		eof_ = true;
+		return kEof;
+	}
+
 	// Reports dropped bytes to the reporter.
 	// buffer_ must be updated to remove the dropped bytes prior to invocation.
 	void ReportCorruption(int bytes, String reason) {
@@ -10,6 +10,13 @@ public class RecordType {
 	public static final int kFirstType = 2;
 	public static final int kMiddleType = 3;
 	public static final int kLastType = 4;
+
+	// The same, for logs that may be written over a recycled log file: the
+	// header also holds the log number
+	public static final int kRecyclableFullType = 5;
+	public static final int kRecyclableFirstType = 6;
+	public static final int kRecyclableMiddleType = 7;
+	public static final int kRecyclableLastType = 8;
 	//
 	
 	public int val;
@@ -12,45 +12,62 @@ public class Writer {
 	// "*dest" must be initially empty.
 	// "*dest" must remain live while this Writer is in use.
 	public Writer(_WritableFile dest) {
+		this(dest, 0, false);
+	}
+
+	// As above; if "recycle", the records are written in the recyclable
+	// format, carrying "log_number", so that "*dest" may be a recycled log
+	// file that is written over instead of truncated.
+	public Writer(_WritableFile dest, long log_number, boolean recycle) {
 		dest_ = dest;
 		block_offset_ = 0;
+		recycle_ = recycle;
+		header_size_ = recycle ? logformat.kRecyclableHeaderSize
+				: logformat.kHeaderSize;
+		log_number_ = (int) log_number;
+		byte[] b = new byte[1 + 4];
+		util.putInt(b, 1, log_number_);
 		for (int i = 0; i <= logformat.kMaxRecordType; i++) {
-			byte[] b = new byte[] { (byte) i };
-			type_crc_[i] = crc.Value(b, 1);
+			b[0] = (byte) i;
+			type_crc_[i] = crc.Value(b, header_size_ - 6);
 		}
 	}
 
 	public Status AddRecord(Slice slice) {
-		byte[] data = slice.data();
-		int ptr = 0;
+		byte[] data = slice.array();
+		int ptr = slice.getOffset();
 		int left = slice.size();
 
-		// Fragment the record if necessary and emit it. Note that if slice
-		// is empty, we still want to iterate once to emit a single
-		// zero-length record
-		Status s;
+		// room for the headers, payloads and block trailers of all the
+		// fragments
+		int fragments = left / (logformat.kBlockSize - header_size_) + 2;
+		if (headers_.length < fragments * header_size_) {
+			headers_ = new byte[fragments * header_size_];
+			pieces_ = new Slice[3 * fragments];
+		}
+		num_pieces_ = 0;
+		num_headers_ = 0;
+
+		// Fragment the record if necessary and gather the fragments. Note
+		// that if slice is empty, we still want to iterate once to emit a
+		// single zero-length record
 		boolean begin = true;
 		do {
 			int leftover = logformat.kBlockSize - block_offset_;
 			assert (leftover >= 0);
-			if (leftover < logformat.kHeaderSize) {
+			if (leftover < header_size_) {
 				// Switch to a new block
 				if (leftover > 0) {
-					// Fill the trailer with 0s(literal below relies on
-					// kHeaderSize being 7)
-					//assert (logformat.kHeaderSize == 7);
-					dest_.Append(new Slice(new byte[] { 0, 0, 0, 0, 0, 0 },
-							leftover));
+					// Fill the trailer with 0s
+					pieces_[num_pieces_++] = new Slice(kZeroes, 0, leftover);
 				}
 				block_offset_ = 0;
 			}
 
-			// Invariant: we never leave < kHeaderSize bytes in a block.
-			assert (logformat.kBlockSize - block_offset_
-					- logformat.kHeaderSize >= 0);
+			// Invariant: we never leave < header_size_ bytes in a block.
+			assert (logformat.kBlockSize - block_offset_ - header_size_ >= 0);
 
-			int avail = logformat.kBlockSize - block_offset_
-					- logformat.kHeaderSize;
+			int avail = logformat.kBlockSize - block_offset_ - header_size_;
 			int fragment_length = (left < avail) ? left : avail;
 
 			int type;
@@ -64,59 +81,83 @@ public class Writer {
 			} else {
 				type = RecordType.kMiddleType;
 			}
+			if (recycle_) {
+				type += RecordType.kRecyclableFullType - RecordType.kFullType;
+			}
+
+			EmitPhysicalRecord(type, data, ptr, fragment_length);
 
-			// TODO: think about it: do not copy the bytes, add offset here
-			byte[] tmp = util.subN(data, ptr, fragment_length);
-			s = EmitPhysicalRecord(new RecordType(type), tmp, fragment_length);
-			
 			ptr += fragment_length;
 			left -= fragment_length;
 			begin = false;
-		} while (s.ok() && left > 0);
+		} while (left > 0);
+
+		// the whole record in one append
+		Status s = dest_.Append(pieces_, num_pieces_);
+		if (s.ok()) {
+			s = dest_.Flush();
+		}
+		for (int i = 0; i < num_pieces_; i++) {
+			pieces_[i] = null; // do not hold on to the payload
+		}
 		return s;
 	}
 
 	private _WritableFile dest_;
 	private int block_offset_; // Current offset in block
+	private final boolean recycle_;
+	private final int header_size_;
+	private final int log_number_; // low 32 bits, for recyclable headers
 
 	// crc32c values for all supported record types. These are
 	// pre-computed to reduce the overhead of computing the crc of the
 	// record type stored in the header.
 	int[] type_crc_ = new int[logformat.kMaxRecordType + 1];
 
-	/** header: crc(0..3)|n(4..5)|rectype(6)
+	// the headers of the record being added, header_size_ bytes each, and
+	// the pieces it is appended as: headers, payloads and block trailers.
+	// Reused from record to record.
+	private byte[] headers_ = new byte[0];
+	private Slice[] pieces_ = new Slice[0];
+	private int num_headers_;
+	private int num_pieces_;
+
+	private static final byte[] kZeroes = new byte[logformat.kRecyclableHeaderSize];
+
+	/** header: crc(0..3)|n(4..5)|rectype(6), then lognum(7..10) if recyclable
 	 * <p>
-	 * write data to file dest_
+	 * add the header and the payload to the pieces to write; the payload
+	 * is not copied
 	 * @param t
 	 * @param ptr
+	 * @param offset where the payload starts in ptr
 	 * @param n
-	 * @return
 	 */
-	Status EmitPhysicalRecord(RecordType t, byte[] ptr, int n) {
+	void EmitPhysicalRecord(int t, byte[] ptr, int offset, int n) {
 		assert (n <= 0x7fff); // Must fit in two bytes
-		assert (block_offset_ + logformat.kHeaderSize + n <= logformat.kBlockSize);
+		assert (block_offset_ + header_size_ + n <= logformat.kBlockSize);
 
 		// Format the header
-		byte[] buf = new byte[logformat.kHeaderSize];
-		buf[4] = (byte) (n & 0xff);
-		buf[5] = (byte) (n >> 8);
-		buf[6] = (byte) (t.val);
+		int h = num_headers_++ * header_size_;
+		byte[] buf = headers_;
+		buf[h + 4] = (byte) (n & 0xff);
+		buf[h + 5] = (byte) (n >> 8);
+		buf[h + 6] = (byte) t;
+		if (recycle_) {
+			util.putInt(buf, h + logformat.kHeaderSize, log_number_);
+		}
 
-		// Compute the crc of the record type and the payload.
-		int crc_ = crc.Extend(type_crc_[t.val], ptr, n);
+		// Compute the crc of the record type (and log number) and the
+		// payload.
+		int crc_ = crc.Extend(type_crc_[t], ptr, offset, n);
 		crc_ = crc32java.Mask(crc_); // Adjust for storage
-		util.putInt(buf, 0, crc_);
+		util.putInt(buf, h, crc_);
 
-		// Write the header and the payload
-		Status s = dest_.Append(new Slice(buf, logformat.kHeaderSize));
-		if (s.ok()) {
-			s = dest_.Append(new Slice(ptr, n));
-			if (s.ok()) {
-				s = dest_.Flush();
-			}
+		pieces_[num_pieces_++] = new Slice(buf, h, header_size_);
+		if (n > 0) {
+			pieces_[num_pieces_++] = new Slice(ptr, offset, n);
 		}
-		block_offset_ += logformat.kHeaderSize + n;
-		return s;
+		block_offset_ += header_size_ + n;
 	}
 
 	// No copying allowed
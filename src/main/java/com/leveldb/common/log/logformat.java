@@ -1,10 +1,14 @@
 package com.leveldb.common.log;
 
 public class logformat {
-	public static final int kMaxRecordType = RecordType.kLastType;
+	public static final int kMaxRecordType = RecordType.kRecyclableLastType;
 
 	public static final int kBlockSize = 32768;
 
 	// Header is checksum (4 bytes), type (1 byte), length (2 bytes).
 	public static final int kHeaderSize = 4 + 1 + 2;
+
+	// Header of the recyclable types: the above, then the log number (4
+	// bytes), which the checksum covers too.
+	public static final int kRecyclableHeaderSize = kHeaderSize + 4;
 }
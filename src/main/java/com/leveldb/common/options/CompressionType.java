@@ -13,5 +13,6 @@ public class CompressionType {
 		}
 		
 		public static final CompressionType NoCompression = new CompressionType(kNoCompression);
+		public static final CompressionType SnappyCompression = new CompressionType(kSnappyCompression);
 	
 }
@@ -3,6 +3,7 @@ package com.leveldb.common.options;
 import com.leveldb.common.Cache;
 import com.leveldb.common.Comparator;
 import com.leveldb.common.Env;
+import com.leveldb.common.FilterPolicy;
 import com.leveldb.common.Logger;
 
 //Options to control the behavior of a database (passed to DB::Open)
@@ -105,6 +106,94 @@ public class Options {
 	// efficiently detect that and will switch to uncompressed mode.
 	public CompressionType compression;
 
+	// If non-NULL, use the specified filter policy to reduce disk reads.
+	// Many applications will benefit from passing the result of
+	// FilterPolicy.NewBloomFilterPolicy() here.
+	//
+	// Default: NULL
+	public FilterPolicy filter_policy;
+
+	// If true, table files are read through a memory mapping (see
+	// Env.NewMmapRandomAccessFile) instead of positional reads, as long as
+	// the bytes mapped by the process stay within max_mmap_bytes; files
+	// opened beyond that limit are read normally. Uncompressed blocks of a
+	// mapped file are read in place, without a copy, and so are not put in
+	// the block cache.
+	//
+	// Default: false, max_mmap_bytes 1GB
+	public boolean allow_mmap_reads;
+	public long max_mmap_bytes;
+
+	// If true, DB.Write() runs as a two-stage pipeline: while one group of
+	// writes is inserted into the memtable, the next group is already being
+	// appended to the log. Writes become visible in the order they were
+	// logged, as without it.
+	//
+	// Default: false
+	public boolean enable_pipelined_write;
+
+	// If true, the writers of a group each insert their own batch into the
+	// memtable, at the same time, once the group is logged; otherwise the
+	// group leader inserts all of them.
+	//
+	// Default: false
+	public boolean allow_concurrent_memtable_write;
+
+	// Maximum number of compactions run at the same time, each in a
+	// background thread of its own. Compactions only run together when
+	// their levels do not overlap. Memtable flushes do not count: they run
+	// in a separate, high-priority thread.
+	//
+	// Default: 1
+	public int max_background_compactions;
+
+	// Maximum number of parts a compaction out of level-0 is split into by
+	// key range. The parts are compacted at the same time, each in a thread
+	// of its own, and their outputs installed together.
+	//
+	// Default: 1
+	public int max_subcompactions;
+
+	// Number of threads that compress and checksum the data blocks of a
+	// table being written, while the writer goes on adding keys. The blocks
+	// are still appended to the file in order. With 1 each block is done
+	// by the writer itself before the next one starts.
+	//
+	// Default: 1
+	public int compression_threads;
+
+	// Number of threads that insert the records of the logs into memtables
+	// when the database is opened. With more than 1, one more thread reads
+	// and checks the log meanwhile, and each full memtable is written to
+	// level-0 while the next ones fill.
+	//
+	// Default: 1
+	public int recovery_threads;
+
+	// Number of bytes the log and manifest files are read ahead by when
+	// the database is opened, in one read each time.
+	//
+	// Default: 1MB
+	public int log_readahead_size;
+
+	// Number of obsolete log files kept to be written over by new logs, so
+	// that switching to a new memtable reuses a file whose space is already
+	// allocated instead of creating one. With more than 0, logs are written
+	// in a format that tells their records from the stale ones of the log
+	// the file held before.
+	//
+	// Default: 0
+	public int recycle_log_file_num;
+
+	// Size in bytes the MANIFEST may grow to before the database rolls
+	// over to a new one, which starts with a snapshot of the current state
+	// instead of the whole history of edits. Smaller values make opening a
+	// long-running database faster, at the cost of a snapshot written now
+	// and then.
+	//
+	// Default: 64MB
+	public int max_manifest_file_size;
+
 	// Create an Options object with default values for all fields.
 	public Options() {
 		comparator = (Comparator.BytewiseComparator());
@@ -118,7 +207,19 @@ public class Options {
 		block_cache = null;
 		block_size = 4096;
 		block_restart_interval = 16;
-		compression = new CompressionType(CompressionType.kNoCompression);// kSnappyCompression);
+		compression = new CompressionType(CompressionType.kSnappyCompression);
+		filter_policy = null;
+		allow_mmap_reads = false;
+		max_mmap_bytes = 1L << 30;
+		enable_pipelined_write = false;
+		allow_concurrent_memtable_write = false;
+		max_background_compactions = 1;
+		max_subcompactions = 1;
+		compression_threads = 1;
+		recovery_threads = 1;
+		log_readahead_size = 1 << 20;
+		recycle_log_file_num = 0;
+		max_manifest_file_size = 64 << 20;
 	}
 
 	// wlu, 2012-7-7, snapshot
@@ -135,6 +236,18 @@ public class Options {
 		this.block_size = other.block_size;
 		this.block_restart_interval = other.block_restart_interval;
 		this.compression = other.compression;
+		this.filter_policy = other.filter_policy;
+		this.allow_mmap_reads = other.allow_mmap_reads;
+		this.max_mmap_bytes = other.max_mmap_bytes;
+		this.enable_pipelined_write = other.enable_pipelined_write;
+		this.allow_concurrent_memtable_write = other.allow_concurrent_memtable_write;
+		this.max_background_compactions = other.max_background_compactions;
+		this.max_subcompactions = other.max_subcompactions;
+		this.compression_threads = other.compression_threads;
+		this.recovery_threads = other.recovery_threads;
+		this.log_readahead_size = other.log_readahead_size;
+		this.recycle_log_file_num = other.recycle_log_file_num;
+		this.max_manifest_file_size = other.max_manifest_file_size;
 	}
 
 };
@@ -1,6 +1,8 @@
 package com.leveldb.common.table;
 
-import com.leveldb.common.ByteCollection;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import com.leveldb.common.Comparator;
 import com.leveldb.common.Iterator;
 import com.leveldb.common.Slice;
@@ -8,10 +10,10 @@ import com.leveldb.common.Status;
 import com.leveldb.common.file._RandomAccessFile;
 import com.leveldb.common.options.CompressionType;
 import com.leveldb.common.options.ReadOptions;
-import com.leveldb.util.coding;
 import com.leveldb.util.crc32java;
 import com.leveldb.util.util;
 
+import de.jarnbjo.jsnappy.Buffer;
 import de.jarnbjo.jsnappy.SnappyDecompressor;
 
 // 2012-4-5, need to test...
@@ -20,10 +22,15 @@ public class Block {
 
 	private int NumRestarts() {
 		assert (size_ >= 2 * util.SIZEOF_INT);
+		if (mapped_ != null) {
+			return mapped_.getInt(size_ - util.SIZEOF_INT);
+		}
 		return util.toInt(data_, size_ - util.SIZEOF_INT);
 	}
 
 	byte[] data_;
+	// the contents instead of data_ when they are a view of a mapped file
+	ByteBuffer mapped_;
 	int size_;
 	int restart_offset_; // Offset in data_ of restart array
 	boolean owned_; // Block owns data_[]
@@ -63,7 +70,10 @@ public class Block {
 	}
 
 	/**
-	 * iterator over one Block ('s entries)
+	 * iterator over one Block ('s entries). Entries are decoded in place:
+	 * value() refers to the block contents (or, for a mapped block, to a
+	 * value buffer) and key() to a key buffer; the buffers are reused from
+	 * entry to entry, so both are only good until the iterator moves.
 	 * 
 	 * @author wlu
 	 * 
@@ -71,6 +81,7 @@ public class Block {
 	public class Iter extends Iterator {
 		Comparator comparator_;
 		byte[] data_; // underlying block contents
+		ByteBuffer mapped_; // or a view of them, private to this iterator
 		int restarts_; // Offset of restart array (list of fixed32) . Seems to
 						// be fixed after construction
 		int num_restarts_; // Number of uint32_t entries in restart array .
@@ -79,9 +90,19 @@ public class Block {
 		// current_ is offset in data_ of current entry. >= restarts_ if !Valid
 		int current_; // offset of restarts
 		int restart_index_; // Index of restart block in which current_ falls
-		Slice key_ = new Slice();
-		Slice value_ = new Slice(); // current value
-		// int value_pos; // current value start position
+		// the current key is key_buf_[0, key_size_); the buffer only grows
+		byte[] key_buf_ = new byte[64];
+		int key_size_;
+		Slice key_ = new Slice(); // current key, within key_buf_
+		Slice value_ = new Slice(); // current value, within data_
+		Slice probe_ = new Slice(); // restart key compared by Seek()
+		// where value_ and probe_ are copied to when the contents are mapped
+		byte[] value_buf_ = new byte[0];
+		byte[] probe_buf_ = new byte[0];
+		int next_; // offset just past the current entry
+		// shared|non_shared|value_len of the entry DecodeEntry() last decoded
+		int shared_, non_shared_, value_length_;
+		int varint_; // set by DecodeVarint32()
 		Status status_ = new Status();
 
 		int Compare(Slice a, Slice b) {
@@ -90,16 +111,41 @@ public class Block {
 
 		// Return the offset in data_ just past the end of the current entry.
 		int NextEntryOffset() {
-			// size() is not always 0
-			return value_.getOffset() + value_.size();
+			return next_;
 			// return (value_.data() + value_.size()) - data_;
 		}
 
+		int ByteAt(int p) {
+			return (data_ != null ? data_[p] : mapped_.get(p)) & 0xff;
+		}
+
+		/**
+		 * Point "s" at the "n" bytes of contents at "p". Mapped contents are
+		 * copied into "buf" first, which is grown if need be; returns the
+		 * buffer to keep.
+		 */
+		byte[] Load(Slice s, byte[] buf, int p, int n) {
+			if (data_ != null) {
+				s.setData_(data_, p, n);
+				return buf;
+			}
+			if (n > buf.length) {
+				buf = new byte[Math.max(n, 2 * buf.length)];
+			}
+			mapped_.position(p);
+			mapped_.get(buf, 0, n);
+			s.setData_(buf, 0, n);
+			return buf;
+		}
+
 		/**
 		 * get the index-th restart's block offset
 		 * */
 		int GetRestartPoint(int index) {
 			assert (index < num_restarts_);
+			if (mapped_ != null) {
+				return mapped_.getInt(restarts_ + index * util.SIZEOF_INT);
+			}
 			return util.toInt(data_, restarts_ + index * util.SIZEOF_INT);
 			// return DecodeFixed32(data_ + restarts_ + index *
 			// sizeof(uint32_t));
@@ -108,22 +154,23 @@ public class Block {
 		/**
 		 * Seek to index-th restart block: 1) set #restart_index# to index; 2)
 		 * get the #offset# of the index-th restart block; 3) set #value_# to be
-		 * a dummy Slice with offset = #offset#
+		 * an empty Slice with offset = #offset#
 		 **/
 		void SeekToRestartPoint(int index) {
-			key_.clear();// .clear();
+			key_size_ = 0;
+			key_.setData_(key_buf_, 0, 0);
 			restart_index_ = index;
 			// current_ will be fixed by ParseNextKey();
 
-			// ParseNextKey() starts at the end of value_, so set value_
-			// accordingly
-			int offset = GetRestartPoint(index);
-			value_ = new Slice(data_, offset, 0); // this is rediculas
+			// ParseNextKey() starts at the end of the current entry
+			next_ = GetRestartPoint(index);
 		}
 
-		Iter(Comparator comparator, byte[] data, int restarts, int num_restarts) {
+		Iter(Comparator comparator, byte[] data, ByteBuffer mapped,
+				int restarts, int num_restarts) {
 			comparator_ = comparator;
 			data_ = data;
+			mapped_ = mapped;
 			restarts_ = restarts;
 			num_restarts_ = num_restarts;
 			current_ = restarts_;
@@ -190,20 +237,14 @@ public class Block {
 			while (left < right) {
 				int mid = (left + right + 1) / 2;
 				int region_offset = GetRestartPoint(mid);
-				int shared, non_shared;
-				threeInt l3ints = new threeInt();
-				ByteCollection lbcol = new ByteCollection(data_, 0);
-				boolean OK = DecodeEntry(lbcol, region_offset, restarts_,
-						l3ints);
-				shared = l3ints.shared;
-				non_shared = l3ints.non_shared;
-				if (!OK || (shared != 0)) {
+				int key_ptr = DecodeEntry(region_offset, restarts_);
+				if (key_ptr < 0 || (shared_ != 0)) {
 					CorruptionError();
 					return;
 				}
 				// !!!#shared# is 0 when a new restart Block starts
-				Slice mid_key = new Slice(data_, lbcol.curr_pos, non_shared);
-				if (Compare(mid_key, target) < 0) {
+				probe_buf_ = Load(probe_, probe_buf_, key_ptr, non_shared_);
+				if (Compare(probe_, target) < 0) {
 					// Key at "mid" is smaller than "target". Therefore all
 					// blocks before "mid" are uninteresting.
 					left = mid;
@@ -242,13 +283,15 @@ public class Block {
 			current_ = restarts_;
 			restart_index_ = num_restarts_;
 			status_ = Status.Corruption(new Slice("bad entry in block"), null);
+			key_size_ = 0;
 			key_.clear();
 			value_.clear();
 		}
 
 		/**
 		 * 1) set current_ as next block's start offset 2) decode current entry
-		 * 3) get key_ (by combine shared and non shared) and also value_
+		 * 3) get key_ (by keeping the shared part of the previous key and
+		 * appending the non shared one) and also value_
 		 * !!!#shared# is 0 when a new restart Block starts 4) update
 		 * restart_index_ (so, update ahead...)
 		 * 
@@ -267,41 +310,29 @@ public class Block {
 			}
 
 			// 2. Decode next entry
-			int shared, non_shared, value_length;
-			threeInt l3ints = new threeInt();
-			ByteCollection lbcol = new ByteCollection(data_, 0);
-			// p.curr_pos is updated to nonshared data
-			boolean OK = DecodeEntry(lbcol, p, limit, l3ints);
-			shared = l3ints.shared;
-			non_shared = l3ints.non_shared;
-			value_length = l3ints.value_length;
-
-			if (!OK || key_.size() < shared) {
+			p = DecodeEntry(p, limit);
+			if (p < 0 || key_size_ < shared_) {
 				CorruptionError();
 				return false;
 			} else {
-				// need to truncate to get shared part
-				byte[] key_data = key_.data();
-				// key_data = util.head(key_data, shared);
-				//
-				// byte[] key_add = new byte[non_shared];// I am not sure
-				// whether
-				// // byte concat is right
-				// System.arraycopy(lbcol.bytes, lbcol.curr_pos, key_add, 0,
-				// non_shared);
-				//
-				// key_data = util.add(key_data, key_add); // concat key_ with
-				// // non-shared data
-				byte[] key_data_ = new byte[shared + non_shared];
-				// truncate the first #shared# bytes
-				System.arraycopy(key_data, 0, key_data_, 0, shared);
-				// get the #non_shared# from back end
-				System.arraycopy(lbcol.bytes, lbcol.curr_pos, key_data_,
-						shared, non_shared);
-				key_ = new Slice(key_data_);
+				// the first #shared# bytes are already in key_buf_
+				int size = shared_ + non_shared_;
+				if (size > key_buf_.length) {
+					key_buf_ = Arrays.copyOf(key_buf_, Math.max(size,
+							2 * key_buf_.length));
+				}
+				if (data_ != null) {
+					System.arraycopy(data_, p, key_buf_, shared_, non_shared_);
+				} else {
+					mapped_.position(p);
+					mapped_.get(key_buf_, shared_, non_shared_);
+				}
+				key_size_ = size;
+				key_.setData_(key_buf_, 0, size);
 				// skip #non_shared# bytes and get value data
-				value_ = new Slice(lbcol.bytes, lbcol.curr_pos + non_shared,
-						value_length);
+				value_buf_ = Load(value_, value_buf_, p + non_shared_,
+						value_length_);
+				next_ = p + non_shared_ + value_length_;
 				// always not into the loop
 				while (restart_index_ + 1 < num_restarts_
 						&& GetRestartPoint(restart_index_ + 1) < current_) {
@@ -310,11 +341,69 @@ public class Block {
 				return true;
 			}
 		}
-	}
 
-	/* shared|non_shared|value_len|non_shared_value|value */
-	private class threeInt {
-		public int shared, non_shared, value_length;
+		/**
+		 * Helper routine: decode the next block entry starting at "p", storing
+		 * the number of shared key bytes, non_shared key bytes, and the length
+		 * of the value in shared_, non_shared_ and value_length_. Will not
+		 * derefence past "limit".
+		 * 
+		 * If any errors are detected, returns -1. Otherwise, returns the
+		 * offset of the key delta (just past the three decoded values).
+		 * 
+		 * In a Block Entry:
+		 * {shrd,nonshrd_len<1>,val_len<2>,|nonshrd_key_data<1>,val_data<2>}
+		 * 
+		 * p------------------------------>p--------------------------------^limit
+		 * 
+		 **/
+		int DecodeEntry(int p, int limit) {
+			if (limit - p < 3)
+				return -1;
+			// wlu, 2012-7-7, bugfix: should not directly convert byte to int,
+			// need to deal with byte values >= 128
+			int shared = ByteAt(p);
+			int non_shared = ByteAt(p + 1);
+			int value_length = ByteAt(p + 2);
+			if ((shared | non_shared | value_length) < 128) {
+				// Fast path: all three values are encoded in one byte each
+				p += 3;
+			} else {
+				if ((p = DecodeVarint32(p, limit)) < 0)
+					return -1;
+				shared = varint_;
+				if ((p = DecodeVarint32(p, limit)) < 0)
+					return -1;
+				non_shared = varint_;
+				if ((p = DecodeVarint32(p, limit)) < 0)
+					return -1;
+				value_length = varint_;
+			}
+
+			// refer to comment for the data structure
+			if ((limit - p) < (non_shared + value_length)) {
+				return -1;
+			}
+			shared_ = shared;
+			non_shared_ = non_shared;
+			value_length_ = value_length;
+			return p;
+		}
+
+		// decode the varint32 at "p" into varint_, and return the offset
+		// just past it; -1 if it runs into "limit"
+		int DecodeVarint32(int p, int limit) {
+			int result = 0;
+			for (int shift = 0; shift <= 28 && p < limit; shift += 7) {
+				int b = ByteAt(p++);
+				result |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					varint_ = result;
+					return p;
+				}
+			}
+			return -1;
+		}
 	}
 
 	// Initialize the block with the specified contents.
@@ -339,6 +428,7 @@ public class Block {
 
 	public void _Block(byte[] data, int size, boolean take_ownership) {
 		data_ = data;
+		mapped_ = null;
 		size_ = size;
 		owned_ = take_ownership;
 		if (size < util.SIZEOF_INT) {
@@ -354,6 +444,25 @@ public class Block {
 		}
 	}
 
+	/**
+	 * Initialize the block with "size" bytes of a view of a mapped file,
+	 * which it reads in place and does not own.
+	 */
+	public void _Block(ByteBuffer contents, int size) {
+		data_ = null;
+		mapped_ = contents;
+		size_ = size;
+		owned_ = false;
+		if (size < util.SIZEOF_INT) {
+			size_ = 0; // Error marker
+		} else {
+			restart_offset_ = size_ - (1 + NumRestarts()) * util.SIZEOF_INT;
+			if (restart_offset_ > size_ - util.SIZEOF_INT) {
+				size_ = 0;
+			}
+		}
+	}
+
 	public int size() {
 		return size_;
 	}
@@ -367,60 +476,12 @@ public class Block {
 		if (num_restarts == 0) {
 			return Iterator.NewEmptyIterator();
 		} else {
-			return new Iter(cmp, data_, restart_offset_, num_restarts);
+			// each iterator positions its own view for bulk copies
+			return new Iter(cmp, data_, mapped_ == null ? null : mapped_
+					.duplicate(), restart_offset_, num_restarts);
 		}
 	}
 
-	/**
-	 * Helper routine: decode the next block entry starting at "p", storing the
-	 * number of shared key bytes, non_shared key bytes, and the length of the
-	 * value in "*shared", "*non_shared", and "*value_length", respectively.
-	 * Will not derefence past "limit".
-	 * 
-	 * If any errors are detected, returns NULL. Otherwise, returns a pointer to
-	 * the key delta (just past the three decoded values).
-	 * 
-	 * In a Block Entry:
-	 * {shrd,nonshrd_len<1>,val_len<2>,|nonshrd_key_data<1>,val_data<2>}
-	 * 
-	 * p------------------------------>p--------------------------------^limit
-	 * 
-	 **/
-	static boolean DecodeEntry(ByteCollection p, int beg, int limit,
-			threeInt io3ints) {
-		if (limit - beg < 3)
-			return false;
-		p.curr_pos = beg;
-		// wlu, 2012-7-7, bugfix: should not directly convert byte to int, need
-		// to deal with byte values >= 128
-		int shared = p.bytes[p.curr_pos] & 0xff;
-		int non_shared = p.bytes[p.curr_pos + 1] & 0xff;
-		int value_length = p.bytes[p.curr_pos + 2] & 0xff;
-		if ((shared | non_shared | value_length) < 128) {
-			// Fast path: all three values are encoded in one byte each
-			p.curr_pos += 3;
-		} else {
-			shared = coding.GetVarint32(p);
-			if (p.curr_pos > limit)
-				return false;
-			non_shared = coding.GetVarint32(p);
-			if (p.curr_pos > limit)
-				return false;
-			value_length = coding.GetVarint32(p);
-			if (p.curr_pos > limit)
-				return false;
-		}
-
-		// refer to comment for the data structure
-		if ((limit - p.curr_pos) < (non_shared + value_length)) {
-			return false;
-		}
-		io3ints.shared = shared;
-		io3ints.non_shared = non_shared;
-		io3ints.value_length = value_length;
-		return true;
-	}
-
 	/**
 	 * 
 	 * @param file
@@ -443,9 +504,30 @@ public class Block {
 		// Read the block contents as well as the type/crc footer.
 		// See table_builder.java for the code that built this structure.
 		int n = (int) handle.size();
-		byte[] buf = new byte[n + Footer.kBlockTrailerSize];
+		ByteBuffer mapped = file.ReadMapped(handle.offset(), n
+				+ Footer.kBlockTrailerSize);
+		if (mapped != null && mapped.remaining() > n
+				&& mapped.get(n) == CompressionType.kNoCompression) {
+			// An uncompressed block of a mapped file is read in place: no
+			// copy is made, so there is nothing for the block cache to save
+			if (mapped.remaining() != n + Footer.kBlockTrailerSize) {
+				throw new Exception("truncated block read");
+			}
+			if (options.verify_checksums) {
+				long crc = crc32java.Unmask(mapped.getInt(n + 1));
+				crc32java crc32 = new crc32java();
+				long actual = crc32.Value(mapped, 0, n + 1);
+				if (actual != crc) {
+					throw new Exception("block checksum mismatch");
+				}
+			}
+			block._Block(mapped, n);
+			return false;
+		}
+
+		// Otherwise read a copy, which is ours to keep and to cache
 		Slice iocontents = new Slice();
-		buf = file.Read(handle.offset(), n + Footer.kBlockTrailerSize,
+		byte[] buf = file.Read(handle.offset(), n + Footer.kBlockTrailerSize,
 				iocontents); // set contents
 
 		if (iocontents.size() != n + Footer.kBlockTrailerSize) {
@@ -453,8 +535,10 @@ public class Block {
 			throw new Exception("truncated block read");
 		}
 
-		// Check the crc of the type and the block contents
-		byte[] data = iocontents.data(); // Pointer to where Read put the data
+		// Check the crc of the type and the block contents. Read() returns
+		// the array holding the contents, so use it as it is rather than
+		// copying it once more out of iocontents.
+		byte[] data = buf;
 		if (options.verify_checksums) {
 			// get the value @ ofs n+1
 			long crc = crc32java.Unmask(util.toInt(data, n + 1));
@@ -469,52 +553,35 @@ public class Block {
 		/* compression or not */
 		switch (data[n]) {
 		case CompressionType.kNoCompression:
-			if (data != buf) {
-				// File implementation gave us pointer to some other data.
-				// Use it directly under the assumption that it will be live
-				// while the file is open.
-				buf = null;
-				block._Block(data, n, false);
-				// block.setData_(data);
-				// block.setSize_(n);
-				// block.setOwned_(false);
-				// block = new Block(data, n, false /* do not take ownership
-				// */);
-				may_cache = false; // Do not double-cache
-			} else {
-				block._Block(buf, n, true);
-				// block.setData_(buf);
-				// block.setSize_(n);
-				// block.setOwned_(true);
-				// block = new Block(buf, n, true /* take ownership */);
-				may_cache = true;
-			}
+			block._Block(buf, n, true);
+			// block.setData_(buf);
+			// block.setSize_(n);
+			// block.setOwned_(true);
+			// block = new Block(buf, n, true /* take ownership */);
+			may_cache = true;
 
 			// Ok
 			break;
-		// case CompressionType.kSnappyCompression:
-		// int ulength = coding.GetVarint32(data, n); // get the vint32 as
-		// // length
-		//
-		// // if (!port::Snappy_GetUncompressedLength(data, n, &ulength)) {
-		// // buf = null;
-		// // throw new Exception("corrupted compressed block contents");
-		// // }
-		// byte[] ubuf = new byte[ulength];
-		// ubuf = SnappyDecompressor.decompress(data, 0, n).toByteArray();
-		// // if (!port::Snappy_Uncompress(data, n, ubuf)) {
-		// // buf = null;
-		// // dubuf = null;
-		// // throw new Exception("corrupted compressed block contents");
-		// // }
-		// buf = null;
-		// block._Block(ubuf, ulength, true);
-		// // block.setData_(ubuf);
-		// // block.setSize_(ulength);
-		// // block.setOwned_(true);
-		// // *block = new Block(ubuf, ulength, true /* take ownership */);
-		// may_cache = true;
-		// break;
+		case CompressionType.kSnappyCompression: {
+			Buffer ubuf = null;
+			try {
+				ubuf = SnappyDecompressor.decompress(data, 0, n, null);
+			} catch (Exception e) {
+				// FormatViolationException, or an index out of range on
+				// garbage input
+				ubuf = null;
+			}
+			if (ubuf == null) {
+				buf = null;
+				throw new Exception("corrupted compressed block contents");
+			}
+			buf = null;
+			// the uncompressed copy is ours, and is what goes to the block
+			// cache, so that a cache hit never decompresses again
+			block._Block(ubuf.getData(), ubuf.getLength(), true);
+			may_cache = true;
+			break;
+		}
 
 		default:
 			buf = null;
@@ -523,4 +590,37 @@ public class Block {
 
 		return may_cache;
 	}
+
+	/**
+	 * Read the raw contents of an uncompressed block (e.g. a filter block,
+	 * which is not in the key/value Block format), checking the trailer crc
+	 * if requested.
+	 * 
+	 * @return contents of the block, without the trailer
+	 * @throws Exception
+	 */
+	public static Slice ReadBlockContents(_RandomAccessFile file,
+			ReadOptions options, BlockHandle handle) throws Exception {
+		int n = (int) handle.size();
+		Slice iocontents = new Slice();
+		byte[] data = file.Read(handle.offset(), n + Footer.kBlockTrailerSize,
+				iocontents);
+		if (iocontents.size() != n + Footer.kBlockTrailerSize) {
+			throw new Exception("truncated block read");
+		}
+
+		if (options.verify_checksums) {
+			long crc = crc32java.Unmask(util.toInt(data, n + 1));
+			crc32java crc32 = new crc32java();
+			long actual = crc32.Value(data, n + 1);
+			if (actual != crc) {
+				throw new Exception("block checksum mismatch");
+			}
+		}
+
+		if (data[n] != CompressionType.kNoCompression) {
+			throw new Exception("bad block type");
+		}
+		return new Slice(data, 0, n);
+	}
 }
@@ -29,7 +29,7 @@ public class BlockHandle {
 		return size_;
 	}
 
-	void set_size(long size) {
+	public void set_size(long size) {
 		size_ = size;
 	}
 
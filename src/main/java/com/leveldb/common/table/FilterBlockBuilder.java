@@ -0,0 +1,87 @@
+package com.leveldb.common.table;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.leveldb.common.ByteVector;
+import com.leveldb.common.FilterPolicy;
+import com.leveldb.common.Slice;
+import com.leveldb.util.util;
+
+/**
+ * A FilterBlockBuilder is used to construct all of the filters for a
+ * particular Table. It generates a single string which is stored as a special
+ * block in the Table.
+ *
+ * The sequence of calls to FilterBlockBuilder must match the regexp:
+ * (StartBlock AddKey*)* Finish
+ *
+ * Layout: {filter_0 ... filter_N-1 | offset_0(4) ... offset_N-1(4) |
+ * array_offset(4) | base_lg(1)}
+ */
+public class FilterBlockBuilder {
+
+	// Generate new filter every 2KB of data
+	static final int kFilterBaseLg = 11;
+	static final int kFilterBase = 1 << kFilterBaseLg;
+
+	public FilterBlockBuilder(FilterPolicy policy) {
+		policy_ = policy;
+		keys_ = new ArrayList<Slice>();
+		result_ = new ByteVector();
+		filter_offsets_ = new ArrayList<Integer>();
+	}
+
+	// A new data block starts at "block_offset": emit filters for every
+	// kFilterBase range that has been passed.
+	public void StartBlock(long block_offset) {
+		long filter_index = (block_offset / kFilterBase);
+		assert (filter_index >= filter_offsets_.size());
+		while (filter_index > filter_offsets_.size()) {
+			GenerateFilter();
+		}
+	}
+
+	public void AddKey(Slice key) {
+		keys_.add(new Slice(key.data())); // keep a copy, caller may reuse key
+	}
+
+	public Slice Finish() {
+		if (!keys_.isEmpty()) {
+			GenerateFilter();
+		}
+
+		// Append array of per-filter offsets
+		int array_offset = result_.getSize();
+		for (int i = 0; i < filter_offsets_.size(); i++) {
+			result_.append(util.toBytes(filter_offsets_.get(i)));
+		}
+
+		result_.append(util.toBytes(array_offset));
+		result_.append(new byte[] { (byte) kFilterBaseLg }); // Save encoding
+																// parameter in
+																// result
+		return new Slice(result_.getData());
+	}
+
+	private void GenerateFilter() {
+		int num_keys = keys_.size();
+		if (num_keys == 0) {
+			// Fast path if there are no keys for this filter
+			filter_offsets_.add(result_.getSize());
+			return;
+		}
+
+		// Generate filter for current set of keys and append to result_.
+		filter_offsets_.add(result_.getSize());
+		Slice[] tmp_keys = keys_.toArray(new Slice[num_keys]);
+		result_.append(policy_.CreateFilter(tmp_keys, num_keys));
+
+		keys_.clear();
+	}
+
+	private FilterPolicy policy_;
+	private List<Slice> keys_; // Keys added since the last filter
+	private ByteVector result_; // Filter data computed so far
+	private List<Integer> filter_offsets_;
+}
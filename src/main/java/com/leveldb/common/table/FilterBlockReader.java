@@ -0,0 +1,55 @@
+package com.leveldb.common.table;
+
+import com.leveldb.common.FilterPolicy;
+import com.leveldb.common.Slice;
+import com.leveldb.util.util;
+
+/**
+ * Reads the filter block written by FilterBlockBuilder and answers whether a
+ * key may be present in the data block starting at a given file offset.
+ */
+public class FilterBlockReader {
+
+	// REQUIRES: "contents" and *policy must stay live while *this is live.
+	public FilterBlockReader(FilterPolicy policy, Slice contents) {
+		policy_ = policy;
+		data_ = null;
+		offset_ = 0;
+		num_ = 0;
+		base_lg_ = 0;
+		int n = contents.size();
+		if (n < 5)
+			return; // 1 byte for base_lg_ and 4 for start of offset array
+		byte[] data = contents.data();
+		base_lg_ = data[n - 1];
+		int last_word = util.toInt(data, n - 5);
+		if (last_word < 0 || last_word > n - 5)
+			return;
+		data_ = data;
+		offset_ = last_word;
+		num_ = (n - 5 - last_word) / 4;
+	}
+
+	public boolean KeyMayMatch(long block_offset, Slice key) {
+		long index = block_offset >> base_lg_;
+		if (index < num_) {
+			int start = util.toInt(data_, offset_ + (int) index * 4);
+			int limit = util.toInt(data_, offset_ + (int) index * 4 + 4);
+			if (start <= limit && limit <= offset_) {
+				Slice filter = new Slice(data_, start, limit - start);
+				return policy_.KeyMayMatch(key, filter);
+			} else if (start == limit) {
+				// Empty filters do not match any keys
+				return false;
+			}
+		}
+		return true; // Errors are treated as potential matches
+	}
+
+	private FilterPolicy policy_;
+	private byte[] data_; // Pointer to filter data (at block-start)
+	private int offset_; // Pointer to beginning of offset array (at
+							// block-end)
+	private int num_; // Number of entries in offset array
+	private int base_lg_; // Encoding parameter (see FilterBlockBuilder.kFilterBaseLg)
+}
@@ -0,0 +1,219 @@
+package com.leveldb.common.table;
+
+import com.leveldb.common.Comparator;
+import com.leveldb.common.Iterator;
+import com.leveldb.common.Slice;
+import com.leveldb.common.Status;
+
+/**
+ * MergingIterator for many children: the valid children are kept in a
+ * binary heap, smallest key on top when moving forward and largest on top
+ * when moving backward, so a step costs O(log n) comparisons instead of
+ * O(n). Switching direction repositions the other children as
+ * MergingIterator does and builds the heap again.
+ *
+ * Children with equal keys come out in the order MergingIterator gives
+ * them: lower index first going forward, higher index first going backward.
+ */
+public class HeapMergingIterator extends Iterator {
+
+	private Comparator comparator_;
+	private IteratorWrapper[] children_;
+	private int n_;
+	// indexes into children_ of the valid children, heap_[0] on top
+	private int[] heap_;
+	private int heap_size_;
+	private IteratorWrapper current_;
+
+	private MergingIterator.Direction direction_;
+
+	public HeapMergingIterator(Comparator comparator, Iterator children[],
+			int n) {
+		comparator_ = comparator;
+		children_ = new IteratorWrapper[n];
+		n_ = n;
+		heap_ = new int[n];
+		heap_size_ = 0;
+		current_ = null;
+		direction_ = MergingIterator.Direction.kForward;
+		for (int i = 0; i < n; i++) {
+			children_[i] = new IteratorWrapper();
+			children_[i].Set(children[i]);
+		}
+	}
+
+	public boolean Valid() {
+		return (current_ != null);
+	}
+
+	public void Close() {
+		for (int i = 0; i < n_; i++) {
+			children_[i].Set(null);
+		}
+		heap_size_ = 0;
+		current_ = null;
+		super.Close();
+	}
+
+	public void SeekToFirst() {
+		for (int i = 0; i < n_; i++) {
+			children_[i].SeekToFirst();
+		}
+		direction_ = MergingIterator.Direction.kForward;
+		BuildHeap();
+	}
+
+	public void SeekToLast() {
+		for (int i = 0; i < n_; i++) {
+			children_[i].SeekToLast();
+		}
+		direction_ = MergingIterator.Direction.kReverse;
+		BuildHeap();
+	}
+
+	public void Seek(Slice target) {
+		for (int i = 0; i < n_; i++) {
+			children_[i].Seek(target);
+		}
+		direction_ = MergingIterator.Direction.kForward;
+		BuildHeap();
+	}
+
+	public void Next() {
+		assert (Valid());
+
+		// Ensure that all children are positioned after key(), see
+		// MergingIterator.Next(). The heap then holds the other order.
+		if (direction_ != MergingIterator.Direction.kForward) {
+			for (int i = 0; i < n_; i++) {
+				IteratorWrapper child = children_[i];
+				if (child != current_) {
+					child.Seek(key());
+					if (child.Valid()
+							&& comparator_.Compare(key(), child.key()) == 0) {
+						child.Next();
+					}
+				}
+			}
+			direction_ = MergingIterator.Direction.kForward;
+			current_.Next();
+			BuildHeap();
+			return;
+		}
+
+		// current_ is on top
+		current_.Next();
+		ReplaceTop();
+	}
+
+	public void Prev() {
+		assert (Valid());
+
+		// Ensure that all children are positioned before key(), see
+		// MergingIterator.Prev()
+		if (direction_ != MergingIterator.Direction.kReverse) {
+			for (int i = 0; i < n_; i++) {
+				IteratorWrapper child = children_[i];
+				if (child != current_) {
+					child.Seek(key());
+					if (child.Valid()) {
+						// Child is at first entry >= key(). Step back one to be
+						// < key()
+						child.Prev();
+					} else {
+						// Child has no entries >= key(). Position at last
+						// entry.
+						child.SeekToLast();
+					}
+				}
+			}
+			direction_ = MergingIterator.Direction.kReverse;
+			current_.Prev();
+			BuildHeap();
+			return;
+		}
+
+		current_.Prev();
+		ReplaceTop();
+	}
+
+	public Slice key() {
+		assert (Valid());
+		return current_.key();
+	}
+
+	public Slice value() {
+		assert (Valid());
+		return current_.value();
+	}
+
+	public Status status() {
+		Status status = Status.OK();
+		for (int i = 0; i < n_; i++) {
+			status = children_[i].status();
+			if (!status.ok()) {
+				break;
+			}
+		}
+		return status;
+	}
+
+	// whether child a comes out before child b in the current direction
+	private boolean Before(int a, int b) {
+		int r = comparator_.Compare(children_[a].key(), children_[b].key());
+		if (direction_ == MergingIterator.Direction.kForward) {
+			return r < 0 || (r == 0 && a < b);
+		} else {
+			return r > 0 || (r == 0 && a > b);
+		}
+	}
+
+	// heap of all valid children, for direction_
+	private void BuildHeap() {
+		heap_size_ = 0;
+		for (int i = 0; i < n_; i++) {
+			if (children_[i].Valid()) {
+				heap_[heap_size_++] = i;
+			}
+		}
+		for (int i = heap_size_ / 2 - 1; i >= 0; i--) {
+			SiftDown(i);
+		}
+		UpdateCurrent();
+	}
+
+	// the top child has moved: put it where it belongs now, or drop it
+	private void ReplaceTop() {
+		if (!children_[heap_[0]].Valid()) {
+			heap_[0] = heap_[--heap_size_];
+		}
+		if (heap_size_ > 0) {
+			SiftDown(0);
+		}
+		UpdateCurrent();
+	}
+
+	private void SiftDown(int pos) {
+		int x = heap_[pos];
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= heap_size_) {
+				break;
+			}
+			if (child + 1 < heap_size_
+					&& Before(heap_[child + 1], heap_[child])) {
+				child++;
+			}
+			if (!Before(heap_[child], x)) {
+				break;
+			}
+			heap_[pos] = heap_[child];
+			pos = child;
+		}
+		heap_[pos] = x;
+	}
+
+	private void UpdateCurrent() {
+		current_ = (heap_size_ > 0) ? children_[heap_[0]] : null;
+	}
+}
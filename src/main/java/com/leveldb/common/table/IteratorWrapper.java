@@ -28,7 +28,9 @@ public class IteratorWrapper {
 	// Takes ownership of "iter" and will delete it when destroyed, or
 	// when Set() is invoked again.
 	public void Set(Iterator iter) {
-		// delete iter_;
+		if (iter_ != null && iter_ != iter) {
+			iter_.Close();
+		}
 		iter_ = iter;
 		if (iter_ == null) {
 			valid_ = false;
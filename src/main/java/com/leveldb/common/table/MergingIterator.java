@@ -14,9 +14,8 @@ import com.leveldb.common.Status;
  */
 public class MergingIterator extends Iterator {
 
-	// We might want to use a heap in case there are lots of children.
-	// For now we use a simple array since we expect a very small number
-	// of children in leveldb.
+	// A simple array, for a small number of children; with more of them,
+	// NewMergingIterator() gives a HeapMergingIterator instead.
 	private Comparator comparator_;
 	private IteratorWrapper[] children_;
 	private int n_;
@@ -40,6 +39,14 @@ public class MergingIterator extends Iterator {
 		return (current_ != null);
 	}
 
+	public void Close() {
+		for (int i = 0; i < n_; i++) {
+			children_[i].Set(null);
+		}
+		current_ = null;
+		super.Close();
+	}
+
 	public void SeekToFirst() {
 		for (int i = 0; i < n_; i++) {
 			children_[i].SeekToFirst();
@@ -172,6 +179,10 @@ public class MergingIterator extends Iterator {
 		current_ = largest;
 	}
 
+	// From this many children on, a heap finds the next one faster than a
+	// linear search does
+	static final int kMinHeapChildren = 8;
+
 	// Which direction is the iterator moving?
 	enum Direction {
 		kForward, kReverse
@@ -193,6 +204,8 @@ public class MergingIterator extends Iterator {
 			return NewEmptyIterator();
 		} else if (n == 1) {
 			return list[0];
+		} else if (n >= kMinHeapChildren) {
+			return new HeapMergingIterator(cmp, list, n);
 		} else {
 			return new MergingIterator(cmp, list, n);
 		}
@@ -1,5 +1,15 @@
 package com.leveldb.common.table;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import com.leveldb.common.Slice;
 import com.leveldb.common.Status;
 import com.leveldb.common.file._WritableFile;
@@ -8,6 +18,7 @@ import com.leveldb.common.options.Options;
 import com.leveldb.util.crc32java;
 import com.leveldb.util.util;
 
+import de.jarnbjo.jsnappy.Buffer;
 import de.jarnbjo.jsnappy.SnappyCompressor;
 
 public class TableBuilder {
@@ -16,6 +27,9 @@ public class TableBuilder {
 	// caller to close the file after calling Finish().
 	public TableBuilder(Options options, _WritableFile file) {
 		rep_ = new Rep(options, file);
+		if (rep_.filter_block != null) {
+			rep_.filter_block.StartBlock(0);
+		}
 	}
 
 	// REQUIRES: Either Finish() or Abandon() has been called.
@@ -60,12 +74,24 @@ public class TableBuilder {
 		if (rep_.pending_index_entry) {
 			assert (rep_.data_block.empty());
 			rep_.last_key = rep_.options.comparator.FindShortestSeparator(rep_.last_key, key);
-			byte[] handle_encoding = rep_.pending_handle.EncodeTo();
-			rep_.index_block.Add(new Slice(rep_.last_key), new Slice(
-					handle_encoding));
+			if (rep_.last_block != null && !rep_.last_block.written) {
+				// added once the block is written and its handle known
+				rep_.last_block.index_key = rep_.last_key;
+			} else {
+				byte[] handle_encoding = rep_.pending_handle.EncodeTo();
+				rep_.index_block.Add(new Slice(rep_.last_key), new Slice(
+						handle_encoding));
+			}
 			rep_.pending_index_entry = false;
 		}
 
+		if (rep_.filter_keys != null) {
+			// the filter starts a block at its offset, known once written
+			rep_.filter_keys.add(new Slice(key.data()));
+		} else if (rep_.filter_block != null) {
+			rep_.filter_block.AddKey(key);
+		}
+
 		// r.last_key.assign(key.data(), key.size());
 		rep_.last_key = key.data();
 		rep_.num_entries++;
@@ -89,11 +115,18 @@ public class TableBuilder {
 		if (rep_.data_block.empty())
 			return;
 		assert (!rep_.pending_index_entry);
+		if (rep_.pending != null) {
+			SubmitBlock();
+			return;
+		}
 		WriteBlock(rep_.data_block, rep_.pending_handle);
 		if (ok()) {
 			rep_.pending_index_entry = true;
 			rep_.status = rep_.file.Flush();
 		}
+		if (rep_.filter_block != null) {
+			rep_.filter_block.StartBlock(rep_.offset);
+		}
 
 	}
 
@@ -110,11 +143,29 @@ public class TableBuilder {
 		Flush();
 		assert (!rep_.closed);
 		rep_.closed = true;
-		BlockHandle metaindex_block_handle = new BlockHandle(); // dummy
-																// currenly
+		if (rep_.pending != null) {
+			WritePending(0);
+			rep_.pending = null;
+		}
+		BlockHandle filter_block_handle = new BlockHandle();
+		BlockHandle metaindex_block_handle = new BlockHandle();
 		BlockHandle index_block_handle = new BlockHandle(); // TODO
+
+		// Write filter block
+		if (ok() && rep_.filter_block != null) {
+			WriteRawBlock(rep_.filter_block.Finish(), new CompressionType(
+					CompressionType.kNoCompression), filter_block_handle);
+		}
+
+		// Write metaindex block
 		if (ok()) {
 			BlockBuilder meta_index_block = new BlockBuilder(rep_.options);
+			if (rep_.filter_block != null) {
+				// Add mapping from "filter.Name" to location of filter data
+				String key = "filter." + rep_.options.filter_policy.Name();
+				meta_index_block.Add(new Slice(key), new Slice(
+						filter_block_handle.EncodeTo()));
+			}
 			// TODO(postrelease): Add stats and other meta blocks
 			WriteBlock(meta_index_block, metaindex_block_handle);
 		}
@@ -151,6 +202,12 @@ public class TableBuilder {
 	public void Abandon() {
 		assert (!rep_.closed);
 		rep_.closed = true;
+		if (rep_.pending != null) {
+			for (PendingBlock b : rep_.pending) {
+				b.future.cancel(false);
+			}
+			rep_.pending = null;
+		}
 
 	}
 
@@ -161,9 +218,10 @@ public class TableBuilder {
 	}
 
 	// Size of the file generated so far. If invoked after a successful
-	// Finish() call, returns the size of the final generated file.
+	// Finish() call, returns the size of the final generated file. Blocks
+	// still being compressed count with their uncompressed size.
 	public long FileSize() {
-		return rep_.offset;
+		return rep_.offset + rep_.pending_bytes;
 
 	}
 
@@ -182,6 +240,8 @@ public class TableBuilder {
 		Slice raw = block.Finish();
 
 		Slice block_contents = new Slice();
+		// the type actually written may differ from the configured one, do
+		// not change the options
 		CompressionType type = r.options.compression;
 		// TODO(postrelease): Support more compression options: zlib?
 		switch (type.value) {
@@ -189,22 +249,49 @@ public class TableBuilder {
 			block_contents = raw;
 			break;
 
-		/*case CompressionType.kSnappyCompression: {
-			r.compressed_output = SnappyCompressor.compress(raw.data(), 0,
-					raw.size()).toByteArray();
-			if (r.compressed_output != null
-					&& r.compressed_output.length < raw.size() - (raw.size())
-							/ 8) {
-				block_contents = new Slice(r.compressed_output);
+		case CompressionType.kSnappyCompression: {
+			r.compressed_output = SnappyCompressor.compress(raw.array(), raw
+					.getOffset(), raw.size(), r.compressed_output);
+			if (r.compressed_output.getLength() < raw.size() - (raw.size() / 8)) {
+				block_contents = new Slice(r.compressed_output.getData(), 0,
+						r.compressed_output.getLength());
 			} else {
 				// Snappy not supported, or compressed less than 12.5%, so just
 				// store uncompressed form
 				block_contents = raw;
-				type.value = CompressionType.kNoCompression;
+				type = CompressionType.NoCompression;
 			}
 			break;
-		}*/
 		}
+
+		default:
+			block_contents = raw;
+			type = CompressionType.NoCompression;
+			break;
+		}
+		WriteRawBlock(block_contents, type, handle);
+		block.Reset();
+	}
+
+	// write "block_contents" followed by its trailer {type; crc}
+	void WriteRawBlock(Slice block_contents, CompressionType type,
+			BlockHandle handle) {
+		WriteRawBlock(block_contents, type, BlockCrc(block_contents, type),
+				handle);
+	}
+
+	// crc of "block_contents" extended to cover the block type
+	static int BlockCrc(Slice block_contents, CompressionType type) {
+		crc32java crc32 = new crc32java();
+		int crc = crc32.Value(block_contents.array(), block_contents
+				.getOffset(), block_contents.size());
+		return crc32.Extend(crc, new byte[] { type.value }, 1);
+	}
+
+	// As above, with the crc already computed
+	void WriteRawBlock(Slice block_contents, CompressionType type, int crc,
+			BlockHandle handle) {
+		Rep r = rep_;
 		handle.set_offset(r.offset);
 		handle.set_size(block_contents.size());
 		r.status = r.file.Append(block_contents);
@@ -215,12 +302,6 @@ public class TableBuilder {
 			byte trailer[] = new byte[Footer.kBlockTrailerSize];
 			// compress
 			trailer[0] = type.value;
-			// crc
-			crc32java crc32 = new crc32java();
-			int crc = crc32.Value(block_contents.data(), block_contents.size());
-			crc = crc32.Extend(crc, trailer, 1); // Extend crc to cover block
-													// type
-			//
 			util.putInt(trailer, 1, crc32java.Mask(crc));
 			r.status = r.file.Append(new Slice(trailer,
 					Footer.kBlockTrailerSize));
@@ -228,9 +309,131 @@ public class TableBuilder {
 				r.offset += block_contents.size() + Footer.kBlockTrailerSize;
 			}
 		}
+	}
 
-		r.compressed_output = null;
-		block.Reset();
+	// Hand the data block to the workers, and append to the file the blocks
+	// ahead of it that they are done with
+	private void SubmitBlock() {
+		Rep r = rep_;
+		PendingBlock b = new PendingBlock(r.data_block.Finish(),
+				r.options.compression);
+		r.data_block.Reset();
+		b.filter_keys = r.filter_keys;
+		if (r.filter_block != null) {
+			r.filter_keys = new ArrayList<Slice>();
+		}
+		b.future = Workers(r.options.compression_threads).submit(b);
+		r.pending.add(b);
+		r.pending_bytes += b.raw.size();
+		r.last_block = b;
+		r.pending_index_entry = true;
+		// at most two blocks per thread in flight
+		WritePending(2 * r.options.compression_threads);
+	}
+
+	// Append the pending blocks to the file in order, waiting for the
+	// workers until no more than "keep" are left
+	private void WritePending(int keep) {
+		Rep r = rep_;
+		while (!r.pending.isEmpty()) {
+			PendingBlock b = r.pending.peek();
+			if (r.pending.size() <= keep && !b.future.isDone()) {
+				break;
+			}
+			r.pending.poll();
+			r.pending_bytes -= b.raw.size();
+			if (!ok()) {
+				continue;
+			}
+			try {
+				b.future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				r.status = Status.IOError(new Slice(
+						"interrupted while compressing block"), null);
+				continue;
+			} catch (ExecutionException e) {
+				r.status = Status.IOError(new Slice(
+						"compressing block failed: " + e.getCause()), null);
+				continue;
+			}
+			WriteRawBlock(b.contents, b.type, b.crc, b.handle);
+			b.written = true;
+			if (!ok()) {
+				continue;
+			}
+			r.status = r.file.Flush();
+			if (r.filter_block != null) {
+				for (Slice key : b.filter_keys) {
+					r.filter_block.AddKey(key);
+				}
+				r.filter_block.StartBlock(r.offset);
+			}
+			if (b.index_key != null) {
+				r.index_block.Add(new Slice(b.index_key), new Slice(b.handle
+						.EncodeTo()));
+			}
+			r.pending_handle = b.handle;
+		}
+	}
+
+	// a data block being compressed and checksummed by a worker
+	static class PendingBlock implements Runnable {
+		final Slice raw; // owned, BlockBuilder.Finish() returns a copy
+		CompressionType type;
+		Slice contents;
+		int crc;
+		Future<?> future;
+		// keys for the filter block, null if there is none
+		List<Slice> filter_keys;
+		// separator to the next block, null until its first key is added
+		byte[] index_key;
+		BlockHandle handle = new BlockHandle();
+		boolean written = false;
+
+		PendingBlock(Slice raw, CompressionType type) {
+			this.raw = raw;
+			this.type = type;
+		}
+
+		public void run() {
+			contents = raw;
+			if (type.value == CompressionType.kSnappyCompression) {
+				Buffer out = SnappyCompressor.compress(raw.array(), raw
+						.getOffset(), raw.size(), null);
+				if (out.getLength() < raw.size() - (raw.size() / 8)) {
+					contents = new Slice(out.getData(), 0, out.getLength());
+				} else {
+					type = CompressionType.NoCompression;
+				}
+			} else if (type.value != CompressionType.kNoCompression) {
+				type = CompressionType.NoCompression;
+			}
+			crc = BlockCrc(contents, type);
+		}
+	}
+
+	// compresses and checksums the data blocks of all builders with
+	// compression_threads > 1; grows to the largest number asked for
+	private static ThreadPoolExecutor workers_;
+
+	private static synchronized ThreadPoolExecutor Workers(int threads) {
+		if (workers_ == null) {
+			workers_ = new ThreadPoolExecutor(threads, threads, 60,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "table-compress");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			workers_.allowCoreThreadTimeOut(true);
+		} else if (workers_.getMaximumPoolSize() < threads) {
+			workers_.setMaximumPoolSize(threads);
+			workers_.setCorePoolSize(threads);
+		}
+		return workers_;
 	}
 
 	class Rep {
@@ -241,6 +444,7 @@ public class TableBuilder {
 		Status status;
 		BlockBuilder data_block;
 		BlockBuilder index_block;
+		FilterBlockBuilder filter_block;
 		byte[] last_key;
 		long num_entries;
 		boolean closed; // Either Finish() or Abandon() has been called.
@@ -258,7 +462,16 @@ public class TableBuilder {
 		boolean pending_index_entry;
 		BlockHandle pending_handle = new BlockHandle(); // Handle to add to index block
 
-		byte[] compressed_output;
+		Buffer compressed_output; // reused by every compressed block
+
+		// With compression_threads > 1: data blocks handed to the workers
+		// and not written yet, in file order, and their uncompressed size
+		ArrayDeque<PendingBlock> pending;
+		long pending_bytes;
+		// the last data block handed over
+		PendingBlock last_block;
+		// keys of the current data block, for the filter block
+		List<Slice> filter_keys;
 
 		public Rep(Options opt, _WritableFile f) {
 			options = opt;
@@ -267,12 +480,20 @@ public class TableBuilder {
 			offset = 0;
 			data_block = new BlockBuilder(options);
 			index_block = new BlockBuilder(index_block_options);
+			filter_block = (opt.filter_policy == null ? null
+					: new FilterBlockBuilder(opt.filter_policy));
 			num_entries = 0;
 			closed = false;
 			pending_index_entry = false;
 			index_block_options.block_restart_interval = 1;
 			// wlu 2012-5-10
 			status = Status.OK();
+			if (opt.compression_threads > 1) {
+				pending = new ArrayDeque<PendingBlock>();
+				if (filter_block != null) {
+					filter_keys = new ArrayList<Slice>();
+				}
+			}
 		}
 	}
 
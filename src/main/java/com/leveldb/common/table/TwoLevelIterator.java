@@ -170,7 +170,13 @@ public class TwoLevelIterator extends Iterator {
 		}
 	}
 
-	// Set data_iter_ to be input parameter
+	public void Close() {
+		SetDataIterator(null);
+		index_iter_.Set(null);
+		super.Close();
+	}
+
+	// Set data_iter_ to be input parameter, closing the one it replaces
 	private void SetDataIterator(Iterator data_iter) {
 		if (data_iter_.iter() != null) {
 			SaveError(data_iter_.status());
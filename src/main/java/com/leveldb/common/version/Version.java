@@ -2,12 +2,16 @@ package com.leveldb.common.version;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.leveldb.common.Comparator;
+import com.leveldb.common.Function;
 import com.leveldb.common.Iterator;
 import com.leveldb.common.Slice;
 import com.leveldb.common.Status;
+import com.leveldb.common.Table;
 import com.leveldb.common.config;
 import com.leveldb.common.comparator.InternalKeyComparator;
 import com.leveldb.common.db.FileMetaData;
@@ -57,6 +61,9 @@ public class Version {
 	// are initialized by Finalize().
 	public double compaction_score_;
 	public int compaction_level_;
+	// The compaction score of every level, so that another level can be
+	// picked while the best one is being compacted.
+	public double compaction_scores_[];
 
 	public static long TotalFileSize(List<FileMetaData> files) {
 		long sum = 0;
@@ -179,7 +186,7 @@ public class Version {
 		for (int i = 0; i < files_.get(0).size(); i++) {
 			iters.add(vset_.table_cache_.NewIterator(readoption, files_.get(0)
 					.get(i).getNumber(), files_.get(0).get(i).getFile_size(),
-					null));
+					null, true));
 		}
 
 		// For levels > 0, we can use a concatenating iterator that sequentially
@@ -201,40 +208,47 @@ public class Version {
 		int seek_file_level;
 	}
 
+	// state of a point lookup, filled by SaveValue as Table.InternalGet()
+	// hands over the entry found in each probed file
+	static class Saver {
+		static final int kNotFound = 0;
+		static final int kFound = 1;
+		static final int kDeleted = 2;
+		static final int kCorrupt = 3;
+
+		int state;
+		Comparator ucmp;
+		Slice user_key;
+		byte[] value;
+	}
+
 	/*
-	 * If "iter" points at a value or deletion for user_key, store either the
-	 * value, or a NotFound error and return true. Else return false.
+	 * Callback of Table.InternalGet(): args are {Saver, ikey, v}. If ikey is
+	 * a value or deletion for saver.user_key, record it in the saver.
 	 */
-	boolean GetValue(Comparator cmp, Iterator iter, Slice user_key,
-			Slice value, Status[] s) {
-		if (!iter.Valid()) {
-			return false; // not stop
-		}
-		ParsedInternalKey parsed_key = InternalKey
-				.ParseInternalKey_(iter.key());
-
-		if (parsed_key == null) {
-			s[0] = Status.Corruption(new Slice("corrupted key for "), user_key);
-			return true; // stop with error
-		}
-		if (cmp.Compare(parsed_key.user_key, user_key) != 0) {
-			return false; // not stop
-		}
-		switch (parsed_key.type.value) {
-		case ValueType.kTypeDeletion:
-			s[0] = Status.NotFound(new Slice(), null);
-			// Use an empty error message for speed
-			break; // stop with error
-		case ValueType.kTypeValue: {
-			Slice v = iter.value();
-			value.setData_(v.data());
-			// value->assign(v.data(), v.size());
-			break; // stop and set the data, but ...
-		}
+	static class SaveValue implements Function {
+		@Override
+		public void exec(Object... args) {
+			Saver s = (Saver) (args[0]);
+			Slice ikey = (Slice) (args[1]);
+			Slice v = (Slice) (args[2]);
+			ParsedInternalKey parsed_key = InternalKey.ParseInternalKey_(ikey);
+			if (parsed_key == null) {
+				s.state = Saver.kCorrupt;
+			} else {
+				if (s.ucmp.Compare(parsed_key.user_key, s.user_key) == 0) {
+					s.state = (parsed_key.type.value == ValueType.kTypeValue) ? Saver.kFound
+							: Saver.kDeleted;
+					if (s.state == Saver.kFound) {
+						s.value = v.data();
+					}
+				}
+			}
 		}
-		return true;
 	}
 
+	static final SaveValue save_value_ = new SaveValue();
+
 	// sort a list of FileMetaData according to number and return
 	// the sorted array
 	FileMetaData[] sort(List<FileMetaData> ifilemd) {
@@ -293,8 +307,39 @@ public class Version {
 	 */
 	public byte[] Get(ReadOptions options, LookupKey k, GetStats stats,
 			Status[] s) {
-		Slice value = new Slice();
-		byte value_array[] = new byte[0];
+		return Get(options, k, stats, s, null, null);
+	}
+
+	/*
+	 * Get() for each of "keys", which must be sorted by user key: values[i],
+	 * s[i] and stats[i] are what Get() returns and fills for keys[i]. A table
+	 * is looked up in the table cache once for the whole batch, and a data
+	 * block is read once for the run of keys that fall in it.
+	 */
+	public void MultiGet(ReadOptions options, LookupKey[] keys,
+			byte[][] values, GetStats[] stats, Status[] s) {
+		Map<Long, Table.GetContext> contexts = new HashMap<Long, Table.GetContext>();
+		List<TableCache.TableAndFile> tables = new ArrayList<TableCache.TableAndFile>();
+		Status[] st = new Status[1];
+		try {
+			for (int i = 0; i < keys.length; i++) {
+				values[i] = Get(options, keys[i], stats[i], st, contexts,
+						tables);
+				s[i] = st[0];
+			}
+		} finally {
+			for (TableCache.TableAndFile t : tables) {
+				vset_.table_cache_.Release(t);
+			}
+		}
+	}
+
+	// "contexts" holds the tables probed so far by a MultiGet(), by file
+	// number, and "tables" their cache entries to release when it is done;
+	// both null for a single Get()
+	private byte[] Get(ReadOptions options, LookupKey k, GetStats stats,
+			Status[] s, Map<Long, Table.GetContext> contexts,
+			List<TableCache.TableAndFile> tables) {
 		Slice ikey = k.internal_key();
 		Slice user_key = k.user_key();
 		Comparator ucmp = vset_.icmp_.user_comparator();
@@ -369,23 +414,50 @@ public class Version {
 				last_file_read = f;
 				last_file_read_level = level;
 
-				Iterator iter = vset_.table_cache_.NewIterator(options,
-						f.getNumber(), f.getFile_size(), null);
-				iter.Seek(ikey);
-
-				boolean done = GetValue(ucmp, iter, user_key, value, s);
-				value_array = util.add(value_array, value.data()); // add value
-																	// each loop
-				if (!iter.status().ok()) {
-					s[0] = iter.status();
-					iter = null;
-					return value_array;
+				Saver saver = new Saver();
+				saver.state = Saver.kNotFound;
+				saver.ucmp = ucmp;
+				saver.user_key = user_key;
+				if (contexts == null) {
+					s[0] = vset_.table_cache_.Get(options, f.getNumber(),
+							f.getFile_size(), ikey, saver, save_value_,
+							level == 0);
 				} else {
-					iter = null;
-					if (done) { // Here is the normal return. I think only one
-								// value is found, which is the 1st one
-						return value_array;
+					Table.GetContext ctx = contexts.get(f.getNumber());
+					if (ctx == null) {
+						TableCache.TableAndFile t = vset_.table_cache_
+								.GetTable(f.getNumber(), f.getFile_size(),
+										level == 0);
+						if (t == null) {
+							s[0] = Status.IOError(new Slice(
+									"cannot open table file " + f.getNumber()),
+									null);
+							return null;
+						}
+						tables.add(t);
+						ctx = new Table.GetContext(t.table());
+						contexts.put(f.getNumber(), ctx);
 					}
+					s[0] = ctx.table().InternalGet(options, ikey, saver,
+							save_value_, ctx);
+				}
+				if (!s[0].ok()) {
+					return null;
+				}
+				switch (saver.state) {
+				case Saver.kNotFound:
+					break; // Keep searching in other files
+				case Saver.kFound:
+					return saver.value;
+				case Saver.kDeleted:
+					s[0] = Status.NotFound(new Slice(), null); // Use empty error
+																// message for
+																// speed
+					return null;
+				case Saver.kCorrupt:
+					s[0] = Status.Corruption(new Slice("corrupted key for "),
+							user_key);
+					return null;
 				}
 			}
 		}
@@ -640,6 +712,7 @@ public class Version {
 		file_to_compact_level_ = -1;
 		compaction_score_ = -1;
 		compaction_level_ = -1;
+		compaction_scores_ = new double[config.kNumLevels];
 		files_ = new ArrayList<List<FileMetaData>>(config.kNumLevels);
 		for (int i = 0; i < config.kNumLevels; i++) {
 			files_.add(new ArrayList<FileMetaData>());
@@ -5,6 +5,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
@@ -315,14 +316,32 @@ public class VersionSet {
 	 * release *mu while actually writing to the file.
 	 * <p>
 	 * </p>
-	 * REQUIRES: mu is held on entry. REQUIRES: no other thread concurrently
-	 * calls LogAndApply()
+	 * REQUIRES: mu is held on entry. Concurrent calls, from several
+	 * background compactions, are applied one after the other.
 	 * 
 	 * @param edit
 	 * @param mu
 	 * @return
 	 */
 	public Status LogAndApply(VersionEdit edit, ReentrantLock mu) {
+		// Wait for a concurrent call to install its version: this edit must
+		// apply on top of it
+		if (manifest_cv_ == null) {
+			manifest_cv_ = mu.newCondition();
+		}
+		while (manifest_writing_) {
+			manifest_cv_.awaitUninterruptibly();
+		}
+		manifest_writing_ = true;
+		try {
+			return LogAndApplyLocked(edit, mu);
+		} finally {
+			manifest_writing_ = false;
+			manifest_cv_.signalAll();
+		}
+	}
+
+	private Status LogAndApplyLocked(VersionEdit edit, ReentrantLock mu) {
 		if (edit.has_log_number_) {
 			assert (edit.log_number_ >= log_number_);
 			assert (edit.log_number_ < next_file_number_);
@@ -334,6 +353,24 @@ public class VersionSet {
 			edit.SetPrevLogNumber(prev_log_number_);
 		}
 
+		// Roll over to a new MANIFEST once this one has grown past
+		// max_manifest_file_size: the new one starts with a snapshot of the
+		// current version, so Recover() has less to replay. The old one
+		// stays ManifestFileNumber(), safe from DeleteObsoleteFiles(), until
+		// CURRENT names the new one.
+		_WritableFile old_file = null;
+		Writer old_log = null;
+		long new_manifest_number = manifest_file_number_;
+		if (descriptor_log_ != null
+				&& manifest_file_size_ >= options_.max_manifest_file_size
+				&& manifest_file_size_ >= 2 * manifest_snapshot_size_) {
+			old_file = descriptor_file_;
+			old_log = descriptor_log_;
+			descriptor_file_ = null;
+			descriptor_log_ = null;
+			new_manifest_number = NewFileNumber();
+		}
+
 		edit.SetNextFile(next_file_number_);
 		edit.SetLastSequence(last_sequence_);
 
@@ -355,14 +392,16 @@ public class VersionSet {
 		Status s = Status.OK();
 		if (descriptor_log_ == null) {
 			// No reason to unlock *mu here since we only hit this path in the
-			// first call to LogAndApply (when opening the database).
+			// first call to LogAndApply (when opening the database), or once
+			// in a long while on a roll over.
 			assert (descriptor_file_ == null);
 			new_manifest_file = filename.DescriptorFileName(dbname_,
-					manifest_file_number_);
+					new_manifest_number);
 			edit.SetNextFile(next_file_number_);
 			descriptor_file_ = env_.NewWritableFile(new_manifest_file);
 			descriptor_log_ = new Writer(descriptor_file_);
 			s = WriteSnapshot(descriptor_log_);
+			manifest_file_size_ = manifest_snapshot_size_;
 		}
 
 		// Unlock during expensive MANIFEST log write
@@ -376,13 +415,14 @@ public class VersionSet {
 				if (s.ok()) {
 					s = descriptor_file_.Sync();
 				}
+				manifest_file_size_ += record.length;
 			}
 
 			// If we just created a new descriptor file, install it by writing a
 			// new CURRENT file that points to it.
-			if (s.ok() && new_manifest_file != "") {
+			if (s.ok() && new_manifest_file != null) {
 				s = filename.SetCurrentFile(env_, dbname_,
-						manifest_file_number_);
+						new_manifest_number);
 			}
 
 			mu.lock();
@@ -393,14 +433,25 @@ public class VersionSet {
 			AppendVersion(v);
 			log_number_ = edit.log_number_;
 			prev_log_number_ = edit.prev_log_number_;
+			manifest_file_number_ = new_manifest_number;
+			if (old_file != null) {
+				// left for DeleteObsoleteFiles()
+				LOG.info("Rolled over to MANIFEST #" + manifest_file_number_);
+				old_file.Close();
+			}
 		} else {
 			v = null;
-			if (new_manifest_file != "") {
+			if (new_manifest_file != null) {
 				descriptor_log_ = null;
 				descriptor_file_.Close();
 				descriptor_file_ = null;
 				env_.DeleteFile(new_manifest_file);
 			}
+			if (old_file != null) {
+				// go on with the old MANIFEST, still named by CURRENT
+				descriptor_file_ = old_file;
+				descriptor_log_ = old_log;
+			}
 		}
 
 		return s;
@@ -431,7 +482,8 @@ public class VersionSet {
 		current = current.substring(0, current.length() - 1);
 
 		String dscname = dbname_ + "/" + current;
-		_SequentialFile file = env_.NewSequentialFile(dscname);
+		_SequentialFile file = env_.NewSequentialFile(dscname,
+				options_.log_readahead_size);
 
 		boolean have_log_number = false;
 		boolean have_prev_log_number = false;
@@ -612,11 +664,12 @@ public class VersionSet {
 		int level;
 
 		// We prefer compactions triggered by too much data in a level over
-		// the compactions triggered by seeks.
-		boolean size_compaction = (current_.compaction_score_ >= 1);
-		boolean seek_compaction = (current_.file_to_compact_ != null);
-		if (size_compaction) {
-			level = current_.compaction_level_;
+		// the compactions triggered by seeks. Levels that a running
+		// compaction reads or writes are left alone.
+		int size_level = SizeCompactionLevel();
+		boolean seek_compaction = SeekCompactionAllowed();
+		if (size_level >= 0) {
+			level = size_level;
 			assert (level >= 0);
 			assert (level + 1 < config.kNumLevels);
 			c = new Compaction(level);
@@ -645,6 +698,7 @@ public class VersionSet {
 
 		c.input_version_ = current_;
 		c.input_version_.Ref();
+		MarkCompacting(c, true);
 
 		// Files in level 0 may overlap each other, so pick up all overlapping
 		// ones
@@ -702,6 +756,7 @@ public class VersionSet {
 		Compaction c = new Compaction(level);
 		c.input_version_ = current_;
 		c.input_version_.Ref();
+		MarkCompacting(c, true);
 		c.inputs_.set(0, inputs);
 		// might need to construct :
 		c.inputs_.set(1, new ArrayList<FileMetaData>());
@@ -743,7 +798,7 @@ public class VersionSet {
 					for (int i = 0; i < files.size(); i++) {
 						list[num++] = table_cache_.NewIterator(options,
 								files.get(i).number, files.get(i).file_size,
-								null);
+								null, true);
 					}
 				} else {
 					// Create concatenating iterator for the files from this
@@ -764,10 +819,55 @@ public class VersionSet {
 		return result;
 	}
 
-	// Returns true iff some level needs a compaction.
+	// Returns true iff some level needs a compaction that can start now,
+	// next to the running ones.
 	public boolean NeedsCompaction() {
+		return SizeCompactionLevel() >= 0 || SeekCompactionAllowed();
+	}
+
+	// Whether a running compaction reads or writes "level". Such a level is
+	// not picked for another compaction until ReleaseCompaction().
+	public boolean IsCompacting(int level) {
+		return compacting_levels_[level];
+	}
+
+	// Whether a compaction of "level" into "level + 1" can start now
+	public boolean CanCompact(int level) {
+		return !compacting_levels_[level] && !compacting_levels_[level + 1];
+	}
+
+	// The compaction returned by PickCompaction() or CompactRange() is done
+	// (or abandoned): its levels can be compacted again.
+	public void ReleaseCompaction(Compaction c) {
+		MarkCompacting(c, false);
+	}
+
+	private void MarkCompacting(Compaction c, boolean compacting) {
+		assert (compacting_levels_[c.level()] != compacting);
+		compacting_levels_[c.level()] = compacting;
+		compacting_levels_[c.level() + 1] = compacting;
+	}
+
+	// The level with the highest score >= 1 that can be compacted now, or -1
+	private int SizeCompactionLevel() {
 		Version v = current_;
-		return (v.compaction_score_ >= 1) || (v.file_to_compact_ != null);
+		int best_level = -1;
+		double best_score = -1;
+		for (int level = 0; level < config.kNumLevels - 1; level++) {
+			double score = v.compaction_scores_[level];
+			if (score >= 1 && score > best_score && CanCompact(level)) {
+				best_level = level;
+				best_score = score;
+			}
+		}
+		return best_level;
+	}
+
+	private boolean SeekCompactionAllowed() {
+		Version v = current_;
+		return v.file_to_compact_ != null
+				&& v.file_to_compact_level_ + 1 < config.kNumLevels
+				&& CanCompact(v.file_to_compact_level_);
 	}
 
 	// Add all files listed in any live version to *live.
@@ -809,13 +909,14 @@ public class VersionSet {
 					// "ikey" falls in the range for this table. Add the
 					// approximate offset of "ikey" within the table.
 					Table tableptr[] = new Table[1];
-					table_cache_.NewIterator(new ReadOptions(),
+					Iterator iter = table_cache_.NewIterator(new ReadOptions(),
 							files.get(i).number, files.get(i).file_size,
-							tableptr);
-					if (tableptr != null) {
+							tableptr, level == 0);
+					if (tableptr[0] != null) {
 						result += tableptr[0]
 								.ApproximateOffsetOf(ikey.Encode());
 					}
+					iter.Close();
 				}
 			}
 		}
@@ -886,6 +987,7 @@ public class VersionSet {
 						/ (double) MaxBytesForLevel(level);
 			}
 
+			v.compaction_scores_[level] = score;
 			if (score > best_score) {
 				best_level = level;
 				best_score = score;
@@ -1062,6 +1164,7 @@ public class VersionSet {
 		}
 
 		byte[] record = edit.EncodeTo();
+		manifest_snapshot_size_ = record.length;
 		return log.AddRecord(new Slice(record));
 	}
 
@@ -1096,6 +1199,10 @@ public class VersionSet {
 	// Opened lazily
 	_WritableFile descriptor_file_;
 	Writer descriptor_log_;
+	// bytes of the records in descriptor_log_, and of the snapshot it
+	// starts with
+	long manifest_file_size_;
+	long manifest_snapshot_size_;
 	Version dummy_versions_; // Head of circular doubly-linked list of versions.
 	Version current_; // == dummy_versions_.prev_
 
@@ -1103,6 +1210,13 @@ public class VersionSet {
 	// Either an empty string, or a valid InternalKey.
 	String compact_pointer_[] = new String[config.kNumLevels];
 
+	// Levels read or written by a running compaction
+	boolean compacting_levels_[] = new boolean[config.kNumLevels];
+
+	// Set while a LogAndApply() writes the MANIFEST, with the lock released
+	boolean manifest_writing_ = false;
+	Condition manifest_cv_;
+
 	// No copying allowed
 
 }
@@ -0,0 +1,110 @@
+package com.leveldb.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bump allocator over a list of ByteBuffer slabs, as leveldb's util/arena:
+ * many small allocations share a few large arrays, and all of them go away
+ * together with the arena.
+ *
+ * An allocation is named by an address, {slab index(32) | offset(32)}; use
+ * Slab() and Offset() to get at its bytes. Slabs start at kMinBlockSize and
+ * double up to kMaxBlockSize, so that a small memtable stays small and a
+ * large one is made of few objects.
+ *
+ * Allocate() needs external synchronization, MemoryUsage() does not.
+ */
+public class Arena {
+
+	static final int kMinBlockSize = 4096;
+	static final int kMaxBlockSize = 1 << 20;
+
+	// Allocation state: index in blocks_ of the block being filled
+	private int alloc_index_;
+	private int alloc_ptr_;
+	private int alloc_bytes_remaining_;
+	private int next_block_size_;
+
+	// Slabs allocated so far
+	private ArrayList<ByteBuffer> blocks_;
+
+	// Total memory usage of the arena
+	private AtomicLong memory_usage_;
+
+	public Arena() {
+		alloc_index_ = -1;
+		alloc_ptr_ = 0;
+		alloc_bytes_remaining_ = 0;
+		next_block_size_ = kMinBlockSize;
+		blocks_ = new ArrayList<ByteBuffer>();
+		memory_usage_ = new AtomicLong(0);
+	}
+
+	// Return the address of a newly allocated run of "bytes" bytes
+	public long Allocate(int bytes) {
+		// The semantics of what to return are a bit messy if we allow
+		// 0-byte allocations, so we disallow them here (we don't need
+		// them for our internal use).
+		assert (bytes > 0);
+		if (bytes <= alloc_bytes_remaining_) {
+			long result = Address(alloc_index_, alloc_ptr_);
+			alloc_ptr_ += bytes;
+			alloc_bytes_remaining_ -= bytes;
+			return result;
+		}
+		return AllocateFallback(bytes);
+	}
+
+	// The array holding the allocation at "address"
+	public byte[] Slab(long address) {
+		return blocks_.get((int) (address >>> 32)).array();
+	}
+
+	// Where the allocation at "address" starts in its Slab()
+	public static int Offset(long address) {
+		return (int) address;
+	}
+
+	// Returns an estimate of the total memory usage of data allocated
+	// by the arena.
+	public long MemoryUsage() {
+		return memory_usage_.get();
+	}
+
+	private static long Address(int block, int offset) {
+		return ((long) block << 32) | (offset & 0xffffffffL);
+	}
+
+	private long AllocateFallback(int bytes) {
+		if (bytes > next_block_size_ / 4) {
+			// Object is more than a quarter of our block size. Allocate it
+			// separately to avoid wasting too much space in leftover bytes.
+			// The current block stays the one to allocate from.
+			AllocateNewBlock(bytes);
+			return Address(blocks_.size() - 1, 0);
+		}
+
+		// We waste the remaining space in the current block.
+		AllocateNewBlock(next_block_size_);
+		alloc_index_ = blocks_.size() - 1;
+		alloc_ptr_ = 0;
+		alloc_bytes_remaining_ = next_block_size_;
+		if (next_block_size_ < kMaxBlockSize) {
+			next_block_size_ *= 2;
+		}
+
+		long result = Address(alloc_index_, alloc_ptr_);
+		alloc_ptr_ += bytes;
+		alloc_bytes_remaining_ -= bytes;
+		return result;
+	}
+
+	private ByteBuffer AllocateNewBlock(int block_bytes) {
+		ByteBuffer result = ByteBuffer.allocate(block_bytes);
+		blocks_.add(result);
+		memory_usage_.addAndGet(block_bytes + 8 /* slot in blocks_ */);
+		return result;
+	}
+}
@@ -0,0 +1,131 @@
+package com.leveldb.util;
+
+import com.leveldb.common.FilterPolicy;
+import com.leveldb.common.Slice;
+
+/**
+ * Bloom filter over a set of keys; k probes per key are derived from a single
+ * 32-bit hash by double hashing (see [Kirsch, Mitzenmacher 2006]).
+ *
+ * Filter layout: {bits[(n*bits_per_key+7)/8] | k(1)}
+ */
+public class BloomFilterPolicy extends FilterPolicy {
+
+	private static int BloomHash(byte[] key, int off, int len) {
+		return Hash(key, off, len, 0xbc9f1d34);
+	}
+
+	// Same hash as leveldb's util/hash.cc (similar to murmur hash), so that
+	// filters are laid out bit for bit as the C++ implementation does
+	@SuppressWarnings("fallthrough")
+	static int Hash(byte[] data, int off, int n, int seed) {
+		final int m = 0xc6a4a793;
+		final int r = 24;
+		int limit = off + n;
+		int h = seed ^ (n * m);
+
+		// Pick up four bytes at a time
+		while (off + 4 <= limit) {
+			int w = (data[off] & 0xff) | ((data[off + 1] & 0xff) << 8)
+					| ((data[off + 2] & 0xff) << 16)
+					| ((data[off + 3] & 0xff) << 24); // little-endian
+			off += 4;
+			h += w;
+			h *= m;
+			h ^= (h >>> 16);
+		}
+
+		// Pick up remaining bytes
+		switch (limit - off) {
+		case 3:
+			h += (data[off + 2] & 0xff) << 16;
+			// fall through
+		case 2:
+			h += (data[off + 1] & 0xff) << 8;
+			// fall through
+		case 1:
+			h += (data[off] & 0xff);
+			h *= m;
+			h ^= (h >>> r);
+			break;
+		}
+		return h;
+	}
+
+	private int bits_per_key_;
+	private int k_;
+
+	public BloomFilterPolicy(int bits_per_key) {
+		bits_per_key_ = bits_per_key;
+		// We intentionally round down to reduce probing cost a little bit
+		k_ = (int) (bits_per_key * 0.69); // 0.69 =~ ln(2)
+		if (k_ < 1)
+			k_ = 1;
+		if (k_ > 30)
+			k_ = 30;
+	}
+
+	@Override
+	public String Name() {
+		return "leveldb.BuiltinBloomFilter";
+	}
+
+	@Override
+	public byte[] CreateFilter(Slice[] keys, int n) {
+		// Compute bloom filter size (in both bits and bytes)
+		int bits = n * bits_per_key_;
+
+		// For small n, we can see a very high false positive rate. Fix it
+		// by enforcing a minimum bloom filter length.
+		if (bits < 64)
+			bits = 64;
+
+		int bytes = (bits + 7) / 8;
+		bits = bytes * 8;
+
+		byte[] array = new byte[bytes + 1];
+		array[bytes] = (byte) k_; // Remember # of probes in filter
+		for (int i = 0; i < n; i++) {
+			// Use double-hashing to generate a sequence of hash values.
+			Slice key = keys[i];
+			int h = BloomHash(key.array(), key.getOffset(), key.size());
+			int delta = (h >>> 17) | (h << 15); // Rotate right 17 bits
+			for (int j = 0; j < k_; j++) {
+				int bitpos = (int) ((h & 0xffffffffL) % bits);
+				array[bitpos / 8] |= (1 << (bitpos % 8));
+				h += delta;
+			}
+		}
+		return array;
+	}
+
+	@Override
+	public boolean KeyMayMatch(Slice key, Slice bloom_filter) {
+		int len = bloom_filter.size();
+		if (len < 2)
+			return false;
+
+		byte[] array = bloom_filter.array();
+		int base = bloom_filter.getOffset();
+		int bits = (len - 1) * 8;
+
+		// Use the encoded k so that we can read filters generated by
+		// bloom filters created using different parameters.
+		int k = array[base + len - 1];
+		if (k > 30) {
+			// Reserved for potentially new encodings for short bloom filters.
+			// Consider it a match.
+			return true;
+		}
+
+		int h = BloomHash(key.array(), key.getOffset(), key.size());
+		int delta = (h >>> 17) | (h << 15); // Rotate right 17 bits
+		for (int j = 0; j < k; j++) {
+			int bitpos = (int) ((h & 0xffffffffL) % bits);
+			if ((array[base + bitpos / 8] & (1 << (bitpos % 8))) == 0)
+				return false;
+			h += delta;
+		}
+		return true;
+	}
+}
@@ -21,9 +21,10 @@ import com.leveldb.common.Function;
 import com.leveldb.common.Logger;
 import com.leveldb.common.Slice;
 import com.leveldb.common.Status;
+import com.leveldb.common.file.BufferedSequentialFile;
 import com.leveldb.common.file.DefaultRandomAccessFile;
-import com.leveldb.common.file.DefaultSequentialFile;
 import com.leveldb.common.file.DefaultWritableFile;
+import com.leveldb.common.file.MmapRandomAccessFile;
 import com.leveldb.common.file._RandomAccessFile;
 import com.leveldb.common.file._SequentialFile;
 import com.leveldb.common.file._WritableFile;
@@ -33,54 +34,88 @@ public class DefaultEnv extends Env {
 	 * 
 	 */
 	private final ReentrantLock mutex = new ReentrantLock();
-	private final Condition bgsignal_ = mutex.newCondition();
 
-	private Thread bgthread_;// background thread
-	private boolean started_bgthread_;
+	// Background threads of one priority, draining one queue. Guarded by
+	// mutex.
+	class ThreadPool {
+		private final Condition bgsignal_ = mutex.newCondition();
+		/*
+		 * Functions in queue_ do not have args, values dealt with are set as
+		 * member variables
+		 */
+		private final Queue<Function> queue_ = new ConcurrentLinkedQueue<Function>();
+		private int total_threads_ = 1;
+		private int started_threads_ = 0;
+		// bumped by EndSchedule(): threads of an older generation exit once
+		// the queue is drained
+		private int generation_ = 0;
+
+		void Schedule(Function fun) {
+			// start background threads if necessary
+			while (started_threads_ < total_threads_) {
+				started_threads_++;
+				new BGThread(this, generation_).start();
+			}
+			queue_.add(fun);
+			bgsignal_.signal();
+		}
 
-	private boolean stop_bgthread; // used to stop the ..
-	/*
-	 * Functions in queue_ do not have args, values dealt with are set as member
-	 * variables
-	 */
-	private Queue<Function> queue_;
+		void Stop() {
+			generation_++;
+			started_threads_ = 0;
+			bgsignal_.signalAll();
+		}
+	}
 
 	class BGThread extends Thread {
+		private final ThreadPool pool_;
+		private final int generation_;
+
+		BGThread(ThreadPool pool, int generation) {
+			pool_ = pool;
+			generation_ = generation;
+		}
+
 		public void run() {
 			while (true) {
-				//
-				if (stop_bgthread) {
-					break;
-				}
+				Function fun;
 				mutex.lock();
-				if (queue_.isEmpty()) {
-					try {
-						// wlu, 2012-6-2, so that the thread will be end b
-						// DB.Close()
-						bgsignal_.await();
-					} catch (InterruptedException e) {
-						// e.printStackTrace();
-						System.out
-								.println("Thread is interrupted from outside.");
+				try {
+					while (pool_.queue_.isEmpty()) {
+						if (pool_.generation_ != generation_) {
+							// wlu, 2012-6-2, so that the thread will be end
+							// by DB.Close()
+							return;
+						}
+						pool_.bgsignal_.awaitUninterruptibly();
 					}
+					fun = pool_.queue_.poll();
+				} finally {
+					mutex.unlock();
 				}
-				Function fun = queue_.poll();
-				mutex.unlock();
-				if (fun != null)
-					fun.exec();
+				fun.exec();
 			}
 		}
 	}
 
+	// indexed by Priority.ordinal()
+	private final ThreadPool[] pools_;
+
 	public DefaultEnv() {
-		started_bgthread_ = false; // not started yet
-		stop_bgthread = false;
-		queue_ = new ConcurrentLinkedQueue<Function>();
+		pools_ = new ThreadPool[Priority.values().length];
+		for (int i = 0; i < pools_.length; i++) {
+			pools_[i] = new ThreadPool();
+		}
 	}
 
 	@Override
 	public _SequentialFile NewSequentialFile(String fname) {
-		return new DefaultSequentialFile(fname);
+		return new BufferedSequentialFile(fname);
+	}
+
+	@Override
+	public _SequentialFile NewSequentialFile(String fname, int readahead) {
+		return new BufferedSequentialFile(fname, readahead);
 	}
 
 	@Override
@@ -93,9 +128,36 @@ public class DefaultEnv extends Env {
 		}
 	}
 
+	@Override
+	public _RandomAccessFile NewMmapRandomAccessFile(String fname,
+			long mmap_limit) {
+		long size = new File(fname).length();
+		if (size > 0 && size <= Integer.MAX_VALUE
+				&& MmapRandomAccessFile.Acquire(size, mmap_limit)) {
+			try {
+				return new MmapRandomAccessFile(fname, size);
+			} catch (IOException e) {
+				MmapRandomAccessFile.Release(size);
+				e.printStackTrace();
+			}
+		}
+		// out of mapping budget (or could not map): use plain reads
+		return NewRandomAccessFile(fname);
+	}
+
 	@Override
 	public _WritableFile NewWritableFile(String fname) {
-		return new DefaultWritableFile(fname, 4 << 10, 4 << 10);
+		return new DefaultWritableFile(fname);
+	}
+
+	@Override
+	public _WritableFile ReuseWritableFile(String fname, String old_fname) {
+		Status s = RenameFile(old_fname, fname);
+		if (!s.ok()) {
+			return null;
+		}
+		return new DefaultWritableFile(fname,
+				DefaultWritableFile.kDefaultBufferSize, false);
 	}
 
 	@Override
@@ -217,36 +279,43 @@ public class DefaultEnv extends Env {
 
 	@Override
 	public void Schedule(Function fun) {
+		Schedule(fun, Priority.kLow);
+	}
+
+	@Override
+	public void Schedule(Function fun, Priority pri) {
 		mutex.lock();
-		// start background thread if necessary
-		if (!started_bgthread_) {
-			started_bgthread_ = true;
-			// wlu, 2012-7-8, bugfix: this flag should be reset for BGThread to
-			// fire!!!
-			stop_bgthread = false;
-			bgthread_ = new BGThread();
-			bgthread_.start();
+		try {
+			pools_[pri.ordinal()].Schedule(fun);
+		} finally {
+			mutex.unlock();
 		}
-		// If the queue is currently empty, the background thread may currently
-		// be waiting.
-		if (queue_.isEmpty()) {
-			bgsignal_.signalAll();
+	}
+
+	@Override
+	public void IncBackgroundThreadsIfNeeded(int num, Priority pri) {
+		mutex.lock();
+		try {
+			ThreadPool pool = pools_[pri.ordinal()];
+			if (num > pool.total_threads_) {
+				pool.total_threads_ = num;
+			}
+		} finally {
+			mutex.unlock();
 		}
-		queue_.add(fun);
-		mutex.unlock();
 	}
 
 	public void EndSchedule() {
-		stop_bgthread = true;
-		// wlu, 2012-7-10, need to reset 'started_bgthread', otherwise, bg
-		// thread will not be created again after database reopen on the fly
-		started_bgthread_ = false;
-		if (started_bgthread_ && bgthread_ != null) {
-			bgthread_.interrupt();
+		// wlu, 2012-7-10, the threads are created again by the next
+		// Schedule(), after database reopen on the fly
+		mutex.lock();
+		try {
+			for (int i = 0; i < pools_.length; i++) {
+				pools_[i].Stop();
+			}
+		} finally {
+			mutex.unlock();
 		}
-
-		// bgsignal_.signalAll();
-
 	}
 
 	@Override
@@ -1,64 +1,156 @@
 package com.leveldb.util;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 import com.leveldb.common.Cache;
 import com.leveldb.common.Function;
 import com.leveldb.common.Slice;
 
+/**
+ * A single LRU cache under one lock. ShardedLRUCache spreads keys over
+ * several of them; used alone it is the old, one-monitor cache.
+ *
+ * Entries belong to the cache: Lookup() takes no reference and Release() has
+ * nothing to give back. Nothing needs pinning, since cached values (blocks)
+ * are garbage collected and stay valid for whoever still holds one, and
+ * their deleter frees nothing. The deleter of an entry runs once, when it
+ * is replaced, erased, evicted or the cache is destroyed.
+ */
 public class LRUCache extends Cache {
 
 	// LRU cache implementation
 
-	// An entry is a variable length heap-allocated structure. Entries
-	// are kept in a circular doubly linked list ordered by access time.
-	class LRUHandle extends Handle {
+	// An entry is kept both in a circular doubly linked list ordered by
+	// access time, and in the hash table chain of its bucket.
+	static class LRUHandle extends Handle {
 		Object value;
 		Function deleter;
+		LRUHandle next_hash;
 		LRUHandle next;
 		LRUHandle prev;
-		int charge; // TODO(opt): Only allow uint32_t?
-		int key_length;
-		int refs; // TODO(opt): Pack with "key_length"?
-		byte[] key_data; // Beginning of key
-
-		public Slice key() {
-			// For cheaper lookups, we allow a temporary Handle object
-			// to store a pointer to a key in "value".
-			if (next == this) {
-				return (Slice) (value);
+		int charge;
+		int hash; // Hash of key; used for fast sharding and comparisons
+		byte[] key_data;
+
+		Slice key() {
+			return new Slice(key_data);
+		}
+	}
+
+	// We provide our own simple hash table since it removes a whole bunch
+	// of porting hacks and is also faster than HashMap<Integer, ..>, which
+	// also could not tell two keys of the same hash apart.
+	static class HandleTable {
+		// The table consists of an array of buckets where each bucket is
+		// a linked list of cache entries that hash into the bucket.
+		private int length_;
+		private int elems_;
+		private LRUHandle[] list_;
+
+		HandleTable() {
+			length_ = 0;
+			elems_ = 0;
+			list_ = null;
+			Resize();
+		}
+
+		LRUHandle Lookup(byte[] key, int hash) {
+			LRUHandle e = list_[hash & (length_ - 1)];
+			while (e != null && (e.hash != hash || !Arrays.equals(key, e.key_data))) {
+				e = e.next_hash;
+			}
+			return e;
+		}
+
+		// Insert "h", return the entry of the same key it replaces, if any
+		LRUHandle Insert(LRUHandle h) {
+			int b = h.hash & (length_ - 1);
+			LRUHandle prev = null;
+			LRUHandle e = list_[b];
+			while (e != null && (e.hash != h.hash || !Arrays.equals(h.key_data, e.key_data))) {
+				prev = e;
+				e = e.next_hash;
+			}
+			h.next_hash = (e == null ? null : e.next_hash);
+			if (prev == null) {
+				list_[b] = h;
 			} else {
-				return new Slice(key_data, key_length);
+				prev.next_hash = h;
 			}
+			if (e == null) {
+				++elems_;
+				if (elems_ > length_) {
+					// Since each cache entry is fairly large, we aim for a
+					// small average linked list length (<= 1).
+					Resize();
+				}
+			}
+			return e;
 		}
 
-		@Override
-		public boolean equals(Object obj) {
-			LRUHandle handle = (LRUHandle) obj;
-			return handle.key().compareTo(key()) == 0;
+		LRUHandle Remove(byte[] key, int hash) {
+			int b = hash & (length_ - 1);
+			LRUHandle prev = null;
+			LRUHandle e = list_[b];
+			while (e != null && (e.hash != hash || !Arrays.equals(key, e.key_data))) {
+				prev = e;
+				e = e.next_hash;
+			}
+			if (e != null) {
+				if (prev == null) {
+					list_[b] = e.next_hash;
+				} else {
+					prev.next_hash = e.next_hash;
+				}
+				--elems_;
+			}
+			return e;
 		}
 
-		@Override
-		public int hashCode() {
+		int Size() {
+			return elems_;
+		}
 
-			byte[] b = this.key().data();
-			return JenkinsHash.hash(b, 0, b.length, 0);
+		private void Resize() {
+			int new_length = 4;
+			while (new_length < elems_) {
+				new_length *= 2;
+			}
+			LRUHandle[] new_list = new LRUHandle[new_length];
+			int count = 0;
+			for (int i = 0; i < length_; i++) {
+				LRUHandle h = list_[i];
+				while (h != null) {
+					LRUHandle next = h.next_hash;
+					int b = h.hash & (new_length - 1);
+					h.next_hash = new_list[b];
+					new_list[b] = h;
+					h = next;
+					count++;
+				}
+			}
+			assert (elems_ == count);
+			list_ = new_list;
+			length_ = new_length;
 		}
 	}
 
+	public static int HashSlice(byte[] key) {
+		return JenkinsHash.hash(key, 0, key.length, 0);
+	}
+
 	// Constructor parameters
 	private int capacity_;
 
-	// mutex_ protects the following state.
-	// port::Mutex mutex_;
-	private int usage_;
+	// this (the monitor) protects the following state.
+	private long usage_; // sum of the charges of the entries in table_
 	private long last_id_;
 
 	// Dummy head of LRU list.
 	// lru.prev is newest entry, lru.next is oldest entry.
 	private LRUHandle lru_;
 
-	private HashMap<Integer, LRUHandle> table;
+	private HandleTable table_;
 
 	// construction
 	public LRUCache(int capacity) {
@@ -69,92 +161,88 @@ public class LRUCache extends Cache {
 		// Make empty circular linked list
 		lru_.next = lru_;
 		lru_.prev = lru_;
-		table = new HashMap<Integer, LRUHandle>();
+		table_ = new HandleTable();
 	}
 
 	@Override
 	public Handle Insert(Slice key, Object value, int charge, Function deleter) {
+		byte[] key_data = key.data();
+		return Insert(key_data, HashSlice(key_data), value, charge, deleter);
+	}
+
+	@Override
+	public Handle Lookup(Slice key) {
+		byte[] key_data = key.data();
+		return Lookup(key_data, HashSlice(key_data));
+	}
+
+	@Override
+	public void Erase(Slice key) {
+		byte[] key_data = key.data();
+		Erase(key_data, HashSlice(key_data));
+	}
+
+	// Like the Slice versions, for a key whose hash is already known;
+	// "key" is kept by the cache and must not be changed afterwards.
+	public Handle Insert(byte[] key, int hash, Object value, int charge,
+			Function deleter) {
 		synchronized (this) {
-			// LRUHandle* e = reinterpret_cast<LRUHandle*>(
-			// malloc(sizeof(LRUHandle)-1 + key.size()));
 			LRUHandle e = new LRUHandle();
 			e.value = value;
 			e.deleter = deleter;
 			e.charge = charge;
-			e.key_length = key.size();
-			e.refs = 1; // One from LRUCache, one for the returned handle
-			e.key_data = key.data();
+			e.hash = hash;
+			e.key_data = key;
 			LRU_Append(e);
 			usage_ += charge;
 
-			// LRUHandle pp = table.put(e.hashCode(), e);
-			LRUHandle pp = table.get(e.hashCode());
-			if (pp != null) {// already contain this
-				LRU_Remove(pp);
-				table.remove(pp.hashCode());
-				Unref(pp);
-				table.put(e.hashCode(), e);
-			} else {
-				table.put(e.hashCode(), e);
+			LRUHandle old = table_.Insert(e);
+			if (old != null) {
+				LRU_Remove(old);
+				Delete(old);
 			}
-			while (usage_ > capacity_ && lru_.next != lru_) {
-				LRUHandle old = lru_.next;
+
+			// Never evict "e" itself: the caller is about to use it, and
+			// nothing pins it against the deleter.
+			while (usage_ > capacity_ && lru_.next != e) {
+				old = lru_.next;
 				LRU_Remove(old);
-				table.remove(old.hashCode());
-				Unref(old);
+				table_.Remove(old.key_data, old.hash);
+				Delete(old);
 			}
 			return e;
 		}
-
 	}
 
-	@Override
-	public Handle Lookup(Slice key) {
+	public Handle Lookup(byte[] key, int hash) {
 		synchronized (this) {
-			LRUHandle dummy = new LRUHandle();
-			dummy.next = dummy;
-			dummy.value = key;
-			LRUHandle e = table.get(dummy.hashCode());
-			if (e == null) {
-				return null;
-			} else {
-				//e.refs++;
+			LRUHandle e = table_.Lookup(key, hash);
+			if (e != null) {
 				LRU_Remove(e);
 				LRU_Append(e);
-				return e;
 			}
+			return e;
 		}
-
 	}
 
-	@Override
-	public void Release(Handle handle) {
+	public void Erase(byte[] key, int hash) {
 		synchronized (this) {
-			Unref((LRUHandle) handle);
+			LRUHandle e = table_.Remove(key, hash);
+			if (e != null) {
+				LRU_Remove(e);
+				Delete(e);
+			}
 		}
-
 	}
 
 	@Override
-	public Object Value(Handle handle) {
-		return ((LRUHandle) handle).value;
-
+	public void Release(Handle handle) {
+		// Nothing was pinned by Insert() or Lookup()
 	}
 
 	@Override
-	public void Erase(Slice key) {
-		synchronized (this) {
-			LRUHandle dummy = new LRUHandle();
-			dummy.next = dummy;
-			dummy.value = key;
-			LRUHandle e = table.get(dummy.hashCode());
-			if (e != null) {
-				LRU_Remove(e);
-				table.remove(e.hashCode());
-				Unref(e);
-			}
-		}
-
+	public Object Value(Handle handle) {
+		return ((LRUHandle) handle).value;
 	}
 
 	@Override
@@ -165,60 +253,53 @@ public class LRUCache extends Cache {
 	}
 
 	@Override
-	public void LRU_Remove(Handle e) {
-
-	}
-
-	@Override
-	public void LRU_Append(Handle e) {
-
+	public long TotalCharge() {
+		synchronized (this) {
+			return usage_;
+		}
 	}
 
-	@Override
-	public void Unref(Handle e) {
-
+	public int Size() {
+		synchronized (this) {
+			return table_.Size();
+		}
 	}
 
-	//
 	private void LRU_Remove(LRUHandle e) {
 		e.next.prev = e.prev;
 		e.prev.next = e.next;
-	};
+	}
 
 	private void LRU_Append(LRUHandle e) {
+		// Make "e" newest entry by inserting just before lru_
 		e.next = lru_;
 		e.prev = lru_.prev;
 		e.prev.next = e;
 		e.next.prev = e;
-	};
-
-	private void Unref(LRUHandle e) {
-		assert (e.refs > 0);
-		e.refs--; // from 2 to 1, but when to be 0?
-		if (e.refs <= 0) {
-			usage_ -= e.charge;
-			e.deleter.exec(e.key(), e.value);
-			e = null;
-		}
-	};
+	}
+
+	// "e" has left both the table and the LRU list
+	private void Delete(LRUHandle e) {
+		usage_ -= e.charge;
+		e.deleter.exec(e.key(), e.value);
+	}
 
 	public String toString() {
-		return table.size() + "";
+		return Size() + "";
 	}
 
 	@Override
 	public void Destroy() {
-		for (LRUHandle e = lru_.next; e != lru_;) {
-			LRUHandle next = e.next;
-			if (e.refs != 1){ // Error if caller has an unreleased handle
-				System.err.println("Cache reference should be 1, rather than " + e.refs);
+		synchronized (this) {
+			for (LRUHandle e = lru_.next; e != lru_;) {
+				LRUHandle next = e.next;
+				table_.Remove(e.key_data, e.hash);
+				Delete(e);
+				e = next;
 			}
-			//Unref(e);
-			// I find the refs is not always 1, a bug, so, Just delete!
-			e.deleter.exec(e.key(), e.value);
-			e = next;
+			lru_.next = lru_;
+			lru_.prev = lru_;
 		}
-
 	}
 
 }
@@ -0,0 +1,111 @@
+package com.leveldb.util;
+
+import com.leveldb.common.Cache;
+import com.leveldb.common.Function;
+import com.leveldb.common.Slice;
+
+/**
+ * Up to 16 LRUCaches, each under its own lock; a key goes to the shard
+ * picked by the top bits of its hash. The block cache and the table cache
+ * are hit on every read, one lock for all of them would let only one reader
+ * at a time in.
+ */
+public class ShardedLRUCache extends Cache {
+
+	static final int kMaxNumShardBits = 4;
+
+	// Smaller caches get fewer shards, so that no shard is left with room
+	// for only a handful of entries
+	static final int kMinShardCapacity = 64;
+
+	private int num_shard_bits_;
+	private int num_shards_;
+	private LRUCache shard_[];
+	private long last_id_;
+
+	private int Shard(int hash) {
+		return (num_shard_bits_ == 0) ? 0 : hash >>> (32 - num_shard_bits_);
+	}
+
+	public ShardedLRUCache(int capacity) {
+		last_id_ = 0;
+		num_shard_bits_ = 0;
+		while (num_shard_bits_ < kMaxNumShardBits
+				&& (capacity >> (num_shard_bits_ + 1)) >= kMinShardCapacity) {
+			num_shard_bits_++;
+		}
+		num_shards_ = 1 << num_shard_bits_;
+		int per_shard = (capacity + (num_shards_ - 1)) / num_shards_;
+		shard_ = new LRUCache[num_shards_];
+		for (int s = 0; s < num_shards_; s++) {
+			shard_[s] = new LRUCache(per_shard);
+		}
+	}
+
+	public int NumShards() {
+		return num_shards_;
+	}
+
+	@Override
+	public Handle Insert(Slice key, Object value, int charge, Function deleter) {
+		byte[] key_data = key.data();
+		int hash = LRUCache.HashSlice(key_data);
+		return shard_[Shard(hash)].Insert(key_data, hash, value, charge,
+				deleter);
+	}
+
+	@Override
+	public Handle Lookup(Slice key) {
+		byte[] key_data = key.data();
+		int hash = LRUCache.HashSlice(key_data);
+		return shard_[Shard(hash)].Lookup(key_data, hash);
+	}
+
+	@Override
+	public void Release(Handle handle) {
+		// Nothing was pinned by Insert() or Lookup()
+	}
+
+	@Override
+	public Object Value(Handle handle) {
+		return ((LRUCache.LRUHandle) handle).value;
+	}
+
+	@Override
+	public void Erase(Slice key) {
+		byte[] key_data = key.data();
+		int hash = LRUCache.HashSlice(key_data);
+		shard_[Shard(hash)].Erase(key_data, hash);
+	}
+
+	@Override
+	public long NewId() {
+		synchronized (this) {
+			return ++(last_id_);
+		}
+	}
+
+	@Override
+	public long TotalCharge() {
+		long total = 0;
+		for (int s = 0; s < num_shards_; s++) {
+			total += shard_[s].TotalCharge();
+		}
+		return total;
+	}
+
+	@Override
+	public void Destroy() {
+		for (int s = 0; s < num_shards_; s++) {
+			shard_[s].Destroy();
+		}
+	}
+
+	public String toString() {
+		int n = 0;
+		for (int s = 0; s < num_shards_; s++) {
+			n += shard_[s].Size();
+		}
+		return n + "";
+	}
+}
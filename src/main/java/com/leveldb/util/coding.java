@@ -42,6 +42,17 @@ public class coding {
 		return des;
 	}
 
+	// encode v into dst at offset off, return the offset just past it
+	public static int EncodeVarint32(byte[] dst, int off, int v) {
+		int B = 128;
+		while ((v & ~(B - 1)) != 0) {
+			dst[off++] = (byte) (v | B);
+			v >>>= 7;
+		}
+		dst[off++] = (byte) v;
+		return off;
+	}
+
 	// actually just return the byte[] of Varint
 	public static byte[] PutVarint32(int v) {
 		return EncodeVarint32(v);
@@ -95,6 +106,15 @@ public class coding {
 		return GetLengthPrefixedSlice(new ByteCollection(vlen_data, 0));
 	}
 
+	/**
+	 * get the length-prefixed-Slice that begins at src[offset], without a
+	 * copy: the result refers to src
+	 */
+	public static Slice GetLengthPrefixedSlice(byte[] src, int offset) {
+		int len = GetVarint32(src, offset);
+		return new Slice(src, offset + VarintLength(len), len);
+	}
+
 	// [value, length]
 	public static int GetVarint32(ByteCollection src) {
 		int value = 0;
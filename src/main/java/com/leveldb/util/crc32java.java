@@ -1,6 +1,57 @@
 package com.leveldb.util;
 
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The checksum of log records and table blocks: the reflected CRC-32
+ * polynomial 0xedb88320 (as in zip, not the Castagnoli one of the C++
+ * leveldb) run from a register of 0, with no final inversion. Every
+ * Implementation gives the same values, so files written with one are read
+ * with any other.
+ */
 public class crc32java {
+
+	// Ways of computing the crc, see SetImplementation()
+	public enum Implementation {
+		// one table lookup per byte
+		kTable,
+		// eight bytes per step, through eight tables
+		kSlicingBy8,
+		// java.util.zip.CRC32, which the JVM runs with the CPU's carry-less
+		// multiply instructions where there are any; its pre- and post-
+		// inversion are undone by a shift of the register
+		kZip
+	}
+
+	// inputs shorter than this take kSlicingBy8 when kZip is selected: on
+	// those the correction of the zip crc costs more than it saves
+	static final int kZipMinLength = 128;
+
+	static volatile Implementation implementation_ = DefaultImplementation();
+
+	// kZip, or the -Dleveldb.crc32=kTable|kSlicingBy8|kZip system property
+	static Implementation DefaultImplementation() {
+		String name = System.getProperty("leveldb.crc32");
+		if (name != null) {
+			try {
+				return Implementation.valueOf(name);
+			} catch (IllegalArgumentException e) {
+				// fall through to the default
+			}
+		}
+		return Implementation.kZip;
+	}
+
+	// Select how all crc32java objects compute the crc from now on
+	public static void SetImplementation(Implementation impl) {
+		implementation_ = impl;
+	}
+
+	public static Implementation GetImplementation() {
+		return implementation_;
+	}
+
 	// The table was originally 'unsigned long' (typically 32-bit unsigned).
 	// I use Java's signed, 32-bit ints, with unsigned operators.
 	static int crc32_tab[] = { 0x00000000, 0x77073096, 0xee0e612c, 0x990951ba,
@@ -58,8 +109,9 @@ public class crc32java {
 
 	// if you need to compute a running CRC, instantiate a CRC32
 	// object and keep updating it with it arrays. When you're done, ask it
-	// for its value.
-	static int crc32val;
+	// for its value. Each object keeps its own running value, so threads
+	// each use their own.
+	int crc32val;
 
 	public crc32java() {
 		crc32val = 0;
@@ -70,17 +122,128 @@ public class crc32java {
 	}
 
 	public void update(byte[] s, int off, int len) {
+		Implementation impl = implementation_;
+		if (impl == Implementation.kZip && len >= kZipMinLength) {
+			crc32val = UpdateZip(crc32val, s, off, len);
+		} else if (impl != Implementation.kTable) {
+			crc32val = UpdateSlicingBy8(crc32val, s, off, len);
+		} else {
+			crc32val = UpdateTable(crc32val, s, off, len);
+		}
+	}
+
+	static int UpdateTable(int crc, byte[] s, int off, int len) {
 		for (int i = off; i < len + off; i++) {
-			crc32val = crc32_tab[(crc32val ^ s[i]) & 0xff] ^ (crc32val >>> 8);
+			crc = crc32_tab[(crc ^ s[i]) & 0xff] ^ (crc >>> 8);
+		}
+		return crc;
+	}
+
+	// slicing_tab[k][b]: the register after byte b and k zero bytes
+	static final int slicing_tab[][] = new int[8][256];
+	static {
+		for (int b = 0; b < 256; b++) {
+			slicing_tab[0][b] = crc32_tab[b];
+		}
+		for (int k = 1; k < 8; k++) {
+			for (int b = 0; b < 256; b++) {
+				int c = slicing_tab[k - 1][b];
+				slicing_tab[k][b] = crc32_tab[c & 0xff] ^ (c >>> 8);
+			}
+		}
+	}
+
+	static int UpdateSlicingBy8(int crc, byte[] s, int off, int len) {
+		final int t0[] = slicing_tab[0], t1[] = slicing_tab[1];
+		final int t2[] = slicing_tab[2], t3[] = slicing_tab[3];
+		final int t4[] = slicing_tab[4], t5[] = slicing_tab[5];
+		final int t6[] = slicing_tab[6], t7[] = slicing_tab[7];
+		int i = off;
+		int end = off + len;
+		for (; i + 8 <= end; i += 8) {
+			int lo = crc ^ ((s[i] & 0xff) | (s[i + 1] & 0xff) << 8
+					| (s[i + 2] & 0xff) << 16 | (s[i + 3] & 0xff) << 24);
+			int hi = (s[i + 4] & 0xff) | (s[i + 5] & 0xff) << 8
+					| (s[i + 6] & 0xff) << 16 | (s[i + 7] & 0xff) << 24;
+			crc = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff]
+					^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24] ^ t3[hi & 0xff]
+					^ t2[(hi >>> 8) & 0xff] ^ t1[(hi >>> 16) & 0xff]
+					^ t0[hi >>> 24];
+		}
+		for (; i < end; i++) {
+			crc = t0[(crc ^ s[i]) & 0xff] ^ (crc >>> 8);
+		}
+		return crc;
+	}
+
+	// zip computes ~R(~0, s) where R(c, s) is our register run from c over
+	// s. R is linear in c, so R(c, s) = ~zip(s) ^ R(~c, zeros), and running
+	// over len zero bytes multiplies the register by x^(8 len) mod P.
+	private CRC32 zip_;
+
+	int UpdateZip(int crc, byte[] s, int off, int len) {
+		if (zip_ == null) {
+			zip_ = new CRC32();
+		} else {
+			zip_.reset();
+		}
+		zip_.update(s, off, len);
+		return ~(int) zip_.getValue() ^ MultModP(X2NModP(len, 3), ~crc);
+	}
+
+	static final int POLY = 0xedb88320;
+
+	// a * b modulo the polynomial, bit-reflected
+	static int MultModP(int a, int b) {
+		int m = 1 << 31;
+		int p = 0;
+		for (;;) {
+			if ((a & m) != 0) {
+				p ^= b;
+				if ((a & (m - 1)) == 0) {
+					break;
+				}
+			}
+			m >>>= 1;
+			b = (b & 1) != 0 ? (b >>> 1) ^ POLY : b >>> 1;
+		}
+		return p;
+	}
+
+	// x2n_tab[k] = x^(2^k) modulo the polynomial
+	static final int x2n_tab[] = new int[32];
+	static {
+		int p = 1 << 30; // x^1
+		x2n_tab[0] = p;
+		for (int n = 1; n < 32; n++) {
+			x2n_tab[n] = p = MultModP(p, p);
+		}
+	}
+
+	// x^(n * 2^k) modulo the polynomial
+	static int X2NModP(long n, int k) {
+		int p = 1 << 31; // x^0 == 1
+		while (n != 0) {
+			if ((n & 1) != 0) {
+				p = MultModP(x2n_tab[k & 31], p);
+			}
+			n >>>= 1;
+			k++;
 		}
+		return p;
 	}
 
 	// Return the crc32c of concat(A, data[0,n-1]) where init_crc is the
 	// crc32c of some string A. Extend() is often used to maintain the
 	// crc32c of a stream of data.
 	public int Extend(int init_crc, byte[] data, int n) {
+		return Extend(init_crc, data, 0, n);
+	}
+
+	// Extend() with data[offset, offset + n - 1]
+	public int Extend(int init_crc, byte[] data, int offset, int n) {
 		crc32val = init_crc;
-		update(data, 0, n);
+		update(data, offset, n);
 		return crc32val;
 	}
 
@@ -98,6 +261,32 @@ public class crc32java {
 		return crc32val;
 	}
 
+	// Return the crc of data[ofs, ofs + n - 1] for contents that are not an
+	// array, e.g. a view of a memory mapping
+	public int Value(ByteBuffer data, int offset, int length) {
+		ByteBuffer view = data.duplicate();
+		view.position(offset);
+		view.limit(offset + length);
+		Implementation impl = implementation_;
+		if (impl == Implementation.kZip && length >= kZipMinLength) {
+			if (zip_ == null) {
+				zip_ = new CRC32();
+			} else {
+				zip_.reset();
+			}
+			zip_.update(view);
+			crc32val = ~(int) zip_.getValue()
+					^ MultModP(X2NModP(length, 3), ~0);
+		} else {
+			int crc = 0;
+			for (int i = offset; i < offset + length; i++) {
+				crc = crc32_tab[(crc ^ data.get(i)) & 0xff] ^ (crc >>> 8);
+			}
+			crc32val = crc;
+		}
+		return crc32val;
+	}
+
 	static int kMaskDelta = 0xa282ead8;
 	static int low15 = 0x7fff;
 	static int low17 = 0x1ffff;
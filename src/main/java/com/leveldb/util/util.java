@@ -419,6 +419,24 @@ public class util {
 		return String.valueOf(dst);
 	}
 
+	// Return a string of length "len" that compresses to roughly
+	// "len*compressed_fraction" bytes
+	public static String CompressibleString(Random rnd,
+			double compressed_fraction, int len) {
+		int raw = (int) (len * compressed_fraction);
+		if (raw < 1)
+			raw = 1;
+		String raw_data = RandomString(rnd, raw);
+
+		// Duplicate the random data until we have filled "len" bytes
+		StringBuffer dst = new StringBuffer(len + raw);
+		while (dst.length() < len) {
+			dst.append(raw_data);
+		}
+		dst.setLength(len);
+		return dst.toString();
+	}
+
 	public static void main(String args[]) {
 		int ival = 32354;
 		// System.out.print(ival == (toInt(toBytes(ival))));
@@ -149,6 +149,9 @@ public class SnappyDecompressor {
 					l++;
 					break;
 				}
+				if(sourceIndex + l > offset + length) {
+					throw new FormatViolationException("Literal exceeds input data on offset " + sourceIndex, sourceIndex);
+				}
 				System.arraycopy(in, sourceIndex, outBuffer, targetIndex, l);
 				sourceIndex += l;
 				targetIndex += l;
@@ -221,6 +224,10 @@ public class SnappyDecompressor {
 			}
 		}
 
+		if(targetIndex != targetLength) {
+			throw new FormatViolationException("Uncompressed length " + targetIndex + " does not match the declared " + targetLength, sourceIndex);
+		}
+
 		return out;
 	}
 
@@ -0,0 +1,119 @@
+package com.leveldb.common;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+import com.leveldb.common.comparator.InternalKeyComparator;
+import com.leveldb.common.db.InternalKey;
+import com.leveldb.common.db.MemTable;
+import com.leveldb.util.Arena;
+import com.leveldb.util.SequenceNumber;
+import com.leveldb.util.ValueType;
+
+/**
+ * port of leveldb's arena_test, plus a check of MemTable's usage accounting
+ */
+public class ArenaTest extends TestCase {
+
+	public void testEmpty() {
+		Arena arena = new Arena();
+		assertEquals(0, arena.MemoryUsage());
+	}
+
+	public void testSimple() {
+		ArrayList<Integer> allocated = new ArrayList<Integer>();
+		ArrayList<Long> addrs = new ArrayList<Long>();
+		Arena arena = new Arena();
+		final int N = 100000;
+		long bytes = 0;
+		Random rnd = new Random(301);
+		for (int i = 0; i < N; i++) {
+			int s;
+			if (i % (N / 10) == 0) {
+				s = i;
+			} else {
+				s = (rnd.nextInt(4000) == 0) ? rnd.nextInt(6000)
+						: ((rnd.nextInt(10) == 0) ? rnd.nextInt(100) : rnd
+								.nextInt(20));
+			}
+			if (s == 0) {
+				// Our arena disallows size 0 allocations.
+				s = 1;
+			}
+			long r = arena.Allocate(s);
+			byte[] slab = arena.Slab(r);
+			int ofs = Arena.Offset(r);
+
+			for (int b = 0; b < s; b++) {
+				// Fill the "i"th allocation with a known bit pattern
+				slab[ofs + b] = (byte) (i % 256);
+			}
+			bytes += s;
+			allocated.add(s);
+			addrs.add(r);
+			assertTrue(arena.MemoryUsage() >= bytes);
+			if (i > N / 10) {
+				// slabs grow to 1MB, so the one being filled may be mostly
+				// unused
+				assertTrue(arena.MemoryUsage() <= bytes * 1.10 + (1 << 20));
+			}
+		}
+		for (int i = 0; i < allocated.size(); i++) {
+			int num_bytes = allocated.get(i);
+			long r = addrs.get(i);
+			byte[] slab = arena.Slab(r);
+			int ofs = Arena.Offset(r);
+			for (int b = 0; b < num_bytes; b++) {
+				// Check the "i"th allocation for the known bit pattern
+				assertEquals(i % 256, slab[ofs + b] & 0xff);
+			}
+		}
+	}
+
+	// The memtable charges what its arena holds, not a running sum of
+	// entry sizes, and reads entries back from the slabs
+	public void testMemTableUsage() {
+		MemTable mem = new MemTable(new InternalKeyComparator(
+				Comparator.BytewiseComparator()));
+		mem.Ref();
+		long before = mem.ApproximateMemoryUsage();
+		long payload = 0;
+		for (int i = 0; i < 10000; i++) {
+			Slice key = new Slice(String.format("key%06d", i));
+			Slice value = new Slice(String.format("value%d", i));
+			mem.Add(new SequenceNumber(i + 1), ValueType.kTypeValue, key,
+					value);
+			payload += key.size() + 8 + value.size() + 2;
+		}
+		long usage = mem.ApproximateMemoryUsage() - before;
+		assertTrue(usage >= payload);
+		assertTrue(usage <= payload * 10);
+
+		Iterator iter = mem.NewIterator();
+		iter.SeekToFirst();
+		int n = 0;
+		for (; iter.Valid(); iter.Next()) {
+			assertEquals(String.format("key%06d", n), InternalKey
+					.ParseInternalKey_(iter.key()).user_key.toString());
+			assertEquals(String.format("value%d", n), iter.value().toString());
+			n++;
+		}
+		assertEquals(10000, n);
+		mem.Unref();
+	}
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("Arena Test");
+		suite.addTestSuite(ArenaTest.class);
+		return suite;
+	}
+
+	public static void main(String args[]) {
+		TestRunner.run(suite());
+	}
+}
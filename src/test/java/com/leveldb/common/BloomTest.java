@@ -0,0 +1,263 @@
+package com.leveldb.common;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+import com.leveldb.common.table.FilterBlockBuilder;
+import com.leveldb.common.table.FilterBlockReader;
+import com.leveldb.util.util;
+
+/**
+ * tests for BloomFilterPolicy and the filter block format
+ */
+public class BloomTest extends TestCase {
+
+	static final int kVerbose = 1;
+
+	// little-endian fixed32, as the C++ test encodes its keys
+	static Slice Key(int i) {
+		byte[] buffer = new byte[4];
+		buffer[0] = (byte) i;
+		buffer[1] = (byte) (i >>> 8);
+		buffer[2] = (byte) (i >>> 16);
+		buffer[3] = (byte) (i >>> 24);
+		return new Slice(buffer);
+	}
+
+	FilterPolicy policy_;
+	byte[] filter_;
+	java.util.List<Slice> keys_;
+
+	public BloomTest() {
+		policy_ = FilterPolicy.NewBloomFilterPolicy(10);
+		filter_ = new byte[0];
+		keys_ = new java.util.ArrayList<Slice>();
+	}
+
+	void Reset() {
+		keys_.clear();
+		filter_ = new byte[0];
+	}
+
+	void Add(Slice s) {
+		keys_.add(s);
+	}
+
+	void Build() {
+		Slice[] key_slices = keys_.toArray(new Slice[keys_.size()]);
+		filter_ = policy_.CreateFilter(key_slices, key_slices.length);
+		keys_.clear();
+	}
+
+	int FilterSize() {
+		return filter_.length;
+	}
+
+	boolean Matches(Slice s) {
+		if (!keys_.isEmpty()) {
+			Build();
+		}
+		return policy_.KeyMayMatch(s, new Slice(filter_));
+	}
+
+	double FalsePositiveRate() {
+		int result = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (Matches(Key(i + 1000000000))) {
+				result++;
+			}
+		}
+		return result / 10000.0;
+	}
+
+	public void testEmptyFilter() {
+		assertFalse(Matches(new Slice("hello")));
+		assertFalse(Matches(new Slice("world")));
+	}
+
+	public void testSmall() {
+		Add(new Slice("hello"));
+		Add(new Slice("world"));
+		assertTrue(Matches(new Slice("hello")));
+		assertTrue(Matches(new Slice("world")));
+		assertFalse(Matches(new Slice("x")));
+		assertFalse(Matches(new Slice("foo")));
+	}
+
+	static int NextLength(int length) {
+		if (length < 10) {
+			length += 1;
+		} else if (length < 100) {
+			length += 10;
+		} else if (length < 1000) {
+			length += 100;
+		} else {
+			length += 1000;
+		}
+		return length;
+	}
+
+	public void testVaryingLengths() {
+		// Count number of filters that significantly exceed the false positive
+		// rate
+		int mediocre_filters = 0;
+		int good_filters = 0;
+
+		for (int length = 1; length <= 10000; length = NextLength(length)) {
+			Reset();
+			for (int i = 0; i < length; i++) {
+				Add(Key(i));
+			}
+			Build();
+
+			assertTrue(FilterSize() <= (length * 10 / 8) + 40);
+
+			// All added keys must match
+			for (int i = 0; i < length; i++) {
+				assertTrue("Length " + length + "; key " + i, Matches(Key(i)));
+			}
+
+			// Check false positive rate
+			double rate = FalsePositiveRate();
+			if (kVerbose >= 1) {
+				System.out.println("False positives: " + rate * 100.0
+						+ "% @ length = " + length + " ; bytes = "
+						+ FilterSize());
+			}
+			assertTrue(rate <= 0.02); // Must not be over 2%
+			if (rate > 0.0125)
+				mediocre_filters++; // Allowed, but not too often
+			else
+				good_filters++;
+		}
+		if (kVerbose >= 1) {
+			System.out.println("Filters: " + good_filters + " good, "
+					+ mediocre_filters + " mediocre");
+		}
+		assertTrue(mediocre_filters <= good_filters / 5);
+	}
+
+	// For testing: emit an array with one hash value per key
+	static class TestHashFilter extends FilterPolicy {
+		public String Name() {
+			return "TestHashFilter";
+		}
+
+		public byte[] CreateFilter(Slice[] keys, int n) {
+			byte[] dst = new byte[4 * n];
+			for (int i = 0; i < n; i++) {
+				util.putInt(dst, i * 4, JenkinsHash(keys[i]));
+			}
+			return dst;
+		}
+
+		public boolean KeyMayMatch(Slice key, Slice filter) {
+			int h = JenkinsHash(key);
+			byte[] f = filter.data();
+			for (int i = 0; i + 4 <= f.length; i += 4) {
+				if (h == util.toInt(f, i)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static int JenkinsHash(Slice key) {
+			return com.leveldb.util.JenkinsHash.hash(key.data());
+		}
+	}
+
+	public void testFilterBlockEmptyBuilder() {
+		TestHashFilter policy = new TestHashFilter();
+		FilterBlockBuilder builder = new FilterBlockBuilder(policy);
+		Slice block = builder.Finish();
+		// {array_offset = 0 | base_lg = 11}
+		assertEquals(5, block.size());
+		FilterBlockReader reader = new FilterBlockReader(policy, block);
+		assertTrue(reader.KeyMayMatch(0, new Slice("foo")));
+		assertTrue(reader.KeyMayMatch(100000, new Slice("foo")));
+	}
+
+	public void testFilterBlockSingleChunk() {
+		TestHashFilter policy = new TestHashFilter();
+		FilterBlockBuilder builder = new FilterBlockBuilder(policy);
+		builder.StartBlock(100);
+		builder.AddKey(new Slice("foo"));
+		builder.AddKey(new Slice("bar"));
+		builder.AddKey(new Slice("box"));
+		builder.StartBlock(200);
+		builder.AddKey(new Slice("box"));
+		builder.StartBlock(300);
+		builder.AddKey(new Slice("hello"));
+		Slice block = builder.Finish();
+		FilterBlockReader reader = new FilterBlockReader(policy, block);
+		assertTrue(reader.KeyMayMatch(100, new Slice("foo")));
+		assertTrue(reader.KeyMayMatch(100, new Slice("bar")));
+		assertTrue(reader.KeyMayMatch(100, new Slice("box")));
+		assertTrue(reader.KeyMayMatch(100, new Slice("hello")));
+		assertTrue(reader.KeyMayMatch(100, new Slice("foo")));
+		assertFalse(reader.KeyMayMatch(100, new Slice("missing")));
+		assertFalse(reader.KeyMayMatch(100, new Slice("other")));
+	}
+
+	public void testFilterBlockMultiChunk() {
+		TestHashFilter policy = new TestHashFilter();
+		FilterBlockBuilder builder = new FilterBlockBuilder(policy);
+
+		// First filter
+		builder.StartBlock(0);
+		builder.AddKey(new Slice("foo"));
+		builder.StartBlock(2000);
+		builder.AddKey(new Slice("bar"));
+
+		// Second filter
+		builder.StartBlock(3100);
+		builder.AddKey(new Slice("box"));
+
+		// Third filter is empty
+
+		// Last filter
+		builder.StartBlock(9000);
+		builder.AddKey(new Slice("box"));
+		builder.AddKey(new Slice("hello"));
+
+		Slice block = builder.Finish();
+		FilterBlockReader reader = new FilterBlockReader(policy, block);
+
+		// Check first filter
+		assertTrue(reader.KeyMayMatch(0, new Slice("foo")));
+		assertTrue(reader.KeyMayMatch(2000, new Slice("bar")));
+		assertFalse(reader.KeyMayMatch(0, new Slice("box")));
+		assertFalse(reader.KeyMayMatch(0, new Slice("hello")));
+
+		// Check second filter
+		assertTrue(reader.KeyMayMatch(3100, new Slice("box")));
+		assertFalse(reader.KeyMayMatch(3100, new Slice("foo")));
+		assertFalse(reader.KeyMayMatch(3100, new Slice("bar")));
+		assertFalse(reader.KeyMayMatch(3100, new Slice("hello")));
+
+		// Check third filter (empty)
+		assertFalse(reader.KeyMayMatch(4100, new Slice("foo")));
+		assertFalse(reader.KeyMayMatch(4100, new Slice("bar")));
+		assertFalse(reader.KeyMayMatch(4100, new Slice("box")));
+		assertFalse(reader.KeyMayMatch(4100, new Slice("hello")));
+
+		// Check last filter
+		assertTrue(reader.KeyMayMatch(9000, new Slice("box")));
+		assertTrue(reader.KeyMayMatch(9000, new Slice("hello")));
+		assertFalse(reader.KeyMayMatch(9000, new Slice("foo")));
+		assertFalse(reader.KeyMayMatch(9000, new Slice("bar")));
+	}
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestSuite Test");
+		suite.addTestSuite(BloomTest.class);
+		return suite;
+	}
+
+	public static void main(String args[]) {
+		TestRunner.run(suite());
+	}
+}
@@ -0,0 +1,105 @@
+package com.leveldb.common;
+
+import java.util.Random;
+
+import com.leveldb.util.LRUCache;
+import com.leveldb.util.ShardedLRUCache;
+
+/**
+ * Cache contention benchmark: --threads readers look up random keys of a
+ * cache that holds all of them (inserting the few misses), once against a
+ * single LRUCache behind one lock and once against the ShardedLRUCache, and
+ * the total lookups per second are printed for both.
+ * 
+ * e.g. java com.leveldb.common.CacheBench --threads=1,4,16 --ops=1000000
+ */
+public class CacheBench {
+
+	// Comma-separated list of thread counts to run with
+	static String FLAGS_threads = "1,2,4,8,16";
+
+	// Number of lookups done by each thread
+	static int FLAGS_ops = 1000000;
+
+	// Number of distinct keys (all of them fit in the cache)
+	static int FLAGS_keys = 10000;
+
+	static final Function kNoopDeleter = new Function() {
+		@Override
+		public void exec(Object... args) {
+		}
+	};
+
+	static Slice[] keys_;
+
+	static double Run(final Cache cache, int threads) throws Exception {
+		for (int i = 0; i < FLAGS_keys; i++) {
+			cache.Insert(keys_[i], i, 1, kNoopDeleter);
+		}
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int seed = 301 + t;
+			workers[t] = new Thread() {
+				public void run() {
+					Random rnd = new Random(seed);
+					for (int i = 0; i < FLAGS_ops; i++) {
+						int k = rnd.nextInt(FLAGS_keys);
+						Cache.Handle h = cache.Lookup(keys_[k]);
+						if (h == null) {
+							cache.Insert(keys_[k], k, 1, kNoopDeleter);
+						} else {
+							cache.Release(h);
+						}
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			workers[t].start();
+		}
+		for (int t = 0; t < threads; t++) {
+			workers[t].join();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		return (double) threads * FLAGS_ops / elapsed;
+	}
+
+	public static void main(String args[]) throws Exception {
+		for (String arg : args) {
+			if (arg.startsWith("--threads=")) {
+				FLAGS_threads = arg.substring("--threads=".length());
+			} else if (arg.startsWith("--ops=")) {
+				FLAGS_ops = Integer.parseInt(arg.substring("--ops=".length()));
+			} else if (arg.startsWith("--keys=")) {
+				FLAGS_keys = Integer.parseInt(arg.substring("--keys=".length()));
+			} else {
+				System.err.println("Invalid flag '" + arg + "'");
+				System.exit(1);
+			}
+		}
+		keys_ = new Slice[FLAGS_keys];
+		for (int i = 0; i < FLAGS_keys; i++) {
+			// block cache keys: {cache id, block offset}
+			byte[] key = new byte[16];
+			com.leveldb.util.util.putLong(key, 0, 1);
+			com.leveldb.util.util.putLong(key, 8, i * 4096L);
+			keys_[i] = new Slice(key);
+		}
+
+		// warm up the JIT once on each
+		Run(new LRUCache(FLAGS_keys), 2);
+		Run(new ShardedLRUCache(FLAGS_keys * 2), 2);
+
+		for (String n : FLAGS_threads.split(",")) {
+			int threads = Integer.parseInt(n.trim());
+			double single = Run(new LRUCache(FLAGS_keys), threads);
+			// shards get capacity/16 each: leave room for uneven spreading
+			double sharded = Run(new ShardedLRUCache(FLAGS_keys * 2), threads);
+			System.out.println(String.format(
+					"threads %3d : single lock %10.0f ops/s; sharded %10.0f ops/s",
+					threads, single, sharded));
+		}
+		System.exit(0);
+	}
+}
@@ -12,6 +12,7 @@ import com.leveldb.common.Function;
 import com.leveldb.common.Slice;
 import com.leveldb.util.JenkinsHash;
 import com.leveldb.util.LRUCache;
+import com.leveldb.util.ShardedLRUCache;
 
 public class CacheTest extends TestCase {
 
@@ -179,6 +180,141 @@ public class CacheTest extends TestCase {
 		_assert(a != b);
 	}
 
+	// counts the entries handed to it
+	static class CountingDeleter implements Function {
+		int deleted = 0;
+
+		@Override
+		public void exec(Object... args) {
+			deleted++;
+		}
+	}
+
+	public void testCollidingHashes() {
+		LRUCache cache = new LRUCache(100);
+		CountingDeleter d = new CountingDeleter();
+		// two keys forced into the same hash must not alias each other
+		cache.Insert("a".getBytes(), 7, 1, 1, d);
+		cache.Insert("b".getBytes(), 7, 2, 1, d);
+		assertEquals(1, cache.Value(cache.Lookup("a".getBytes(), 7)));
+		assertEquals(2, cache.Value(cache.Lookup("b".getBytes(), 7)));
+		assertNull(cache.Lookup("c".getBytes(), 7));
+		assertEquals(0, d.deleted);
+
+		cache.Erase("a".getBytes(), 7);
+		assertNull(cache.Lookup("a".getBytes(), 7));
+		assertEquals(2, cache.Value(cache.Lookup("b".getBytes(), 7)));
+		assertEquals(1, d.deleted);
+		assertEquals(1, cache.TotalCharge());
+	}
+
+	public void testManyEntries() {
+		// enough entries to make the hash table grow several times
+		LRUCache cache = new LRUCache(100000);
+		CountingDeleter d = new CountingDeleter();
+		for (int i = 0; i < 10000; i++) {
+			cache.Insert(new Slice("key" + i), i, 1, d);
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, cache.Value(cache.Lookup(new Slice("key" + i))));
+		}
+		assertEquals(10000, cache.Size());
+		assertEquals(0, d.deleted);
+	}
+
+	public void testNumShards() {
+		assertEquals(1, new ShardedLRUCache(100).NumShards());
+		assertEquals(8, new ShardedLRUCache(990).NumShards());
+		assertEquals(16, new ShardedLRUCache(8 << 20).NumShards());
+	}
+
+	public void testChargeAccounting() {
+		Cache cache = Cache.NewLRUCache(16 * 100);
+		CountingDeleter d = new CountingDeleter();
+		cache.Insert(new Slice("a"), 1, 10, d);
+		cache.Insert(new Slice("b"), 2, 20, d);
+		assertEquals(30, cache.TotalCharge());
+
+		// replacing an entry swaps its charge
+		cache.Insert(new Slice("a"), 3, 1, d);
+		assertEquals(21, cache.TotalCharge());
+		assertEquals(1, d.deleted);
+
+		// releasing handles does not change what is charged
+		cache.Release(cache.Lookup(new Slice("b")));
+		cache.Release(cache.Lookup(new Slice("b")));
+		assertEquals(21, cache.TotalCharge());
+		assertEquals(2, cache.Value(cache.Lookup(new Slice("b"))));
+
+		cache.Erase(new Slice("b"));
+		cache.Erase(new Slice("b"));
+		assertEquals(1, cache.TotalCharge());
+		assertEquals(2, d.deleted);
+
+		// fill well past capacity: every shard stays within its share
+		for (int i = 0; i < 10000; i++) {
+			cache.Insert(new Slice("key" + i), i, 1, d);
+		}
+		assertTrue(cache.TotalCharge() <= 16 * 100);
+		assertEquals(10000 + 3, d.deleted + cache.TotalCharge());
+
+		cache.Destroy();
+		assertEquals(0, cache.TotalCharge());
+		assertEquals(10000 + 3, d.deleted);
+	}
+
+	public void testHeavyEntryNotSelfEvicted() {
+		LRUCache cache = new LRUCache(10);
+		CountingDeleter d = new CountingDeleter();
+		cache.Insert(new Slice("small"), 1, 1, d);
+		Cache.Handle h = cache.Insert(new Slice("big"), 2, 20, d);
+		// the older entry goes, the one just inserted is still usable
+		assertEquals(2, cache.Value(h));
+		assertNull(cache.Lookup(new Slice("small")));
+		assertEquals(2, cache.Value(cache.Lookup(new Slice("big"))));
+		assertEquals(20, cache.TotalCharge());
+		assertEquals(1, d.deleted);
+
+		cache.Insert(new Slice("next"), 3, 1, d);
+		assertNull(cache.Lookup(new Slice("big")));
+		assertEquals(1, cache.TotalCharge());
+	}
+
+	public void testConcurrentAccess() throws Exception {
+		final Cache cache = new ShardedLRUCache(1000);
+		final CountingDeleter d = new CountingDeleter();
+		final int[] errors = new int[1];
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				public void run() {
+					java.util.Random rnd = new java.util.Random(seed);
+					for (int i = 0; i < 20000; i++) {
+						int k = rnd.nextInt(2000);
+						Slice key = new Slice("key" + k);
+						Cache.Handle h = cache.Lookup(key);
+						if (h == null) {
+							cache.Insert(key, k, 1, d);
+						} else if (((Integer) cache.Value(h)) != k) {
+							synchronized (errors) {
+								errors[0]++;
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+		}
+		assertEquals(0, errors[0]);
+		// each shard gets its share of the capacity, rounded up
+		int shards = ((ShardedLRUCache) cache).NumShards();
+		assertTrue(cache.TotalCharge() <= shards * ((1000 + shards - 1) / shards));
+	}
+
 	private static void _assert(boolean b) {
 		System.out.print(b + "\t");
 
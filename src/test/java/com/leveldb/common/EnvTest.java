@@ -0,0 +1,228 @@
+package com.leveldb.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+import com.leveldb.common.file.BufferedSequentialFile;
+import com.leveldb.common.file.DefaultWritableFile;
+import com.leveldb.common.file._RandomAccessFile;
+import com.leveldb.common.file._SequentialFile;
+import com.leveldb.common.file._WritableFile;
+import com.leveldb.util.DefaultEnv;
+
+/**
+ * tests for the files of the default Env
+ */
+public class EnvTest extends TestCase {
+
+	Env env_ = Env.Default();
+
+	String FileName(String name) {
+		return env_.GetTestDirectory() + "/" + name;
+	}
+
+	static byte[] Bytes(int n, int seed) {
+		byte[] b = new byte[n];
+		for (int i = 0; i < n; i++) {
+			b[i] = (byte) (i * 31 + seed);
+		}
+		return b;
+	}
+
+	Slice ReadAll(String fname) {
+		_RandomAccessFile file = env_.NewRandomAccessFile(fname);
+		Slice result = new Slice();
+		file.Read(0, (int) env_.GetFileSize(fname), result);
+		file.Close();
+		return result;
+	}
+
+	public void testWritableFileFlush() {
+		String fname = FileName("writable_flush");
+		_WritableFile file = env_.NewWritableFile(fname);
+
+		// small appends stay in the buffer until Flush()
+		ASSERT_OK(file.Append(new Slice("hello ")));
+		ASSERT_OK(file.Append(new Slice("world")));
+		assertEquals(0, env_.GetFileSize(fname));
+		ASSERT_OK(file.Flush());
+		assertEquals(11, env_.GetFileSize(fname));
+		assertEquals("hello world", ReadAll(fname).toString());
+
+		ASSERT_OK(file.Append(new Slice("!")));
+		ASSERT_OK(file.Sync());
+		assertEquals("hello world!", ReadAll(fname).toString());
+		ASSERT_OK(file.Close());
+		env_.DeleteFile(fname);
+	}
+
+	public void testWritableFileLargeAppends() {
+		String fname = FileName("writable_large");
+		_WritableFile file = new DefaultWritableFile(fname, 1000);
+		ByteVector expected = new ByteVector();
+		// sizes around the buffer size: buffered, spilling over, direct
+		int sizes[] = { 10, 990, 1, 999, 1000, 1001, 5000, 3, 2500 };
+		for (int i = 0; i < sizes.length; i++) {
+			byte[] b = Bytes(sizes[i], i);
+			ASSERT_OK(file.Append(new Slice(b)));
+			expected.append(b);
+		}
+		// Close() writes what is left in the buffer
+		ASSERT_OK(file.Close());
+		Slice contents = ReadAll(fname);
+		assertEquals(expected.getSize(), contents.size());
+		assertEquals(0, contents.compareTo(new Slice(expected.getData())));
+		env_.DeleteFile(fname);
+	}
+
+	public void testWritableFileGatherAppends() {
+		String fname = FileName("writable_gather");
+		_WritableFile file = new DefaultWritableFile(fname, 1000);
+		ByteVector expected = new ByteVector();
+		// pieces that fit in the buffer, then ones gathered past it, with
+		// some data buffered before them
+		int sizes[][] = { { 7, 100, 7, 200 }, { 7, 600, 7, 600 }, { 3 },
+				{ 7, 5000, 0, 7 } };
+		for (int i = 0; i < sizes.length; i++) {
+			Slice pieces[] = new Slice[sizes[i].length];
+			for (int j = 0; j < pieces.length; j++) {
+				// a piece in the middle of a larger array
+				byte[] b = Bytes(sizes[i][j] + 20, i * 10 + j);
+				pieces[j] = new Slice(b, 10, sizes[i][j]);
+				expected.append(b, 10, sizes[i][j]);
+			}
+			ASSERT_OK(file.Append(pieces, pieces.length));
+		}
+		ASSERT_OK(file.Close());
+		Slice contents = ReadAll(fname);
+		assertEquals(expected.getSize(), contents.size());
+		assertEquals(0, contents.compareTo(new Slice(expected.getData())));
+		env_.DeleteFile(fname);
+	}
+
+	public void testSequentialFileReadahead() {
+		String fname = FileName("sequential_readahead");
+		byte[] contents = Bytes(10000, 7);
+		ASSERT_OK(Env.WriteStringToFileSync(env_, new Slice(contents), fname));
+
+		_SequentialFile file = new BufferedSequentialFile(fname, 1000);
+		int pos = 0;
+		// reads within the buffer, across its end, larger than it, and
+		// skips within and past it
+		int steps[] = { 10, 500, 700, -100, 2500, -2000, 999, 1, 5000 };
+		for (int step : steps) {
+			if (step < 0) {
+				ASSERT_OK(file.Skip(-step));
+				pos += -step;
+				continue;
+			}
+			Slice result = new Slice();
+			assertNotNull(file.Read(step, result));
+			int expected = Math.min(step, contents.length - pos);
+			assertEquals(expected, result.size());
+			assertEquals(0, result.compareTo(new Slice(contents, pos,
+					expected)));
+			pos += expected;
+		}
+		assertEquals(contents.length, pos);
+
+		// the end of file reads as empty, not as an error
+		Slice result = new Slice();
+		assertNotNull(file.Read(100, result));
+		assertEquals(0, result.size());
+		ASSERT_OK(file.Skip(100));
+		file.Close();
+		env_.DeleteFile(fname);
+	}
+
+	public void testWritableFileTruncates() {
+		String fname = FileName("writable_truncate");
+		_WritableFile file = env_.NewWritableFile(fname);
+		ASSERT_OK(file.Append(new Slice(Bytes(5000, 1))));
+		ASSERT_OK(file.Close());
+
+		// a new writable file on the same name starts empty
+		file = env_.NewWritableFile(fname);
+		ASSERT_OK(file.Append(new Slice("abc")));
+		ASSERT_OK(file.Close());
+		assertEquals("abc", ReadAll(fname).toString());
+		env_.DeleteFile(fname);
+	}
+
+	// counts itself started, then blocks until released (or a few seconds)
+	static class BlockingJob implements Function {
+		CountDownLatch started_;
+		CountDownLatch release_;
+		CountDownLatch done_;
+
+		BlockingJob(CountDownLatch started, CountDownLatch release,
+				CountDownLatch done) {
+			started_ = started;
+			release_ = release;
+			done_ = done;
+		}
+
+		@Override
+		public void exec(Object... args) {
+			started_.countDown();
+			try {
+				release_.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			done_.countDown();
+		}
+	}
+
+	public void testSchedulePools() throws Exception {
+		Env env = new DefaultEnv();
+		env.IncBackgroundThreadsIfNeeded(3, Env.Priority.kLow);
+
+		// three low-priority jobs run at the same time
+		CountDownLatch started = new CountDownLatch(3);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(3);
+		for (int i = 0; i < 3; i++) {
+			env.Schedule(new BlockingJob(started, release, done),
+					Env.Priority.kLow);
+		}
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		// a high-priority job does not wait for them
+		CountDownLatch high = new CountDownLatch(1);
+		env.Schedule(new BlockingJob(new CountDownLatch(1),
+				new CountDownLatch(0), high), Env.Priority.kHigh);
+		assertTrue(high.await(5, TimeUnit.SECONDS));
+		assertEquals(3, done.getCount());
+
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		// after EndSchedule() the next job starts the threads again
+		env.EndSchedule();
+		CountDownLatch again = new CountDownLatch(1);
+		env.Schedule(new BlockingJob(new CountDownLatch(1),
+				new CountDownLatch(0), again));
+		assertTrue(again.await(5, TimeUnit.SECONDS));
+		env.EndSchedule();
+	}
+
+	static void ASSERT_OK(Status s) {
+		assertTrue(s.toString(), s.ok());
+	}
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestSuite Test");
+		suite.addTestSuite(EnvTest.class);
+		return suite;
+	}
+
+	public static void main(String args[]) {
+		TestRunner.run(suite());
+	}
+}
@@ -0,0 +1,365 @@
+package com.leveldb.common.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.leveldb.common.Env;
+import com.leveldb.common.Slice;
+import com.leveldb.common.Status;
+import com.leveldb.common.WriteBatch;
+import com.leveldb.common.options.Options;
+import com.leveldb.common.options.ReadOptions;
+import com.leveldb.common.options.WriteOptions;
+
+/**
+ * A small port of db_bench: runs the benchmarks named by --benchmarks against
+ * a fresh database and prints the time and throughput of each.
+ * 
+ * Benchmarks:
+ * <ul>
+ * <li>fillseq -- write N values in sequential key order in async mode</li>
+ * <li>fillrandom -- write N values in random key order in async mode</li>
+ * <li>fillsync -- write N/100 values in random key order in sync mode</li>
+ * <li>readrandom -- read N keys in random order, one Get() each</li>
+ * <li>multiget -- read N keys in random order, batch_size keys per
+ * MultiGet()</li>
+ * <li>recover -- write N values in sequential key order to the log only,
+ * then time reopening the database, which replays them</li>
+ * </ul>
+ * 
+ * The fill benchmarks split their writes over --threads threads.
+ * 
+ * e.g. java com.leveldb.common.db.DBBench --benchmarks=fillseq,fillsync
+ * --num=100000 --value_size=100
+ */
+public class DBBench {
+
+	// Comma-separated list of operations to run in the specified order
+	static String FLAGS_benchmarks = "fillseq,fillrandom,fillsync";
+
+	// Number of key/values to place in database
+	static int FLAGS_num = 100000;
+
+	// Size of each value
+	static int FLAGS_value_size = 100;
+
+	// Number of concurrent threads to run the fill benchmarks with
+	static int FLAGS_threads = 1;
+
+	// Options.enable_pipelined_write of the database
+	static boolean FLAGS_enable_pipelined_write = false;
+
+	// Options.allow_concurrent_memtable_write of the database
+	static boolean FLAGS_allow_concurrent_memtable_write = false;
+
+	// Options.max_background_compactions of the database
+	static int FLAGS_max_background_compactions = 1;
+
+	// Options.max_subcompactions of the database
+	static int FLAGS_max_subcompactions = 1;
+
+	// Options.compression_threads of the database
+	static int FLAGS_compression_threads = 1;
+
+	// Options.recovery_threads of the database
+	static int FLAGS_recovery_threads = 1;
+
+	// Options.log_readahead_size of the database
+	static int FLAGS_log_readahead_size = 1 << 20;
+
+	// Options.recycle_log_file_num of the database
+	static int FLAGS_recycle_log_file_num = 0;
+
+	// Options.max_manifest_file_size of the database
+	static int FLAGS_max_manifest_file_size = 64 << 20;
+
+	// Number of keys per MultiGet() in multiget
+	static int FLAGS_batch_size = 100;
+
+	// Number of write operations to do in sync mode
+	static int FLAGS_sync_num = -1; // -1: FLAGS_num / 100
+
+	// Use the db with the following name.
+	static String FLAGS_db = null;
+
+	DB db_;
+	int num_;
+	byte[] value_data_;
+	Random rand_ = new Random(301);
+
+	// statistics of one benchmark run
+	long start_;
+	long done_;
+	long bytes_;
+
+	DBBench() {
+		num_ = FLAGS_num;
+		// half compressible values, like db_bench's RandomGenerator
+		value_data_ = new byte[1 << 20];
+		Random rnd = new Random(301);
+		for (int i = 0; i < value_data_.length; i++) {
+			value_data_[i] = (byte) ((i % 2 == 0) ? ' ' + rnd.nextInt(95) : 'x');
+		}
+	}
+
+	static Slice Key(int k) {
+		return new Slice(String.format("%016d", k));
+	}
+
+	Slice Value(int i) {
+		int pos = (i * FLAGS_value_size) % (value_data_.length - FLAGS_value_size);
+		return new Slice(value_data_, pos, FLAGS_value_size);
+	}
+
+	void Open() {
+		Open(new Options().write_buffer_size);
+	}
+
+	void Open(int write_buffer_size) {
+		Options options = new Options();
+		options.write_buffer_size = write_buffer_size;
+		options.create_if_missing = true;
+		options.enable_pipelined_write = FLAGS_enable_pipelined_write;
+		options.allow_concurrent_memtable_write = FLAGS_allow_concurrent_memtable_write;
+		options.max_background_compactions = FLAGS_max_background_compactions;
+		options.max_subcompactions = FLAGS_max_subcompactions;
+		options.compression_threads = FLAGS_compression_threads;
+		options.recovery_threads = FLAGS_recovery_threads;
+		options.log_readahead_size = FLAGS_log_readahead_size;
+		options.recycle_log_file_num = FLAGS_recycle_log_file_num;
+		options.max_manifest_file_size = FLAGS_max_manifest_file_size;
+		db_ = DB.Open(options, FLAGS_db);
+		if (db_ == null) {
+			System.err.println("open error " + FLAGS_db);
+			System.exit(1);
+		}
+	}
+
+	void Start() {
+		start_ = System.nanoTime();
+		done_ = 0;
+		bytes_ = 0;
+	}
+
+	void Stop(String name) {
+		double elapsed = (System.nanoTime() - start_) / 1e9;
+		if (done_ < 1) {
+			done_ = 1;
+		}
+		String rate = "";
+		if (bytes_ > 0) {
+			rate = String.format("%6.1f MB/s", (bytes_ / 1048576.0) / elapsed);
+		}
+		System.out.println(String.format("%-12s : %11.3f micros/op;%s", name,
+				elapsed * 1e6 / done_, rate));
+	}
+
+	void Write(final boolean sync, final boolean seq, int num_entries) {
+		if (FLAGS_threads <= 1) {
+			Write(sync, seq, 0, num_entries, rand_);
+			return;
+		}
+		// each thread writes its own slice of the keys
+		Thread threads[] = new Thread[FLAGS_threads];
+		final int per_thread = num_entries / FLAGS_threads;
+		for (int t = 0; t < FLAGS_threads; t++) {
+			final int first = t * per_thread;
+			final Random rnd = new Random(301 + t);
+			threads[t] = new Thread() {
+				public void run() {
+					Write(sync, seq, first, per_thread, rnd);
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < FLAGS_threads; t++) {
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		done_ = per_thread * FLAGS_threads;
+		bytes_ = done_ * (FLAGS_value_size + 16);
+	}
+
+	void Write(boolean sync, boolean seq, int first, int num_entries,
+			Random rnd) {
+		WriteOptions write_options = new WriteOptions();
+		write_options.sync = sync;
+		for (int i = first; i < first + num_entries; i++) {
+			int k = seq ? i : rnd.nextInt(FLAGS_num);
+			WriteBatch batch = new WriteBatch();
+			batch.Put(Key(k), Value(i));
+			Status s = db_.Write(write_options, batch);
+			if (!s.ok()) {
+				System.err.println("put error: " + s.toString());
+				System.exit(1);
+			}
+			bytes_ += FLAGS_value_size + 16;
+			done_++;
+		}
+	}
+
+	// the read benchmarks run against N sequential keys, flushed to a table
+	void FillForRead() {
+		Write(false, true, num_);
+		((DBImpl) db_).TEST_CompactMemTable();
+	}
+
+	// the recover benchmark replays N sequential keys, all in the log
+	void FillForRecover() {
+		db_.Close();
+		Open(1 << 30);
+		Write(false, true, num_);
+		db_.Close();
+		db_ = null;
+	}
+
+	void Recover() {
+		Open();
+		done_ = num_;
+		bytes_ = (long) num_ * (FLAGS_value_size + 16);
+	}
+
+	void ReadRandom() {
+		ReadOptions options = new ReadOptions();
+		int found = 0;
+		for (int i = 0; i < num_; i++) {
+			Status s = new Status();
+			Slice v = db_.Get(options, Key(rand_.nextInt(FLAGS_num)), s);
+			if (s.ok() && v.size() > 0) {
+				found++;
+			}
+			done_++;
+		}
+		System.out.println("(" + found + " of " + num_ + " found)");
+	}
+
+	void MultiGet() {
+		ReadOptions options = new ReadOptions();
+		int found = 0;
+		for (int i = 0; i < num_; i += FLAGS_batch_size) {
+			List<Slice> keys = new ArrayList<Slice>(FLAGS_batch_size);
+			for (int j = 0; j < FLAGS_batch_size && i + j < num_; j++) {
+				keys.add(Key(rand_.nextInt(FLAGS_num)));
+			}
+			for (Slice v : db_.MultiGet(options, keys)) {
+				if (v != null) {
+					found++;
+				}
+				done_++;
+			}
+		}
+		System.out.println("(" + found + " of " + num_ + " found)");
+	}
+
+	void Run() {
+		System.out.println("Keys:       16 bytes each");
+		System.out.println("Values:     " + FLAGS_value_size + " bytes each");
+		System.out.println("Entries:    " + num_);
+		System.out.println("------------------------------------------------");
+
+		for (String name : FLAGS_benchmarks.split(",")) {
+			if (name.length() == 0) {
+				continue;
+			}
+			// every benchmark starts from an empty database
+			if (db_ != null) {
+				db_.Close();
+			}
+			DB.DestroyDB(FLAGS_db, new Options());
+			Open();
+			if (name.equals("readrandom") || name.equals("multiget")) {
+				FillForRead();
+			} else if (name.equals("recover")) {
+				FillForRecover();
+			}
+
+			Start();
+			if (name.equals("fillseq")) {
+				Write(false, true, num_);
+			} else if (name.equals("fillrandom")) {
+				Write(false, false, num_);
+			} else if (name.equals("fillsync")) {
+				Write(true, false, FLAGS_sync_num >= 0 ? FLAGS_sync_num
+						: num_ / 100);
+			} else if (name.equals("readrandom")) {
+				ReadRandom();
+			} else if (name.equals("multiget")) {
+				MultiGet();
+			} else if (name.equals("recover")) {
+				Recover();
+			} else {
+				System.err.println("unknown benchmark '" + name + "'");
+				continue;
+			}
+			Stop(name);
+		}
+		if (db_ != null) {
+			db_.Close();
+		}
+		DB.DestroyDB(FLAGS_db, new Options());
+	}
+
+	public static void main(String args[]) {
+		for (String arg : args) {
+			if (arg.startsWith("--benchmarks=")) {
+				FLAGS_benchmarks = arg.substring("--benchmarks=".length());
+			} else if (arg.startsWith("--num=")) {
+				FLAGS_num = Integer.parseInt(arg.substring("--num=".length()));
+			} else if (arg.startsWith("--value_size=")) {
+				FLAGS_value_size = Integer.parseInt(arg
+						.substring("--value_size=".length()));
+			} else if (arg.startsWith("--threads=")) {
+				FLAGS_threads = Integer.parseInt(arg.substring("--threads="
+						.length()));
+			} else if (arg.startsWith("--enable_pipelined_write=")) {
+				FLAGS_enable_pipelined_write = Integer.parseInt(arg
+						.substring("--enable_pipelined_write=".length())) != 0;
+			} else if (arg.startsWith("--allow_concurrent_memtable_write=")) {
+				FLAGS_allow_concurrent_memtable_write = Integer.parseInt(arg
+						.substring("--allow_concurrent_memtable_write="
+								.length())) != 0;
+			} else if (arg.startsWith("--max_background_compactions=")) {
+				FLAGS_max_background_compactions = Integer.parseInt(arg
+						.substring("--max_background_compactions=".length()));
+			} else if (arg.startsWith("--max_subcompactions=")) {
+				FLAGS_max_subcompactions = Integer.parseInt(arg
+						.substring("--max_subcompactions=".length()));
+			} else if (arg.startsWith("--compression_threads=")) {
+				FLAGS_compression_threads = Integer.parseInt(arg
+						.substring("--compression_threads=".length()));
+			} else if (arg.startsWith("--recovery_threads=")) {
+				FLAGS_recovery_threads = Integer.parseInt(arg
+						.substring("--recovery_threads=".length()));
+			} else if (arg.startsWith("--log_readahead_size=")) {
+				FLAGS_log_readahead_size = Integer.parseInt(arg
+						.substring("--log_readahead_size=".length()));
+			} else if (arg.startsWith("--recycle_log_file_num=")) {
+				FLAGS_recycle_log_file_num = Integer.parseInt(arg
+						.substring("--recycle_log_file_num=".length()));
+			} else if (arg.startsWith("--max_manifest_file_size=")) {
+				FLAGS_max_manifest_file_size = Integer.parseInt(arg
+						.substring("--max_manifest_file_size=".length()));
+			} else if (arg.startsWith("--batch_size=")) {
+				FLAGS_batch_size = Integer.parseInt(arg
+						.substring("--batch_size=".length()));
+			} else if (arg.startsWith("--sync_num=")) {
+				FLAGS_sync_num = Integer.parseInt(arg.substring("--sync_num="
+						.length()));
+			} else if (arg.startsWith("--db=")) {
+				FLAGS_db = arg.substring("--db=".length());
+			} else {
+				System.err.println("Invalid flag '" + arg + "'");
+				System.exit(1);
+			}
+		}
+		if (FLAGS_db == null) {
+			FLAGS_db = Env.Default().GetTestDirectory() + "/dbbench";
+		}
+		new DBBench().Run();
+		System.exit(0);
+	}
+}
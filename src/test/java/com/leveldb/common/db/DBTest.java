@@ -3,11 +3,13 @@ package com.leveldb.common.db;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.leveldb.common.AtomicPointer;
 import com.leveldb.common.Comparator;
 import com.leveldb.common.Env;
 import com.leveldb.common.EnvWrapper;
+import com.leveldb.common.FilterPolicy;
 import com.leveldb.common.Iterator;
 import com.leveldb.common.Slice;
 import com.leveldb.common.Status;
@@ -19,7 +21,9 @@ import com.leveldb.common.db.InternalKey;
 import com.leveldb.common.db.ParsedInternalKey;
 import com.leveldb.common.db.Range;
 import com.leveldb.common.db.Snapshot;
+import com.leveldb.common.file._RandomAccessFile;
 import com.leveldb.common.file._WritableFile;
+import com.leveldb.common.file.filename;
 import com.leveldb.common.options.CompressionType;
 import com.leveldb.common.options.Options;
 import com.leveldb.common.options.ReadOptions;
@@ -42,6 +46,10 @@ public class DBTest extends TestCase {
 		// Simulate no-space errors while this pointer is non-NULL.
 		AtomicPointer no_space_ = new AtomicPointer(null);
 
+		// Count random (table) reads while this is true.
+		boolean count_random_reads_ = false;
+		AtomicInteger random_read_counter_ = new AtomicInteger(0);
+
 		public SpecialEnv(Env base) {
 			super(base);
 			delay_sstable_sync_.Release_Store(null);
@@ -91,6 +99,37 @@ public class DBTest extends TestCase {
 			}
 			return r;
 		}
+
+		public _RandomAccessFile NewRandomAccessFile(String f) {
+			class CountingFile extends _RandomAccessFile {
+				_RandomAccessFile target_;
+				AtomicInteger counter_;
+
+				CountingFile(_RandomAccessFile target, AtomicInteger counter) {
+					target_ = target;
+					counter_ = counter;
+				}
+
+				public byte[] Read(long offset, int n, Slice result) {
+					counter_.incrementAndGet();
+					return target_.Read(offset, n, result);
+				}
+
+				public void Close() {
+					target_.Close();
+				}
+
+				public String FileName() {
+					return target_.FileName();
+				}
+			}
+
+			_RandomAccessFile r = target().NewRandomAccessFile(f);
+			if (r != null && count_random_reads_) {
+				r = new CountingFile(r, random_read_counter_);
+			}
+			return r;
+		}
 	}
 
 	String dbname_;
@@ -513,6 +552,55 @@ public class DBTest extends TestCase {
 		ASSERT_EQ("vx", Get("x"));
 	}
 
+	// Keys in the memtable, in level-0 and in deeper levels, deleted and
+	// missing keys, asked for out of order and more than once
+	public void testMultiGet() {
+		ASSERT_OK(Put("a", "va"));
+		ASSERT_OK(Put("m", "vm"));
+		Compact("a", "z");
+		ASSERT_OK(Put("c", "vc"));
+		ASSERT_OK(Put("m", "vm2"));
+		ASSERT_OK(db_.Delete(new WriteOptions(), new Slice("a")));
+		dbfull().TEST_CompactMemTable();
+		Snapshot s1 = db_.GetSnapshot();
+		ASSERT_OK(Put("x", "vx"));
+		ASSERT_OK(db_.Delete(new WriteOptions(), new Slice("c")));
+
+		String[] keys = { "x", "m", "a", "missing", "c", "m" };
+		String[] expected = { "vx", "vm2", null, null, null, "vm2" };
+		List<Slice> key_slices = new ArrayList<Slice>();
+		for (String k : keys) {
+			key_slices.add(new Slice(k));
+		}
+		List<Status> statuses = new ArrayList<Status>();
+		List<Slice> values = db_.MultiGet(new ReadOptions(), key_slices,
+				statuses);
+		assertEquals(keys.length, values.size());
+		assertEquals(keys.length, statuses.size());
+		for (int i = 0; i < keys.length; i++) {
+			if (expected[i] == null) {
+				assertTrue(keys[i], values.get(i) == null);
+				assertTrue(keys[i], statuses.get(i).IsNotFound());
+			} else {
+				ASSERT_EQ(expected[i], values.get(i));
+				assertTrue(keys[i], statuses.get(i).ok());
+			}
+		}
+
+		ReadOptions options = new ReadOptions();
+		options.snapshot = s1;
+		values = db_.MultiGet(options, key_slices);
+		assertNull(values.get(0));
+		ASSERT_EQ("vm2", values.get(1));
+		assertNull(values.get(2));
+		assertNull(values.get(3));
+		ASSERT_EQ("vc", values.get(4));
+		db_.ReleaseSnapshot(s1);
+
+		assertTrue(db_.MultiGet(new ReadOptions(), new ArrayList<Slice>())
+				.isEmpty());
+	}
+
 	public void testGetEncountersEmptyLevel() {
 		// Arrange for the following to happen:
 		// * sstable A in level 0
@@ -557,6 +645,164 @@ public class DBTest extends TestCase {
 		}
 	}
 
+	// kNumThreads threads each put kNumKeys keys, with a memtable small
+	// enough to be switched several times on the way. Every write must be
+	// applied once, with its own sequence number, and be in the log too.
+	void RunConcurrentWriters(boolean pipelined, boolean concurrent_memtable)
+			throws Exception {
+		final int kNumThreads = 8;
+		final int kNumKeys = 2000;
+		Options options = new Options();
+		options.create_if_missing = true;
+		options.write_buffer_size = 100000;
+		options.enable_pipelined_write = pipelined;
+		options.allow_concurrent_memtable_write = concurrent_memtable;
+		DestroyAndReopen(options);
+
+		final Status failure[] = new Status[1];
+		Thread threads[] = new Thread[kNumThreads];
+		for (int t = 0; t < kNumThreads; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					WriteOptions write_options = new WriteOptions();
+					for (int i = 0; i < kNumKeys; i++) {
+						Status s = db_.Put(write_options, new Slice(String
+								.format("t%d.%06d", id, i)), new Slice(String
+								.format("v%d.%d", id, i)));
+						if (!s.ok()) {
+							synchronized (failure) {
+								failure[0] = s;
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < kNumThreads; t++) {
+			threads[t].join();
+		}
+		assertTrue(failure[0] == null);
+		assertEquals(kNumThreads * kNumKeys, dbfull().versions_.LastSequence().value);
+
+		for (int pass = 0; pass < 2; pass++) {
+			for (int t = 0; t < kNumThreads; t++) {
+				for (int i = 0; i < kNumKeys; i++) {
+					ASSERT_EQ(String.format("v%d.%d", t, i), Get(String.format(
+							"t%d.%06d", t, i)));
+				}
+			}
+			Reopen(options);
+		}
+	}
+
+	public void testConcurrentWrites() throws Exception {
+		RunConcurrentWriters(false, false);
+	}
+
+	public void testPipelinedWrites() throws Exception {
+		RunConcurrentWriters(true, false);
+	}
+
+	public void testConcurrentMemTableWrites() throws Exception {
+		RunConcurrentWriters(false, true);
+	}
+
+	public void testPipelinedConcurrentMemTableWrites() throws Exception {
+		RunConcurrentWriters(true, true);
+	}
+
+	// Concurrent misses on one table open it once; a pinned table outlives
+	// eviction until Evict()
+	public void testTableCache() throws Exception {
+		ASSERT_OK(Put("a", "va"));
+		dbfull().TEST_CompactMemTable();
+		ASSERT_OK(Put("b", "vb"));
+		dbfull().TEST_CompactMemTable();
+		List<Long> numbers = new ArrayList<Long>();
+		for (String f : env_.GetChildren(dbname_)) {
+			if (f.endsWith(".sst")) {
+				numbers.add(Long.parseLong(f.substring(0, f.length() - 4)));
+			}
+		}
+		assertEquals(2, numbers.size());
+		final long n1 = numbers.get(0);
+		final long n2 = numbers.get(1);
+		final long size1 = env_.GetFileSize(filename.TableFileName(dbname_, n1));
+		long size2 = env_.GetFileSize(filename.TableFileName(dbname_, n2));
+
+		final AtomicInteger opens = new AtomicInteger(0);
+		Options options = new Options();
+		options.env = new EnvWrapper(Env.Default()) {
+			public _RandomAccessFile NewRandomAccessFile(String f) {
+				opens.incrementAndGet();
+				// keep the open slow enough for the others to miss too
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return target().NewRandomAccessFile(f);
+			}
+		};
+		final TableCache cache = new TableCache(dbname_, options, 1);
+		final Object[] tables = new Object[8];
+		Thread[] threads = new Thread[tables.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					tables[id] = cache.GetTable(n1, size1, true);
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+		}
+		assertEquals(1, opens.get());
+		for (int t = 0; t < tables.length; t++) {
+			assertNotNull(tables[t]);
+			assertSame(tables[0], tables[t]);
+		}
+
+		// over capacity: the unpinned table goes, the pinned one stays
+		TableCache.TableAndFile t2 = cache.GetTable(n2, size2);
+		assertNotNull(t2);
+		assertEquals(1, cache.Size());
+		assertSame(tables[0], cache.GetTable(n1, size1, true));
+		assertEquals(2, opens.get());
+		// evicted while in use: closed only once released
+		assertEquals(1, t2.refs.get());
+		cache.Release(t2);
+		assertEquals(0, t2.refs.get());
+
+		cache.Evict(n1);
+		assertEquals(0, cache.Size());
+		TableCache.TableAndFile t1 = (TableCache.TableAndFile) tables[0];
+		Iterator held = t1.table().NewIterator(new ReadOptions());
+		held.SeekToFirst();
+		assertTrue(held.Valid());
+		held.Close();
+		for (int t = 0; t <= tables.length; t++) {
+			cache.Release(t1);
+		}
+		assertEquals(0, t1.refs.get());
+
+		// an iterator holds its table until closed
+		Iterator iter = cache.NewIterator(new ReadOptions(), n2, size2, null);
+		cache.Evict(n2);
+		iter.SeekToFirst();
+		assertTrue(iter.Valid());
+		ASSERT_OK(iter.status());
+		iter.Close();
+
+		assertNull(cache.GetTable(n1, size1 + 1));
+		assertEquals(0, cache.Size());
+		cache.Destroy();
+	}
+
 	public void testIterEmpty() {
 		Iterator iter = db_.NewIterator(new ReadOptions());
 
@@ -853,6 +1099,105 @@ public class DBTest extends TestCase {
 		assertTrue(NumTableFilesAtLevel(0) > 1);
 	}
 
+	// Replay by several threads keeps the newest value of each key, also
+	// when its versions end up in different level-0 files
+	public void testParallelRecovery() {
+		Options options = new Options();
+		options.write_buffer_size = 100000000; // Large write buffer
+		Reopen(options);
+
+		Random rnd = new Random(301);
+		final int kNumKeys = 1000;
+		String values[] = new String[kNumKeys];
+		for (int i = 0; i < 10 * kNumKeys; i++) {
+			int k = rnd.nextInt(kNumKeys);
+			if (rnd.nextInt(10) == 0) {
+				ASSERT_OK(Delete(Key(k)));
+				values[k] = null;
+			} else {
+				values[k] = RandomString(rnd, 100);
+				ASSERT_OK(Put(Key(k), values[k]));
+			}
+		}
+		assertEquals(0, NumTableFilesAtLevel(0));
+
+		options.write_buffer_size = 100000;
+		options.recovery_threads = 4;
+		Reopen(options);
+		assertTrue(FilesPerLevel(), TotalTableFiles() > 1);
+		for (int k = 0; k < kNumKeys; k++) {
+			ASSERT_EQ(values[k] == null ? "NOT_FOUND" : values[k], Get(Key(k)));
+		}
+	}
+
+	// Memtable switches write over obsolete logs, and recovery stops at the
+	// stale records they still hold
+	public void testRecycleLogFiles() {
+		final AtomicInteger reuses = new AtomicInteger(0);
+		Options options = new Options();
+		options.env = new EnvWrapper(Env.Default()) {
+			public _WritableFile ReuseWritableFile(String f, String old_f) {
+				reuses.incrementAndGet();
+				return super.ReuseWritableFile(f, old_f);
+			}
+		};
+		options.write_buffer_size = 100000;
+		options.recycle_log_file_num = 2;
+		Reopen(options);
+
+		Random rnd = new Random(301);
+		final int kNumKeys = 500;
+		String values[] = new String[kNumKeys];
+		for (int i = 0; i < 5000; i++) {
+			int k = rnd.nextInt(kNumKeys);
+			values[k] = RandomString(rnd, 200 + rnd.nextInt(200));
+			ASSERT_OK(Put(Key(k), values[k]));
+		}
+		assertTrue(reuses.get() > 0);
+		int logs = 0;
+		for (String f : env_.GetChildren(dbname_)) {
+			if (f.endsWith(".log")) {
+				logs++;
+			}
+		}
+		assertTrue("" + logs, logs <= 2 + options.recycle_log_file_num);
+
+		for (int round = 0; round < 2; round++) {
+			Reopen(options);
+			for (int k = 0; k < kNumKeys; k++) {
+				ASSERT_EQ(values[k] == null ? "NOT_FOUND" : values[k],
+						Get(Key(k)));
+			}
+		}
+	}
+
+	// A MANIFEST past max_manifest_file_size is replaced by a new one that
+	// starts with a snapshot, and the old one is deleted
+	public void testManifestRollover() {
+		Options options = new Options();
+		options.max_manifest_file_size = 1024;
+		Reopen(options);
+		long first = dbfull().versions_.ManifestFileNumber();
+		for (int i = 0; i < 50; i++) {
+			ASSERT_OK(Put(Key(i), "v" + i));
+			dbfull().TEST_CompactMemTable();
+		}
+		assertTrue(dbfull().versions_.ManifestFileNumber() > first);
+		int manifests = 0;
+		for (String f : env_.GetChildren(dbname_)) {
+			if (f.startsWith("MANIFEST-")) {
+				manifests++;
+			}
+		}
+		// another may be on its way in from a compaction
+		assertTrue("" + manifests, manifests <= 2);
+
+		Reopen(options);
+		for (int i = 0; i < 50; i++) {
+			ASSERT_EQ("v" + i, Get(Key(i)));
+		}
+	}
+
 	static String RandomString(Random rnd, int len) {
 		return util.RandomString(rnd, len);
 	}
@@ -886,6 +1231,71 @@ public class DBTest extends TestCase {
 		}
 	}
 
+	// Enough small memtables to keep several levels compacting at once
+	public void testConcurrentCompactions() {
+		Options options = new Options();
+		options.write_buffer_size = 100000;
+		options.max_background_compactions = 3;
+		Reopen(options);
+
+		Random rnd = new Random(301);
+		final int kNumKeys = 2000;
+		String values[] = new String[kNumKeys];
+		for (int i = 0; i < 2 * kNumKeys; i++) {
+			int k = rnd.nextInt(kNumKeys);
+			values[k] = RandomString(rnd, 1000);
+			ASSERT_OK(Put(Key(k), values[k]));
+		}
+		ASSERT_OK(dbfull().TEST_CompactMemTable());
+		for (int k = 0; k < kNumKeys; k++) {
+			ASSERT_EQ(values[k] == null ? "NOT_FOUND" : values[k], Get(Key(k)));
+		}
+
+		Reopen(options);
+		for (int k = 0; k < kNumKeys; k++) {
+			ASSERT_EQ(values[k] == null ? "NOT_FOUND" : values[k], Get(Key(k)));
+		}
+	}
+
+	// A level-0 compaction split by key range gives the same contents
+	public void testSubcompactions() {
+		Options options = new Options();
+		options.write_buffer_size = 100000000; // Large write buffer
+		options.max_subcompactions = 4;
+		Reopen(options);
+
+		// overlapping level-0 files, with overwrites and deletions
+		Random rnd = new Random(301);
+		final int kNumKeys = 2000;
+		String values[] = new String[kNumKeys];
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < kNumKeys; i++) {
+				int k = rnd.nextInt(kNumKeys);
+				if (rnd.nextInt(10) == 0) {
+					ASSERT_OK(Delete(Key(k)));
+					values[k] = null;
+				} else {
+					values[k] = RandomString(rnd, 100);
+					ASSERT_OK(Put(Key(k), values[k]));
+				}
+			}
+			ASSERT_OK(dbfull().TEST_CompactMemTable());
+		}
+
+		dbfull().TEST_CompactRange(0, null, null);
+		assertEquals(0, NumTableFilesAtLevel(0));
+		// one output at least for each part
+		assertTrue(FilesPerLevel(), NumTableFilesAtLevel(1) >= 4);
+		for (int k = 0; k < kNumKeys; k++) {
+			ASSERT_EQ(values[k] == null ? "NOT_FOUND" : values[k], Get(Key(k)));
+		}
+
+		Reopen(options);
+		for (int k = 0; k < kNumKeys; k++) {
+			ASSERT_EQ(values[k] == null ? "NOT_FOUND" : values[k], Get(Key(k)));
+		}
+	}
+
 	public void testRepeatedWritesToSameKey() {
 		Options options = new Options();
 		options.env = env_;
@@ -1464,6 +1874,65 @@ public class DBTest extends TestCase {
 		assertTrue(CountFiles() < num_files + 5);
 	}
 
+	Slice GetNoCache(String k) {
+		ReadOptions options = new ReadOptions();
+		options.fill_cache = false; // every Get has to go to the file
+		Status s = new Status();
+		Slice result = db_.Get(options, new Slice(k), s);
+		if (s.IsNotFound()) {
+			result = new Slice("NOT_FOUND");
+		}
+		return result;
+	}
+
+	public void testBloomFilter() {
+		env_.count_random_reads_ = true;
+		Options options = new Options();
+		options.env = env_;
+		options.create_if_missing = true;
+		options.filter_policy = FilterPolicy.NewBloomFilterPolicy(10);
+		Reopen(options);
+
+		// Populate multiple layers
+		final int N = 10000;
+		for (int i = 0; i < N; i++) {
+			ASSERT_OK(Put(Key(i), Key(i)));
+		}
+		Compact("a", "z");
+		for (int i = 0; i < N; i += 100) {
+			ASSERT_OK(Put(Key(i), Key(i)));
+		}
+		dbfull().TEST_CompactMemTable();
+
+		// Prevent auto compactions triggered by seeks
+		env_.delay_sstable_sync_.Release_Store(env_);
+
+		// make sure every table is open before counting
+		GetNoCache(Key(0));
+
+		// Lookup present keys. Should rarely read from small sstable.
+		env_.random_read_counter_.set(0);
+		for (int i = 0; i < N; i++) {
+			ASSERT_EQ(Key(i), GetNoCache(Key(i)));
+		}
+		int reads = env_.random_read_counter_.get();
+		System.out.println(N + " present => " + reads + " reads");
+		assertTrue(reads >= N);
+		assertTrue(reads <= N + 2 * N / 100);
+
+		// Lookup missing keys. Should rarely read from either sstable.
+		env_.random_read_counter_.set(0);
+		for (int i = 0; i < N; i++) {
+			ASSERT_EQ("NOT_FOUND", GetNoCache(Key(i) + ".missing"));
+		}
+		reads = env_.random_read_counter_.get();
+		System.out.println(N + " missing => " + reads + " reads");
+		assertTrue(reads <= 3 * N / 100);
+
+		env_.delay_sstable_sync_.Release_Store(null);
+		assertTrue(Close());
+	}
+
 	// TODO: without reopenning, the number is not the same, guess: didn't
 	// delete files when compactings
 	public void testFilesDeletedAfterCompaction() {
@@ -551,6 +551,34 @@ public class LogTest {
 		CheckOffsetPastEndReturnsNoRecords(5);
 	}
 
+	void RecycledLog() {
+		// log #5, then log #7 written over the start of its file
+		writer_ = new Writer(dest_, 5, true);
+		for (int i = 0; i < 1000; i++) {
+			Write(BigString(NumberString(i), 100));
+		}
+		byte[] file = dest_.contents_.getData();
+		dest_ = new StringDest();
+		writer_ = new Writer(dest_, 7, true);
+		// records the size of those of #5, so the last ends where one of #5
+		// starts: only its log number tells that one from the records of #7
+		for (int i = 0; i < 10; i++) {
+			Write(BigString("x" + i, 100));
+		}
+		byte[] log7 = dest_.contents_.getData();
+		System.arraycopy(log7, 0, file, 0, log7.length);
+
+		reading_ = true;
+		source_.contents_ = new Slice(file);
+		reader_ = new Reader(source_, report_, true/* checksum */,
+				0/* initial_offset */, 7);
+		for (int i = 0; i < 10; i++) {
+			ASSERT_EQ(BigString("x" + i, 100), Read());
+		}
+		ASSERT_EQ("EOF", Read());
+		ASSERT_EQ(0, DroppedBytes());
+	}
+
 	public static void main(String args[]) {
 		LogTest lt = new LogTest();
 		lt.Empty();
@@ -614,5 +642,7 @@ public class LogTest {
 		lt.ReadEnd();
 		lt = new LogTest();
 		lt.ReadPastEnd();
+		lt = new LogTest();
+		lt.RecycledLog();
 	}
 }
@@ -0,0 +1,427 @@
+package com.leveldb.common.db;
+
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+import com.leveldb.common.PairComparable;
+import com.leveldb.util.JenkinsHash;
+import com.leveldb.util.util;
+
+/**
+ * port of leveldb's skiplist_test, with real threads for ConcurrentTest
+ */
+public class SkipListTest extends TestCase {
+
+	static class TestComparator extends PairComparable<Long> {
+		@Override
+		public int compare(Long a, Long b) {
+			if (a < b) {
+				return -1;
+			} else if (a > b) {
+				return +1;
+			} else {
+				return 0;
+			}
+		}
+	}
+
+	static SkipList<Long, TestComparator> NewList() {
+		return new SkipList<Long, TestComparator>(new TestComparator());
+	}
+
+	static SkipListIterator<Long, TestComparator> NewIterator(
+			SkipList<Long, TestComparator> list) {
+		return new SkipListIterator<Long, TestComparator>(list);
+	}
+
+	public void testEmpty() {
+		SkipList<Long, TestComparator> list = NewList();
+		assertFalse(list.Contains(10L));
+
+		SkipListIterator<Long, TestComparator> iter = NewIterator(list);
+		assertFalse(iter.Valid());
+		iter.SeekToFirst();
+		assertFalse(iter.Valid());
+		iter.Seek(100L);
+		assertFalse(iter.Valid());
+		iter.SeekToLast();
+		assertFalse(iter.Valid());
+	}
+
+	public void testInsertAndLookup() {
+		final int N = 2000;
+		final int R = 5000;
+		Random rnd = new Random(1000);
+		SortedSet<Long> keys = new TreeSet<Long>();
+		SkipList<Long, TestComparator> list = NewList();
+		for (int i = 0; i < N; i++) {
+			long key = rnd.nextInt(R);
+			if (keys.add(key)) {
+				list.Insert(key);
+			}
+		}
+
+		for (long i = 0; i < R; i++) {
+			assertEquals(keys.contains(i), list.Contains(i));
+		}
+
+		// Simple iterator tests
+		SkipListIterator<Long, TestComparator> iter = NewIterator(list);
+		assertFalse(iter.Valid());
+
+		iter.Seek(0L);
+		assertTrue(iter.Valid());
+		assertEquals(keys.first(), iter.key());
+
+		iter.SeekToFirst();
+		assertTrue(iter.Valid());
+		assertEquals(keys.first(), iter.key());
+
+		iter.SeekToLast();
+		assertTrue(iter.Valid());
+		assertEquals(keys.last(), iter.key());
+
+		// Forward iteration test
+		for (long i = 0; i < R; i++) {
+			iter = NewIterator(list);
+			iter.Seek(i);
+
+			// Compare against model iterator
+			java.util.Iterator<Long> model_iter = keys.tailSet(i).iterator();
+			for (int j = 0; j < 3; j++) {
+				if (!model_iter.hasNext()) {
+					assertFalse(iter.Valid());
+					break;
+				} else {
+					assertTrue(iter.Valid());
+					assertEquals(model_iter.next(), iter.key());
+					iter.Next();
+				}
+			}
+		}
+
+		// Backward iteration test
+		iter = NewIterator(list);
+		iter.SeekToLast();
+		Long[] model = keys.toArray(new Long[keys.size()]);
+		for (int i = model.length - 1; i >= 0; i--) {
+			assertTrue(iter.Valid());
+			assertEquals(model[i], iter.key());
+			iter.Prev();
+		}
+		assertFalse(iter.Valid());
+	}
+
+	// Every level must be a sorted list holding exactly the nodes that are
+	// tall enough for it, otherwise searches fall back to walking level 0.
+	public void testLevelsAreLinked() {
+		SkipList<Long, TestComparator> list = NewList();
+		Random rnd = new Random(301);
+		SortedSet<Long> keys = new TreeSet<Long>();
+		for (int i = 0; i < 10000; i++) {
+			long key = rnd.nextLong();
+			if (keys.add(key)) {
+				list.Insert(key);
+			}
+		}
+		assertTrue(list.GetMaxHeight() > 1);
+
+		int[] at_level = new int[SkipList.kMaxHeight];
+		for (Node<Long> x = list.head_.Next(0); x != null; x = x.Next(0)) {
+			for (int level = 0; level < x.Height(); level++) {
+				at_level[level]++;
+			}
+		}
+		for (int level = 0; level < list.GetMaxHeight(); level++) {
+			int count = 0;
+			Long last = null;
+			for (Node<Long> x = list.head_.Next(level); x != null; x = x
+					.Next(level)) {
+				assertTrue(x.Height() > level);
+				assertTrue(last == null || last < x.key);
+				last = x.key;
+				count++;
+			}
+			assertEquals("level " + level, at_level[level], count);
+		}
+		assertEquals(keys.size(), at_level[0]);
+	}
+
+	// Writers that link their nodes with compare-and-set must neither lose
+	// a node nor break the order of any level.
+	public void testInsertConcurrently() throws Exception {
+		final int kThreads = 4;
+		final int kPerThread = 5000;
+		final SkipList<Long, TestComparator> list = NewList();
+		Thread writers[] = new Thread[kThreads];
+		for (int t = 0; t < kThreads; t++) {
+			final int id = t;
+			writers[t] = new Thread() {
+				public void run() {
+					Random rnd = new Random(301 + id);
+					for (int i = 0; i < kPerThread; i++) {
+						// distinct keys: the thread id in the low bits
+						list.InsertConcurrently(((long) rnd.nextInt(1 << 20) << 20)
+								| (i << 3) | id);
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (int t = 0; t < kThreads; t++) {
+			writers[t].join();
+		}
+
+		for (int level = 0; level < list.GetMaxHeight(); level++) {
+			int count = 0;
+			Long last = null;
+			for (Node<Long> x = list.head_.Next(level); x != null; x = x
+					.Next(level)) {
+				assertTrue(x.Height() > level);
+				assertTrue(last == null || last < x.key);
+				last = x.key;
+				count++;
+			}
+			if (level == 0) {
+				assertEquals(kThreads * kPerThread, count);
+			}
+		}
+	}
+
+	// We want to make sure that with a single writer and multiple
+	// concurrent readers (with no synchronization other than when a
+	// reader's iterator is created), the reader always observes all the
+	// data that was present in the skip list when the iterator was
+	// constructed. Because insertions are happening concurrently, we may
+	// also observe new values that were inserted since the iterator was
+	// constructed, but we should never miss any values that were present
+	// at iterator construction time.
+	//
+	// We generate multi-part keys:
+	// <key,gen,hash>
+	// where:
+	// key is in range [0..K-1]
+	// gen is a generation number for key
+	// hash is hash(key,gen)
+	//
+	// The insertion code picks a random key, sets gen to be 1 + the last
+	// generation number inserted for that key, and sets hash to
+	// Hash(key,gen).
+	//
+	// At the beginning of a read, we snapshot the last inserted
+	// generation number for each key. We then iterate, including random
+	// calls to Next() and Seek(). For every key we encounter, we
+	// check that it is either expected given the initial snapshot or has
+	// been concurrently added since the iterator started.
+	static class ConcurrentTest {
+		static final int K = 4;
+
+		static long key(long key) {
+			return (key >>> 40);
+		}
+
+		static long gen(long key) {
+			return (key >>> 8) & 0xffffffffL;
+		}
+
+		static long hash(long key) {
+			return key & 0xff;
+		}
+
+		static long HashNumbers(long k, long g) {
+			byte[] data = new byte[16];
+			util.putLong(data, 0, k);
+			util.putLong(data, 8, g);
+			return JenkinsHash.hash(data);
+		}
+
+		static long MakeKey(long k, long g) {
+			assert (k <= K); // We sometimes pass K to seek to the end of the
+								// skiplist
+			assert (g <= 0xffffffffL);
+			return ((k << 40) | (g << 8) | (HashNumbers(k, g) & 0xff));
+		}
+
+		static boolean IsValidKey(long k) {
+			return hash(k) == (HashNumbers(key(k), gen(k)) & 0xff);
+		}
+
+		static long RandomTarget(Random rnd) {
+			switch (rnd.nextInt(10)) {
+			case 0:
+				// Seek to beginning
+				return MakeKey(0, 0);
+			case 1:
+				// Seek to end
+				return MakeKey(K, 0);
+			default:
+				// Seek to middle
+				return MakeKey(rnd.nextInt(K), 0);
+			}
+		}
+
+		// Per-key generation, published by the writer after each insert
+		AtomicLongArray current_ = new AtomicLongArray(K);
+
+		// SkipList is not protected by any lock. We just use a single
+		// writer thread to modify it.
+		SkipList<Long, TestComparator> list_ = NewList();
+
+		// REQUIRES: External synchronization
+		void WriteStep(Random rnd) {
+			int k = rnd.nextInt(K);
+			long g = current_.get(k) + 1;
+			long key = MakeKey(k, g);
+			list_.Insert(key);
+			current_.set(k, g);
+		}
+
+		void ReadStep(Random rnd) {
+			// Remember the initial committed state of the skiplist.
+			long initial_state[] = new long[K];
+			for (int k = 0; k < K; k++) {
+				initial_state[k] = current_.get(k);
+			}
+
+			long pos = RandomTarget(rnd);
+			SkipListIterator<Long, TestComparator> iter = NewIterator(list_);
+			iter.Seek(pos);
+			while (true) {
+				long current;
+				if (!iter.Valid()) {
+					current = MakeKey(K, 0);
+				} else {
+					current = iter.key();
+					assertTrue("" + current, IsValidKey(current));
+				}
+				assertTrue("should not go backwards", pos <= current);
+
+				// Verify that everything in [pos,current) was not present in
+				// initial_state.
+				while (pos < current) {
+					assertTrue("" + pos, key(pos) < K);
+
+					// Note that generation 0 is never inserted, so it is ok
+					// if <*,0,*> is missing.
+					assertTrue("key: " + key(pos) + "; gen: " + gen(pos)
+							+ "; initgen: " + initial_state[(int) key(pos)],
+							(gen(pos) == 0)
+									|| (gen(pos) > initial_state[(int) key(pos)]));
+
+					// Advance to next key in the valid key space
+					if (key(pos) < key(current)) {
+						pos = MakeKey(key(pos) + 1, 0);
+					} else {
+						pos = MakeKey(key(pos), gen(pos) + 1);
+					}
+				}
+
+				if (!iter.Valid()) {
+					break;
+				}
+
+				if (rnd.nextBoolean()) {
+					iter.Next();
+					pos = MakeKey(key(pos), gen(pos) + 1);
+				} else {
+					long new_target = RandomTarget(rnd);
+					if (new_target > pos) {
+						pos = new_target;
+						iter.Seek(new_target);
+					}
+				}
+			}
+		}
+	}
+
+	// Simple test that does single-threaded testing of the ConcurrentTest
+	// scaffolding.
+	public void testConcurrentWithoutThreads() {
+		ConcurrentTest test = new ConcurrentTest();
+		Random rnd = new Random(301);
+		for (int i = 0; i < 10000; i++) {
+			test.ReadStep(rnd);
+			test.WriteStep(rnd);
+		}
+	}
+
+	// kReaders threads read while the test thread writes, with no lock
+	// between them
+	static void RunConcurrent(int run) throws Exception {
+		final int seed = 301 + (run * 100);
+		Random rnd = new Random(seed);
+		final int N = 100;
+		final int kSize = 1000;
+		final int kReaders = 4;
+		for (int i = 0; i < N; i++) {
+			final ConcurrentTest test = new ConcurrentTest();
+			final Throwable failure[] = new Throwable[1];
+			final java.util.concurrent.CountDownLatch running = new java.util.concurrent.CountDownLatch(
+					kReaders);
+			final java.util.concurrent.atomic.AtomicBoolean quit = new java.util.concurrent.atomic.AtomicBoolean(
+					false);
+			Thread readers[] = new Thread[kReaders];
+			for (int r = 0; r < kReaders; r++) {
+				final int reader_seed = seed + i * kReaders + r + 1;
+				readers[r] = new Thread() {
+					public void run() {
+						Random rnd = new Random(reader_seed);
+						running.countDown();
+						try {
+							while (!quit.get()) {
+								test.ReadStep(rnd);
+							}
+						} catch (Throwable t) {
+							synchronized (failure) {
+								failure[0] = t;
+							}
+						}
+					}
+				};
+				readers[r].start();
+			}
+			running.await();
+			for (int j = 0; j < kSize; j++) {
+				test.WriteStep(rnd);
+			}
+			quit.set(true);
+			for (int r = 0; r < kReaders; r++) {
+				readers[r].join();
+			}
+			synchronized (failure) {
+				if (failure[0] != null) {
+					throw new AssertionError(failure[0]);
+				}
+			}
+		}
+	}
+
+	public void testConcurrent1() throws Exception {
+		RunConcurrent(1);
+	}
+
+	public void testConcurrent2() throws Exception {
+		RunConcurrent(2);
+	}
+
+	public void testConcurrent3() throws Exception {
+		RunConcurrent(3);
+	}
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("SkipList Test");
+		suite.addTestSuite(SkipListTest.class);
+		return suite;
+	}
+
+	public static void main(String args[]) {
+		TestRunner.run(suite());
+	}
+}
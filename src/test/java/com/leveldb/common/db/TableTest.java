@@ -1,5 +1,6 @@
 package com.leveldb.common.db;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -7,6 +8,7 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -16,6 +18,8 @@ import junit.textui.TestRunner;
 import com.leveldb.common.ByteVector;
 import com.leveldb.common.Comparator;
 import com.leveldb.common.Env;
+import com.leveldb.common.FilterPolicy;
+import com.leveldb.common.Function;
 import com.leveldb.common.Iterator;
 import com.leveldb.common.Slice;
 import com.leveldb.common.Status;
@@ -30,6 +34,7 @@ import com.leveldb.common.db.InternalKey;
 import com.leveldb.common.db.MemTable;
 import com.leveldb.common.db.ParsedInternalKey;
 import com.leveldb.common.db.Range;
+import com.leveldb.common.file.MmapRandomAccessFile;
 import com.leveldb.common.file._RandomAccessFile;
 import com.leveldb.common.file._WritableFile;
 import com.leveldb.common.options.CompressionType;
@@ -38,11 +43,15 @@ import com.leveldb.common.options.ReadOptions;
 import com.leveldb.common.options.WriteOptions;
 import com.leveldb.common.table.Block;
 import com.leveldb.common.table.BlockBuilder;
+import com.leveldb.common.table.BlockHandle;
 import com.leveldb.common.table.TableBuilder;
 import com.leveldb.util.SequenceNumber;
 import com.leveldb.util.ValueType;
+import com.leveldb.util.crc32java;
 import com.leveldb.util.util;
 
+import de.jarnbjo.jsnappy.SnappyDecompressor;
+
 /**
  * find similar problem when num_entry from 2500 to 20000
  * 
@@ -357,6 +366,7 @@ public class TableTest extends TestCase {
 			source_ = new StringSource(new Slice(sink.contents()));
 			Options table_options = new Options();
 			table_options.comparator = options.comparator;
+			table_options.filter_policy = options.filter_policy;
 			table_ = Table.Open(table_options, source_, sink.contents().length);
 
 			return Status.OK();
@@ -1171,6 +1181,527 @@ public class TableTest extends TestCase {
 
 	}
 
+	public void testApproximateOffsetOfCompressed() {
+		Random rnd = new Random(301);
+		TableConstructor c = new TableConstructor(
+				BytewiseComparatorImpl.getInstance());
+		c.Add("k01", "hello");
+		c.Add("k02", util.CompressibleString(rnd, 0.25, 10000));
+		c.Add("k03", "hello3");
+		c.Add("k04", util.CompressibleString(rnd, 0.25, 10000));
+		List<byte[]> keys = new ArrayList<byte[]>();
+		TreeMap<byte[], byte[]> kvmap = new TreeMap<byte[], byte[]>(
+				new STLLessThan());
+		Options options = new Options();
+		options.block_size = 1024;
+		options.compression = CompressionType.SnappyCompression;
+		c.Finish(options, keys, kvmap);
+
+		assertTrue("abc", Between(c.ApproximateOffsetOf("abc"), 0, 0));
+		assertTrue("k01", Between(c.ApproximateOffsetOf("k01"), 0, 0));
+		assertTrue("k02", Between(c.ApproximateOffsetOf("k02"), 0, 0));
+		// jsnappy's fast mode finds fewer matches than the C++ snappy, whose
+		// test expects 2000-3000 here, so allow a little more
+		assertTrue("k03", Between(c.ApproximateOffsetOf("k03"), 2000, 3500));
+		assertTrue("k04", Between(c.ApproximateOffsetOf("k04"), 2000, 3500));
+		assertTrue("xyz", Between(c.ApproximateOffsetOf("xyz"), 4000, 7000));
+
+		// and the values come back as they were
+		Iterator iter = c.NewIterator();
+		iter.SeekToFirst();
+		for (byte[] k : kvmap.keySet()) {
+			assertTrue(iter.Valid());
+			assertEquals(0, iter.key().compareTo(new Slice(k)));
+			assertEquals(0, iter.value().compareTo(new Slice(kvmap.get(k))));
+			iter.Next();
+		}
+		assertFalse(iter.Valid());
+	}
+
+	// Blocks that snappy shrinks by less than 12.5% are stored uncompressed
+	public void testIncompressibleBlocksStoredRaw() {
+		Random rnd = new Random(301);
+		TableConstructor c = new TableConstructor(
+				BytewiseComparatorImpl.getInstance());
+		c.Add("k01", util.RandomString(rnd, 10000));
+		c.Add("k02", util.CompressibleString(rnd, 0.25, 10000));
+		c.Add("k03", "hello3");
+		List<byte[]> keys = new ArrayList<byte[]>();
+		TreeMap<byte[], byte[]> kvmap = new TreeMap<byte[], byte[]>(
+				new STLLessThan());
+		Options options = new Options();
+		options.block_size = 1024;
+		options.compression = CompressionType.SnappyCompression;
+		c.Finish(options, keys, kvmap);
+
+		// one entry per block: the type byte of a block sits just before
+		// the trailer's crc, 5 bytes ahead of the next block
+		byte[] contents = c.source_.Read(0, c.NumBytes(), new Slice());
+		int k02 = (int) c.ApproximateOffsetOf("k02");
+		int k03 = (int) c.ApproximateOffsetOf("k03");
+		assertTrue(k02 > 10000);
+		assertEquals(CompressionType.kNoCompression, contents[k02 - 5]);
+		assertTrue(k03 - k02 < 5000);
+		assertEquals(CompressionType.kSnappyCompression, contents[k03 - 5]);
+	}
+
+	// Append a snappy stream that stores "data" as literals only, the way
+	// any snappy implementation must be able to decode it
+	static void AppendSnappyLiterals(ByteVector dst, byte[] data) {
+		int v = data.length;
+		while (v >= 0x80) {
+			dst.append(new byte[] { (byte) (v | 0x80) });
+			v >>>= 7;
+		}
+		dst.append(new byte[] { (byte) v });
+
+		int ofs = 0;
+		while (ofs < data.length) {
+			int n = Math.min(data.length - ofs, 65536);
+			if (n <= 60) {
+				dst.append(new byte[] { (byte) ((n - 1) << 2) });
+			} else {
+				// tag 61: length-1 in the next two bytes, little-endian
+				dst.append(new byte[] { (byte) (61 << 2), (byte) (n - 1),
+						(byte) ((n - 1) >>> 8) });
+			}
+			dst.append(util.subN(data, ofs, n));
+			ofs += n;
+		}
+	}
+
+	// {contents | type | masked crc of contents and type}
+	static byte[] BlockWithTrailer(byte[] contents, byte type) {
+		ByteVector v = new ByteVector();
+		v.append(contents);
+		byte[] trailer = new byte[5];
+		trailer[0] = type;
+		crc32java crc32 = new crc32java();
+		int crc = crc32.Value(contents, contents.length);
+		crc = crc32.Extend(crc, trailer, 1);
+		util.putInt(trailer, 1, crc32java.Mask(crc));
+		v.append(trailer);
+		return v.getData();
+	}
+
+	/**
+	 * Blocks compressed by another snappy implementation (here: encoded by
+	 * hand, following the snappy format description) must be readable.
+	 */
+	public void testSnappyFormatCompatibility() throws Exception {
+		// "abcd" literal, copy with 1-byte offset (len 8, offset 4), copy
+		// with 2-byte offset (len 3, offset 12)
+		byte[] stream = new byte[] { 15, (3 << 2), 'a', 'b', 'c', 'd',
+				(byte) (1 | ((8 - 4) << 2)), 4, (byte) (2 | ((3 - 1) << 2)),
+				12, 0 };
+		assertEquals("abcdabcdabcdabc", new String(SnappyDecompressor
+				.decompress(stream).toByteArray()));
+
+		// a data block stored as a snappy stream
+		Options options = new Options();
+		BlockBuilder builder = new BlockBuilder(options);
+		for (int i = 0; i < 100; i++) {
+			builder.Add(new Slice(ConcurrentKey(i)), new Slice(
+					ConcurrentValue(i)));
+		}
+		byte[] raw = builder.Finish().data();
+		ByteVector compressed = new ByteVector();
+		AppendSnappyLiterals(compressed, raw);
+		byte[] contents = BlockWithTrailer(compressed.getData(),
+				CompressionType.kSnappyCompression);
+
+		BlockHandle handle = new BlockHandle();
+		handle.set_offset(0);
+		handle.set_size(contents.length - 5);
+		ReadOptions read_options = new ReadOptions();
+		read_options.verify_checksums = true;
+		Block block = new Block(null, 0, false);
+		boolean may_cache = Block.ReadBlock(new StringSource(new Slice(
+				contents)), read_options, handle, block);
+		assertTrue("uncompressed blocks are cached", may_cache);
+		assertEquals(raw.length, block.size());
+
+		Iterator iter = block.NewIterator(BytewiseComparatorImpl
+				.getInstance());
+		iter.SeekToFirst();
+		for (int i = 0; i < 100; i++) {
+			assertTrue(iter.Valid());
+			assertEquals(ConcurrentKey(i), iter.key().toString());
+			assertEquals(ConcurrentValue(i), iter.value().toString());
+			iter.Next();
+		}
+		assertFalse(iter.Valid());
+
+		// a stream that is cut short is reported, not returned as garbage
+		byte[] bad = BlockWithTrailer(new byte[] { 10, (3 << 2), 'a' },
+				CompressionType.kSnappyCompression);
+		handle.set_size(bad.length - 5);
+		try {
+			Block.ReadBlock(new StringSource(new Slice(bad)), read_options,
+					handle, new Block(null, 0, false));
+			fail("corrupted block read");
+		} catch (Exception e) {
+			assertEquals("corrupted compressed block contents", e.getMessage());
+		}
+	}
+
+	public void testFilterPolicy() {
+		TableConstructor c = new TableConstructor(
+				BytewiseComparatorImpl.getInstance());
+		for (int i = 0; i < 1000; i++) {
+			c.Add("key" + (10000 + 2 * i), "value" + i);
+		}
+		List<byte[]> keys = new ArrayList<byte[]>();
+		TreeMap<byte[], byte[]> kvmap = new TreeMap<byte[], byte[]>(
+				new STLLessThan());
+		Options options = new Options();
+		options.block_size = 1024;
+		// keep 1KB data blocks, so that each 2KB filter covers about as
+		// many keys as the bound below was worked out for
+		options.compression = CompressionType.NoCompression;
+		options.filter_policy = FilterPolicy.NewBloomFilterPolicy(10);
+		c.Finish(options, keys, kvmap);
+
+		// every key that was added must pass the filter
+		for (int i = 0; i < 1000; i++) {
+			ASSERT_TRUE(c.table_.KeyMayMatch(new Slice("key" + (10000 + 2 * i))),
+					"missing key" + i);
+		}
+
+		// most absent keys (inside the key range) must be filtered out
+		int false_positives = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (c.table_.KeyMayMatch(new Slice("key" + (10000 + 2 * i + 1)))) {
+				false_positives++;
+			}
+		}
+		System.out.println("false positives: " + false_positives + "/1000");
+		ASSERT_TRUE(false_positives <= 20, "too many false positives");
+
+		// keys outside the table's range never match
+		ASSERT_TRUE(!c.table_.KeyMayMatch(new Slice("zzz")), "past last key");
+	}
+
+	public void testInternalGet() {
+		TableConstructor c = new TableConstructor(
+				BytewiseComparatorImpl.getInstance());
+		for (int i = 0; i < 1000; i++) {
+			c.Add("key" + (10000 + 2 * i), "value" + i);
+		}
+		List<byte[]> keys = new ArrayList<byte[]>();
+		TreeMap<byte[], byte[]> kvmap = new TreeMap<byte[], byte[]>(
+				new STLLessThan());
+		Options options = new Options();
+		options.block_size = 1024;
+		c.Finish(options, keys, kvmap);
+
+		// saver records the entry handed over by InternalGet
+		final Slice found[] = new Slice[2];
+		Function saver = new Function() {
+			@Override
+			public void exec(Object... args) {
+				found[0] = new Slice(((Slice) args[1]).data());
+				found[1] = new Slice(((Slice) args[2]).data());
+			}
+		};
+
+		// present keys: the exact entry
+		for (int i = 0; i < 1000; i++) {
+			found[0] = found[1] = null;
+			Status s = c.table_.InternalGet(new ReadOptions(), new Slice("key"
+					+ (10000 + 2 * i)), null, saver);
+			ASSERT_TRUE(s.ok(), s.toString());
+			ASSERT_TRUE(found[0] != null, "missing key" + i);
+			assertEquals("key" + (10000 + 2 * i), found[0].toString());
+			assertEquals("value" + i, found[1].toString());
+		}
+
+		// absent keys: the next entry in the block, if any
+		found[0] = found[1] = null;
+		c.table_.InternalGet(new ReadOptions(), new Slice("key10001"), null,
+				saver);
+		assertEquals("key10002", found[0].toString());
+
+		// keys past the last one: no callback at all
+		found[0] = found[1] = null;
+		Status s = c.table_.InternalGet(new ReadOptions(), new Slice("zzz"),
+				null, saver);
+		ASSERT_TRUE(s.ok(), s.toString());
+		ASSERT_TRUE(found[0] == null, "past last key");
+	}
+
+	static String ConcurrentKey(int i) {
+		return String.format("key%06d", i);
+	}
+
+	static String ConcurrentValue(int i) {
+		return "value" + i + "-" + (i * 7919);
+	}
+
+	/**
+	 * Many threads reading one table on disk at once, by point lookups and
+	 * iterators: every read must see the right bytes.
+	 */
+	public void testConcurrentReads() throws Exception {
+		ConcurrentReads(false);
+	}
+
+	public void testConcurrentMmapReads() throws Exception {
+		ConcurrentReads(true);
+	}
+
+	void ConcurrentReads(boolean mmap) throws Exception {
+		final int kNumKeys = 5000;
+		final int kNumThreads = 32;
+		final int kReadsPerThread = 2000;
+
+		Options options = new Options();
+		options.block_size = 1024;
+		StringSink sink = new StringSink();
+		TableBuilder builder = new TableBuilder(options, sink);
+		for (int i = 0; i < kNumKeys; i++) {
+			builder.Add(new Slice(ConcurrentKey(i)), new Slice(
+					ConcurrentValue(i)));
+		}
+		ASSERT_TRUE(builder.Finish().ok(), "finish");
+
+		Env env = Env.Default();
+		String fname = TmpDir() + "/concurrent_table";
+		env.DeleteFile(fname);
+		ASSERT_TRUE(Env.WriteStringToFileSync(env,
+				new Slice(sink.contents()), fname).ok(), "write table file");
+		_RandomAccessFile file = mmap ? env.NewMmapRandomAccessFile(fname,
+				1L << 30) : env.NewRandomAccessFile(fname);
+		ASSERT_TRUE((file.ReadMapped(0, 1) != null) == mmap, "file kind");
+		final Table table = Table.Open(new Options(), file,
+				sink.contents().length);
+		ASSERT_TRUE(table != null, "open table");
+
+		final AtomicInteger errors = new AtomicInteger(0);
+		Thread threads[] = new Thread[kNumThreads];
+		for (int t = 0; t < kNumThreads; t++) {
+			final long seed = 301 + t;
+			threads[t] = new Thread() {
+				public void run() {
+					Random rnd = new Random(seed);
+					final Slice found[] = new Slice[2];
+					Function saver = new Function() {
+						@Override
+						public void exec(Object... args) {
+							found[0] = new Slice(((Slice) args[1]).data());
+							found[1] = new Slice(((Slice) args[2]).data());
+						}
+					};
+					for (int n = 0; n < kReadsPerThread; n++) {
+						int i = rnd.nextInt(kNumKeys);
+						if ((n & 1) == 0) {
+							found[0] = found[1] = null;
+							Status s = table.InternalGet(new ReadOptions(),
+									new Slice(ConcurrentKey(i)), null, saver);
+							if (!s.ok() || found[0] == null
+									|| !ConcurrentKey(i).equals(
+											found[0].toString())
+									|| !ConcurrentValue(i).equals(
+											found[1].toString())) {
+								errors.incrementAndGet();
+							}
+						} else {
+							// a short scan from a random position
+							Iterator iter = table.NewIterator(new ReadOptions());
+							iter.Seek(new Slice(ConcurrentKey(i)));
+							for (int j = i; j < i + 3 && j < kNumKeys; j++) {
+								if (!iter.Valid()
+										|| !ConcurrentKey(j).equals(
+												iter.key().toString())
+										|| !ConcurrentValue(j).equals(
+												iter.value().toString())) {
+									errors.incrementAndGet();
+									break;
+								}
+								iter.Next();
+							}
+						}
+					}
+				}
+			};
+		}
+		for (int t = 0; t < kNumThreads; t++) {
+			threads[t].start();
+		}
+		for (int t = 0; t < kNumThreads; t++) {
+			threads[t].join();
+		}
+		file.Close();
+		env.DeleteFile(fname);
+
+		ASSERT_TRUE(errors.get() == 0, errors.get() + " bad reads");
+	}
+
+	public void testMmapLimit() throws Exception {
+		Env env = Env.Default();
+		String fname = TmpDir() + "/mmap_table";
+		byte[] contents = new byte[10000];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) i;
+		}
+		ASSERT_TRUE(Env.WriteStringToFileSync(env, new Slice(contents), fname)
+				.ok(), "write file");
+
+		// mappings of earlier tests would go away midway
+		long base = CollectMappings(0);
+		_RandomAccessFile f1 = env.NewMmapRandomAccessFile(fname, base + 15000);
+		ASSERT_TRUE(f1.ReadMapped(0, 1) != null, "first file is mapped");
+		assertEquals(base + 10000, MmapRandomAccessFile.MappedBytes());
+
+		// not enough room left for a second mapping: plain reads
+		_RandomAccessFile f2 = env.NewMmapRandomAccessFile(fname, base + 15000);
+		ASSERT_TRUE(f2.ReadMapped(0, 1) == null, "second file is not mapped");
+		assertEquals(base + 10000, MmapRandomAccessFile.MappedBytes());
+
+		// both read the same bytes, including a read past the end
+		Slice r1 = new Slice();
+		Slice r2 = new Slice();
+		f1.Read(9990, 100, r1);
+		f2.Read(9990, 100, r2);
+		assertEquals(10, r1.size());
+		assertEquals(10, r2.size());
+		assertEquals(0, r1.compareTo(r2));
+		assertEquals((byte) 9999, r1.get(9));
+
+		// a view of the mapping keeps it, and its bytes, after Close()
+		ByteBuffer view = f1.ReadMapped(9990, 10);
+		f1.Close();
+		f2.Close();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		assertEquals(base + 10000, MmapRandomAccessFile.MappedBytes());
+		assertEquals((byte) 9999, view.get(9));
+
+		// which are given back once the mapping is collected
+		view = null;
+		assertEquals(base, CollectMappings(base));
+		env.DeleteFile(fname);
+	}
+
+	// collect garbage until only "bytes" are mapped, or for about a second;
+	// returns the bytes mapped then
+	static long CollectMappings(long bytes) throws InterruptedException {
+		for (int i = 0; i < 100
+				&& MmapRandomAccessFile.MappedBytes() != bytes; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		return MmapRandomAccessFile.MappedBytes();
+	}
+
+	/**
+	 * An uncompressed block of a mapped file is read in place, checksum
+	 * included, and is not handed to the block cache.
+	 */
+	public void testMmapReadBlock() throws Exception {
+		Options options = new Options();
+		BlockBuilder builder = new BlockBuilder(options);
+		for (int i = 0; i < 100; i++) {
+			builder.Add(new Slice(ConcurrentKey(i)), new Slice(
+					ConcurrentValue(i)));
+		}
+		byte[] raw = builder.Finish().data();
+		byte[] contents = BlockWithTrailer(raw,
+				CompressionType.kNoCompression);
+
+		Env env = Env.Default();
+		String fname = TmpDir() + "/mmap_block";
+		ASSERT_TRUE(Env.WriteStringToFileSync(env, new Slice(contents), fname)
+				.ok(), "write file");
+		_RandomAccessFile file = env.NewMmapRandomAccessFile(fname, 1L << 30);
+		ASSERT_TRUE(file.ReadMapped(0, 1) != null, "file is mapped");
+
+		BlockHandle handle = new BlockHandle();
+		handle.set_offset(0);
+		handle.set_size(raw.length);
+		ReadOptions read_options = new ReadOptions();
+		read_options.verify_checksums = true;
+		Block block = new Block(null, 0, false);
+		boolean may_cache = Block.ReadBlock(file, read_options, handle, block);
+		assertFalse("mapped blocks are not cached", may_cache);
+		assertFalse(block.isOwned_());
+		assertNull("no copy of the contents", block.getData_());
+		assertEquals(raw.length, block.size());
+
+		Iterator iter = block.NewIterator(BytewiseComparatorImpl
+				.getInstance());
+		iter.SeekToFirst();
+		for (int i = 0; i < 100; i++) {
+			assertTrue(iter.Valid());
+			assertEquals(ConcurrentKey(i), iter.key().toString());
+			assertEquals(ConcurrentValue(i), iter.value().toString());
+			iter.Next();
+		}
+		assertFalse(iter.Valid());
+		iter.Seek(new Slice(ConcurrentKey(42)));
+		assertTrue(iter.Valid());
+		assertEquals(ConcurrentValue(42), iter.value().toString());
+		iter.Prev();
+		assertEquals(ConcurrentKey(41), iter.key().toString());
+		file.Close();
+
+		// a flipped bit in the mapping is caught by the checksum
+		contents[7] ^= 1;
+		ASSERT_TRUE(Env.WriteStringToFileSync(env, new Slice(contents), fname)
+				.ok(), "write file");
+		file = env.NewMmapRandomAccessFile(fname, 1L << 30);
+		try {
+			Block.ReadBlock(file, read_options, handle, new Block(null, 0,
+					false));
+			fail("corrupted block read");
+		} catch (Exception e) {
+			assertEquals("block checksum mismatch", e.getMessage());
+		}
+		file.Close();
+		env.DeleteFile(fname);
+	}
+
+	/**
+	 * Blocks compressed by worker threads give the same file as blocks
+	 * compressed one at a time, filter and index blocks included.
+	 */
+	public void testCompressionThreads() {
+		byte[] serial = BuildCompressibleTable(1);
+		byte[] parallel = BuildCompressibleTable(4);
+		assertEquals(serial.length, parallel.length);
+		ASSERT_TRUE(java.util.Arrays.equals(serial, parallel), "same bytes");
+
+		Table table = Table.Open(new Options(), new StringSource(new Slice(
+				parallel)), parallel.length);
+		ASSERT_TRUE(table != null, "open table");
+		Iterator iter = table.NewIterator(new ReadOptions());
+		int n = 0;
+		for (iter.SeekToFirst(); iter.Valid(); iter.Next()) {
+			assertEquals(ConcurrentKey(n), iter.key().toString());
+			assertEquals(ConcurrentValue(n) + ConcurrentValue(n), iter.value()
+					.toString());
+			n++;
+		}
+		assertEquals(5000, n);
+	}
+
+	static byte[] BuildCompressibleTable(int threads) {
+		Options options = new Options();
+		options.block_size = 1024;
+		options.filter_policy = FilterPolicy.NewBloomFilterPolicy(10);
+		options.compression_threads = threads;
+		StringSink sink = new StringSink();
+		TableBuilder builder = new TableBuilder(options, sink);
+		for (int i = 0; i < 5000; i++) {
+			builder.Add(new Slice(ConcurrentKey(i)), new Slice(
+					ConcurrentValue(i) + ConcurrentValue(i)));
+		}
+		ASSERT_TRUE(builder.Finish().ok(), "finish");
+		assertEquals(sink.contents().length, builder.FileSize());
+		return sink.contents();
+	}
+
 	public static Test suite() {
 		TestSuite suite = new TestSuite("TestSuite Test");
 		// suite.addTestSuite(TableTest.class);
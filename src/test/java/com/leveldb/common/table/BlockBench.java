@@ -0,0 +1,123 @@
+package com.leveldb.common.table;
+
+import java.util.Random;
+
+import com.leveldb.common.Iterator;
+import com.leveldb.common.Slice;
+import com.leveldb.common.options.Options;
+
+/**
+ * Block iterator benchmark: for each of --block_sizes, builds one block of
+ * 16-byte keys and --value_size byte values, then times full scans and
+ * random Seek()s over it, and prints entries per second for both.
+ *
+ * e.g. java com.leveldb.common.table.BlockBench --block_sizes=4096,65536
+ */
+public class BlockBench {
+
+	// Comma-separated list of block sizes (in bytes) to run with
+	static String FLAGS_block_sizes = "4096,65536";
+
+	// Size of each value
+	static int FLAGS_value_size = 100;
+
+	// Number of entries to read in each of scan and seek
+	static int FLAGS_reads = 2000000;
+
+	static Options options_ = new Options();
+
+	static byte[] Key(int i) {
+		return String.format("%016d", i).getBytes();
+	}
+
+	// Returns the block, and the number of its entries in count[0]
+	static Block BuildBlock(int block_size, int count[]) {
+		BlockBuilder builder = new BlockBuilder(options_);
+		Random rnd = new Random(301);
+		byte value[] = new byte[FLAGS_value_size];
+		int n = 0;
+		while (builder.CurrentSizeEstimate() < block_size) {
+			rnd.nextBytes(value);
+			builder.Add(new Slice(Key(n)), new Slice(value));
+			n++;
+		}
+		Slice contents = builder.Finish();
+		count[0] = n;
+		return new Block(contents.data(), contents.size(), true);
+	}
+
+	static double Scan(Block block) {
+		Iterator iter = block.NewIterator(options_.comparator);
+		long bytes = 0;
+		int done = 0;
+		long start = System.nanoTime();
+		while (done < FLAGS_reads) {
+			for (iter.SeekToFirst(); iter.Valid() && done < FLAGS_reads; iter
+					.Next()) {
+				bytes += iter.key().size() + iter.value().size();
+				done++;
+			}
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		if (bytes == 0) {
+			System.err.println("empty block");
+		}
+		return done / elapsed;
+	}
+
+	static double Seek(Block block, int count) {
+		Iterator iter = block.NewIterator(options_.comparator);
+		Random rnd = new Random(301);
+		Slice targets[] = new Slice[1024];
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = new Slice(Key(rnd.nextInt(count)));
+		}
+		int found = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < FLAGS_reads; i++) {
+			iter.Seek(targets[i & (targets.length - 1)]);
+			if (iter.Valid()) {
+				found++;
+			}
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		if (found != FLAGS_reads) {
+			System.err.println("seek missed " + (FLAGS_reads - found));
+		}
+		return FLAGS_reads / elapsed;
+	}
+
+	public static void main(String args[]) throws Exception {
+		for (String arg : args) {
+			if (arg.startsWith("--block_sizes=")) {
+				FLAGS_block_sizes = arg.substring("--block_sizes=".length());
+			} else if (arg.startsWith("--value_size=")) {
+				FLAGS_value_size = Integer.parseInt(arg
+						.substring("--value_size=".length()));
+			} else if (arg.startsWith("--reads=")) {
+				FLAGS_reads = Integer.parseInt(arg.substring("--reads="
+						.length()));
+			} else {
+				System.err.println("Invalid flag '" + arg + "'");
+				System.exit(1);
+			}
+		}
+
+		for (String n : FLAGS_block_sizes.split(",")) {
+			int block_size = Integer.parseInt(n.trim());
+			int count[] = new int[1];
+			Block block = BuildBlock(block_size, count);
+			// warm up the JIT once on each
+			Scan(block);
+			Seek(block, count[0]);
+
+			double scan = Scan(block);
+			double seek = Seek(block, count[0]);
+			System.out.println(String.format(
+					"block %6d bytes, %5d entries : scan %10.0f entries/s; "
+							+ "seek %10.0f seeks/s", block.size(), count[0],
+					scan, seek));
+		}
+		System.exit(0);
+	}
+}
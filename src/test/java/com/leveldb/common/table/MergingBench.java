@@ -0,0 +1,140 @@
+package com.leveldb.common.table;
+
+import com.leveldb.common.Iterator;
+import com.leveldb.common.Slice;
+import com.leveldb.common.options.Options;
+
+/**
+ * Merging iterator benchmark: for each of --fan_in, spreads --entries keys
+ * round-robin over that many block iterators, then times a full forward
+ * scan, a full backward scan and --seeks Seek()s followed by 10 Next()s,
+ * through MergingIterator (a linear search over the children per step)
+ * and HeapMergingIterator, and prints steps per second for each.
+ *
+ * e.g. java com.leveldb.common.table.MergingBench --fan_in=4,16,64
+ */
+public class MergingBench {
+
+	// Comma-separated list of numbers of children to run with
+	static String FLAGS_fan_in = "2,4,8,16,64";
+
+	// Number of keys, over all children
+	static int FLAGS_entries = 1000000;
+
+	// Number of Seek()s
+	static int FLAGS_seeks = 100000;
+
+	static Options options_ = new Options();
+
+	static byte[] Key(int i) {
+		return String.format("%016d", i).getBytes();
+	}
+
+	static Block[] BuildChildren(int n) {
+		BlockBuilder builders[] = new BlockBuilder[n];
+		for (int c = 0; c < n; c++) {
+			builders[c] = new BlockBuilder(options_);
+		}
+		Slice value = new Slice(new byte[16]);
+		for (int i = 0; i < FLAGS_entries; i++) {
+			builders[i % n].Add(new Slice(Key(i)), value);
+		}
+		Block blocks[] = new Block[n];
+		for (int c = 0; c < n; c++) {
+			Slice contents = builders[c].Finish();
+			blocks[c] = new Block(contents.data(), contents.size(), true);
+		}
+		return blocks;
+	}
+
+	static Iterator NewIterator(Block blocks[], boolean heap) {
+		Iterator children[] = new Iterator[blocks.length];
+		for (int c = 0; c < blocks.length; c++) {
+			children[c] = blocks[c].NewIterator(options_.comparator);
+		}
+		if (heap) {
+			return new HeapMergingIterator(options_.comparator, children,
+					blocks.length);
+		} else {
+			return new MergingIterator(options_.comparator, children,
+					blocks.length);
+		}
+	}
+
+	static void Check(int done, int expected) {
+		if (done != expected) {
+			System.err.println("expected " + expected + " entries, got " + done);
+			System.exit(1);
+		}
+	}
+
+	// {forward scan, backward scan, seek} steps per second
+	static double[] Run(Block blocks[], boolean heap) {
+		double result[] = new double[3];
+		Iterator iter = NewIterator(blocks, heap);
+
+		int done = 0;
+		long start = System.nanoTime();
+		for (iter.SeekToFirst(); iter.Valid(); iter.Next()) {
+			done++;
+		}
+		result[0] = done / ((System.nanoTime() - start) / 1e9);
+		Check(done, FLAGS_entries);
+
+		done = 0;
+		start = System.nanoTime();
+		for (iter.SeekToLast(); iter.Valid(); iter.Prev()) {
+			done++;
+		}
+		result[1] = done / ((System.nanoTime() - start) / 1e9);
+		Check(done, FLAGS_entries);
+
+		java.util.Random rnd = new java.util.Random(301);
+		done = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < FLAGS_seeks; i++) {
+			iter.Seek(new Slice(Key(rnd.nextInt(FLAGS_entries))));
+			for (int j = 0; j < 10 && iter.Valid(); j++) {
+				iter.Next();
+			}
+			done++;
+		}
+		result[2] = done / ((System.nanoTime() - start) / 1e9);
+		return result;
+	}
+
+	public static void main(String args[]) throws Exception {
+		for (String arg : args) {
+			if (arg.startsWith("--fan_in=")) {
+				FLAGS_fan_in = arg.substring("--fan_in=".length());
+			} else if (arg.startsWith("--entries=")) {
+				FLAGS_entries = Integer.parseInt(arg.substring("--entries="
+						.length()));
+			} else if (arg.startsWith("--seeks=")) {
+				FLAGS_seeks = Integer.parseInt(arg.substring("--seeks="
+						.length()));
+			} else {
+				System.err.println("Invalid flag '" + arg + "'");
+				System.exit(1);
+			}
+		}
+
+		for (String f : FLAGS_fan_in.split(",")) {
+			int n = Integer.parseInt(f.trim());
+			Block blocks[] = BuildChildren(n);
+			// warm up the JIT once on each
+			Run(blocks, false);
+			Run(blocks, true);
+
+			double linear[] = Run(blocks, false);
+			double heap[] = Run(blocks, true);
+			System.out.println(String.format(
+					"fan-in %3d : next %10.0f /s linear, %10.0f /s heap; "
+							+ "prev %10.0f /s linear, %10.0f /s heap; "
+							+ "seek+10 %8.0f /s linear, %8.0f /s heap", n,
+					linear[0], heap[0], linear[1], heap[1], linear[2],
+					heap[2]));
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,132 @@
+package com.leveldb.common.table;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+import com.leveldb.common.Iterator;
+import com.leveldb.common.Slice;
+import com.leveldb.common.options.Options;
+
+/**
+ * HeapMergingIterator must yield what MergingIterator yields, in the same
+ * order, through any mix of seeks and direction changes
+ */
+public class MergingIteratorTest extends TestCase {
+
+	Options options_ = new Options();
+
+	// n children of random keys out of a small range, so that many keys
+	// are in several children; values tell the children apart
+	Block[] RandomChildren(Random rnd, int n) {
+		Block blocks[] = new Block[n];
+		for (int c = 0; c < n; c++) {
+			BlockBuilder builder = new BlockBuilder(options_);
+			int entries = rnd.nextInt(50);
+			for (int k = rnd.nextInt(10); entries > 0; k += 1 + rnd.nextInt(8)) {
+				builder.Add(new Slice(String.format("%06d", k)), new Slice(
+						"child" + c));
+				entries--;
+			}
+			Slice contents = builder.Finish();
+			blocks[c] = new Block(contents.data(), contents.size(), true);
+		}
+		return blocks;
+	}
+
+	Iterator[] Iterators(Block blocks[]) {
+		Iterator children[] = new Iterator[blocks.length];
+		for (int c = 0; c < blocks.length; c++) {
+			children[c] = blocks[c].NewIterator(options_.comparator);
+		}
+		return children;
+	}
+
+	void AssertSame(Iterator expected, Iterator actual) {
+		assertEquals(expected.Valid(), actual.Valid());
+		if (expected.Valid()) {
+			assertEquals(expected.key().toString(), actual.key().toString());
+			assertEquals(expected.value().toString(), actual.value()
+					.toString());
+		}
+	}
+
+	void RunRandom(int n) {
+		Random rnd = new Random(301 + n);
+		for (int round = 0; round < 20; round++) {
+			Block blocks[] = RandomChildren(rnd, n);
+			Iterator linear = new MergingIterator(options_.comparator,
+					Iterators(blocks), n);
+			Iterator heap = new HeapMergingIterator(options_.comparator,
+					Iterators(blocks), n);
+			for (int step = 0; step < 1000; step++) {
+				int op = rnd.nextInt(10);
+				if (op == 0) {
+					linear.SeekToFirst();
+					heap.SeekToFirst();
+				} else if (op == 1) {
+					linear.SeekToLast();
+					heap.SeekToLast();
+				} else if (op == 2) {
+					Slice target = new Slice(String.format("%06d", rnd
+							.nextInt(300)));
+					linear.Seek(target);
+					heap.Seek(target);
+				} else if (linear.Valid() && op < 6) {
+					linear.Next();
+					heap.Next();
+				} else if (linear.Valid()) {
+					linear.Prev();
+					heap.Prev();
+				}
+				AssertSame(linear, heap);
+			}
+		}
+	}
+
+	public void testFewChildren() {
+		RunRandom(2);
+		RunRandom(3);
+	}
+
+	public void testManyChildren() {
+		RunRandom(8);
+		RunRandom(33);
+	}
+
+	public void testFullScans() {
+		Random rnd = new Random(301);
+		Block blocks[] = RandomChildren(rnd, 16);
+		Iterator linear = new MergingIterator(options_.comparator,
+				Iterators(blocks), 16);
+		Iterator heap = new HeapMergingIterator(options_.comparator,
+				Iterators(blocks), 16);
+		int count = 0;
+		for (linear.SeekToFirst(), heap.SeekToFirst(); linear.Valid(); linear
+				.Next(), heap.Next()) {
+			AssertSame(linear, heap);
+			count++;
+		}
+		AssertSame(linear, heap);
+		for (linear.SeekToLast(), heap.SeekToLast(); linear.Valid(); linear
+				.Prev(), heap.Prev()) {
+			AssertSame(linear, heap);
+			count--;
+		}
+		AssertSame(linear, heap);
+		assertEquals(0, count);
+	}
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("MergingIterator Test");
+		suite.addTestSuite(MergingIteratorTest.class);
+		return suite;
+	}
+
+	public static void main(String args[]) {
+		TestRunner.run(suite());
+	}
+}
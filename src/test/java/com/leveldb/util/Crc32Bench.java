@@ -0,0 +1,66 @@
+package com.leveldb.util;
+
+import java.util.Random;
+
+/**
+ * crc32java benchmark: for each of --sizes, checksums buffers of that many
+ * bytes with each crc32java.Implementation until --bytes have been done,
+ * and prints MB per second for each.
+ *
+ * e.g. java com.leveldb.util.Crc32Bench --sizes=100,4096
+ */
+public class Crc32Bench {
+
+	// Comma-separated list of buffer sizes (in bytes) to run with
+	static String FLAGS_sizes = "100,4096,1048576";
+
+	// Number of bytes to checksum for each size and implementation
+	static long FLAGS_bytes = 1L << 30;
+
+	static double Run(crc32java.Implementation impl, byte[] data, int size) {
+		crc32java.SetImplementation(impl);
+		crc32java crc = new crc32java();
+		long n = Math.max(1, FLAGS_bytes / size);
+		int sum = 0;
+		long start = System.nanoTime();
+		for (long i = 0; i < n; i++) {
+			sum ^= crc.Value(data, (int) (i & 7), size);
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		if (sum == 42) {
+			System.err.println("unlucky");
+		}
+		return n * size / 1048576.0 / elapsed;
+	}
+
+	public static void main(String args[]) throws Exception {
+		for (String arg : args) {
+			if (arg.startsWith("--sizes=")) {
+				FLAGS_sizes = arg.substring("--sizes=".length());
+			} else if (arg.startsWith("--bytes=")) {
+				FLAGS_bytes = Long.parseLong(arg.substring("--bytes="
+						.length()));
+			} else {
+				System.err.println("Invalid flag '" + arg + "'");
+				System.exit(1);
+			}
+		}
+
+		for (String s : FLAGS_sizes.split(",")) {
+			int size = Integer.parseInt(s.trim());
+			byte data[] = new byte[size + 8];
+			new Random(301).nextBytes(data);
+			StringBuilder line = new StringBuilder(String.format(
+					"%8d bytes :", size));
+			for (crc32java.Implementation impl : crc32java.Implementation
+					.values()) {
+				// warm up the JIT once on each
+				Run(impl, data, size);
+				line.append(String.format(" %s %8.1f MB/s;", impl, Run(impl,
+						data, size)));
+			}
+			System.out.println(line);
+		}
+		System.exit(0);
+	}
+}
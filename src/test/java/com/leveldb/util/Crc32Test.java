@@ -0,0 +1,114 @@
+package com.leveldb.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+/**
+ * tests for crc32java: every Implementation gives the crc of the table
+ * driven one
+ */
+public class Crc32Test extends TestCase {
+
+	crc32java.Implementation saved_;
+
+	protected void setUp() {
+		saved_ = crc32java.GetImplementation();
+	}
+
+	protected void tearDown() {
+		crc32java.SetImplementation(saved_);
+	}
+
+	static int Value(crc32java.Implementation impl, byte[] data, int offset,
+			int length) {
+		crc32java.SetImplementation(impl);
+		return new crc32java().Value(data, offset, length);
+	}
+
+	public void testImplementationsAgree() {
+		Random rnd = new Random(301);
+		byte data[] = new byte[70000];
+		rnd.nextBytes(data);
+		int lengths[] = { 0, 1, 7, 8, 9, 100, 127, 128, 129, 4096, 4101, 65536 };
+		for (int length : lengths) {
+			for (int offset = 0; offset < 9; offset++) {
+				int expected = Value(crc32java.Implementation.kTable, data,
+						offset, length);
+				assertEquals("slicing, length " + length, expected, Value(
+						crc32java.Implementation.kSlicingBy8, data, offset,
+						length));
+				assertEquals("zip, length " + length, expected, Value(
+						crc32java.Implementation.kZip, data, offset, length));
+			}
+		}
+	}
+
+	// contents that are not an array, e.g. a mapped block, give the same crc
+	public void testByteBufferValue() {
+		Random rnd = new Random(301);
+		byte data[] = new byte[5000];
+		rnd.nextBytes(data);
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data);
+		for (int length : new int[] { 0, 1, 127, 128, 129, 4096 }) {
+			int expected = Value(crc32java.Implementation.kTable, data, 3,
+					length);
+			for (crc32java.Implementation impl : crc32java.Implementation
+					.values()) {
+				crc32java.SetImplementation(impl);
+				assertEquals(impl + ", length " + length, expected,
+						new crc32java().Value(direct, 3, length));
+			}
+		}
+	}
+
+	public void testExtend() {
+		Random rnd = new Random(301);
+		byte data[] = new byte[10000];
+		rnd.nextBytes(data);
+		for (crc32java.Implementation impl : crc32java.Implementation
+				.values()) {
+			crc32java.SetImplementation(impl);
+			crc32java crc = new crc32java();
+			int whole = crc.Value(data, data.length);
+			for (int split : new int[] { 0, 1, 100, 5000, 9999, 10000 }) {
+				int head = crc.Value(data, 0, split);
+				assertEquals(impl + ", split " + split, whole, crc.Extend(
+						head, data, split, data.length - split));
+			}
+		}
+	}
+
+	// the block trailer extends the crc by the single type byte
+	public void testExtendByOneByte() {
+		byte data[] = new byte[crc32java.kZipMinLength + 10];
+		new Random(301).nextBytes(data);
+		byte type[] = { 1 };
+		int expected = 0;
+		for (crc32java.Implementation impl : crc32java.Implementation
+				.values()) {
+			crc32java.SetImplementation(impl);
+			crc32java crc = new crc32java();
+			int c = crc.Extend(crc.Value(data, data.length), type, 1);
+			if (impl == crc32java.Implementation.kTable) {
+				expected = c;
+			}
+			assertEquals(impl.toString(), expected, c);
+		}
+	}
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestSuite Test");
+		suite.addTestSuite(Crc32Test.class);
+		return suite;
+	}
+
+	public static void main(String args[]) {
+		TestRunner.run(suite());
+	}
+}